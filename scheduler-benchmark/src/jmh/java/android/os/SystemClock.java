@@ -0,0 +1,36 @@
+package android.os;
+
+/**
+ * Stands in for the framework class, whose natives only exist on a device. The JVM's
+ * monotonic clock serves as both uptime and elapsed realtime.
+ */
+public final class SystemClock {
+    private static final long STARTED_AT_NANOS = System.nanoTime();
+
+    private SystemClock() {
+    }
+
+    public static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static long uptimeMillis() {
+        return elapsedRealtime();
+    }
+
+    public static long elapsedRealtime() {
+        return elapsedRealtimeNanos() / 1000000L;
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime() - STARTED_AT_NANOS;
+    }
+
+    public static long currentThreadTimeMillis() {
+        return elapsedRealtime();
+    }
+}
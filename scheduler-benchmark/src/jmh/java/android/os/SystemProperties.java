@@ -0,0 +1,54 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stands in for the framework class, whose natives only exist on a device. Describes a Pie
+ * build, the platform the backends are compiled against.
+ */
+public class SystemProperties {
+    private static final Map<String, String> PROPERTIES = new HashMap<>();
+
+    static {
+        PROPERTIES.put("ro.build.version.sdk", "28");
+        PROPERTIES.put("ro.build.version.release", "9");
+        PROPERTIES.put("ro.build.version.codename", "REL");
+        PROPERTIES.put("ro.build.version.all_codenames", "REL");
+        PROPERTIES.put("ro.product.cpu.abilist", "x86_64,x86");
+        PROPERTIES.put("ro.product.cpu.abilist64", "x86_64");
+        PROPERTIES.put("ro.product.cpu.abilist32", "x86");
+    }
+
+    public static String get(String key) {
+        return get(key, "");
+    }
+
+    public static String get(String key, String def) {
+        String value = PROPERTIES.get(key);
+        return value == null ? def : value;
+    }
+
+    public static int getInt(String key, int def) {
+        String value = PROPERTIES.get(key);
+        return value == null ? def : Integer.parseInt(value);
+    }
+
+    public static long getLong(String key, long def) {
+        String value = PROPERTIES.get(key);
+        return value == null ? def : Long.parseLong(value);
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        String value = PROPERTIES.get(key);
+        return value == null ? def : Boolean.parseBoolean(value);
+    }
+
+    public static void set(String key, String val) {
+        // Properties are read-only here
+    }
+
+    public static void addChangeCallback(Runnable callback) {
+        // Properties never change here
+    }
+}
@@ -0,0 +1,373 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.app.job.JobWorkItem;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+import android.os.Looper;
+import android.os.UserHandle;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Application context for running the real backends on a plain JVM. The alarm manager, the job
+ * scheduler and the pending intent registry behind them are kept in memory, so a benchmark
+ * pays for the library's own work and the binder calls it makes, but not for the system
+ * services answering them.
+ */
+final class BenchmarkContext extends ContextWrapper {
+    private static final String PACKAGE_NAME = "com.tech21.lunart.scheduler.benchmark";
+
+    private final File filesDir;
+    private final ApplicationInfo applicationInfo = new ApplicationInfo();
+    private final AlarmManager alarmManager;
+    private final JobScheduler jobScheduler = new StubJobScheduler();
+
+    BenchmarkContext() throws Exception {
+        super(null);
+        filesDir = File.createTempFile("scheduler-benchmark", "");
+        if (!filesDir.delete() || !filesDir.mkdirs()) {
+            throw new IOException("Unable to create " + filesDir);
+        }
+        applicationInfo.packageName = PACKAGE_NAME;
+        applicationInfo.targetSdkVersion = Build.VERSION_CODES.P;
+        installMainLooper();
+        installOs();
+        installActivityManager();
+        alarmManager = newAlarmManager(this);
+    }
+
+    /**
+     * Deletes the files the schedule store has written.
+     */
+    void delete() {
+        delete(filesDir);
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public String getPackageName() {
+        return PACKAGE_NAME;
+    }
+
+    @Override
+    public String getOpPackageName() {
+        return PACKAGE_NAME;
+    }
+
+    @Override
+    public ApplicationInfo getApplicationInfo() {
+        return applicationInfo;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return null;
+    }
+
+    @Override
+    public Looper getMainLooper() {
+        return Looper.getMainLooper();
+    }
+
+    @Override
+    public UserHandle getUser() {
+        return UserHandle.of(0);
+    }
+
+    @Override
+    public int getUserId() {
+        return 0;
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+        if (Context.ALARM_SERVICE.equals(name)) {
+            return alarmManager;
+        }
+        if (Context.JOB_SCHEDULER_SERVICE.equals(name)) {
+            return jobScheduler;
+        }
+        return null;
+    }
+
+    @Override
+    public String getSystemServiceName(Class<?> serviceClass) {
+        if (serviceClass == AlarmManager.class) {
+            return Context.ALARM_SERVICE;
+        }
+        if (serviceClass == JobScheduler.class) {
+            return Context.JOB_SCHEDULER_SERVICE;
+        }
+        return null;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Handlers are only created against the main looper, never posted to, so a looper without
+     * a message queue is enough.
+     */
+    private static void installMainLooper() throws Exception {
+        Field mainLooper = Looper.class.getDeclaredField("sMainLooper");
+        mainLooper.setAccessible(true);
+        if (mainLooper.get(null) != null) {
+            return;
+        }
+        Field unsafeField = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+        unsafeField.setAccessible(true);
+        Object unsafe = unsafeField.get(null);
+        Method allocateInstance = unsafe.getClass().getMethod("allocateInstance", Class.class);
+        mainLooper.set(null, allocateInstance.invoke(unsafe, Looper.class));
+    }
+
+    /**
+     * The uid and pid a job's network request is tagged with come from the OS, which answers
+     * zero to everything here.
+     */
+    private static void installOs() throws Exception {
+        Class<?> os = Class.forName("libcore.io.Os");
+        Class.forName("libcore.io.Libcore").getField("os").set(null, newProxy(os, new StubService() {
+        }));
+    }
+
+    /**
+     * Pending intents are created and cancelled through the activity manager, which keeps one
+     * per request code and intent here, as the system does.
+     */
+    private static void installActivityManager() throws Exception {
+        Class<?> activityManager = Class.forName("android.app.ActivityManager");
+        Field singletonField = activityManager.getDeclaredField("IActivityManagerSingleton");
+        singletonField.setAccessible(true);
+        Object singleton = singletonField.get(null);
+        Field instance = Class.forName("android.util.Singleton").getDeclaredField("mInstance");
+        instance.setAccessible(true);
+        Class<?> service = Class.forName("android.app.IActivityManager");
+        instance.set(singleton, newProxy(service, new IntentSenders()));
+    }
+
+    private static AlarmManager newAlarmManager(Context context) throws Exception {
+        Class<?> service = Class.forName("android.app.IAlarmManager");
+        Constructor<AlarmManager> constructor =
+                AlarmManager.class.getDeclaredConstructor(service, Context.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(newProxy(service, new AlarmRegistry()), context);
+    }
+
+    private static Object newProxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Answers with the proxy's identity, and with a default value to anything else that isn't
+     * handled.
+     */
+    private abstract static class StubService implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return getClass().getSimpleName();
+                default:
+                    return handle(proxy, method, args);
+            }
+        }
+
+        Object handle(Object proxy, Method method, Object[] args) {
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static final class AlarmRegistry extends StubService {
+        private final Map<Object, Long> alarms = new HashMap<>();
+
+        @Override
+        synchronized Object handle(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "set":
+                    // set(packageName, type, triggerAtTime, windowLength, interval, flags, operation, ...)
+                    alarms.put(args[6], (Long) args[2]);
+                    return null;
+                case "remove":
+                    alarms.remove(args[0]);
+                    return null;
+                default:
+                    return super.handle(proxy, method, args);
+            }
+        }
+    }
+
+    private static final class IntentSenders extends StubService {
+        private final Map<Key, Object> senders = new HashMap<>();
+        private final Map<Object, Key> keys = new IdentityHashMap<>();
+        private final Class<?> senderType;
+        private final Class<?> binderType;
+
+        IntentSenders() throws ClassNotFoundException {
+            senderType = Class.forName("android.content.IIntentSender");
+            binderType = Class.forName("android.os.IBinder");
+        }
+
+        @Override
+        synchronized Object handle(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getIntentSender":
+                    // getIntentSender(type, packageName, token, resultWho, requestCode, intents,
+                    // resolvedTypes, flags, options, userId)
+                    Key key = new Key((Integer) args[4], ((Intent[]) args[5])[0]);
+                    Object sender = senders.get(key);
+                    if (sender == null && ((Integer) args[7] & PendingIntent.FLAG_NO_CREATE) == 0) {
+                        sender = newProxy(senderType, new IntentSender(newProxy(binderType, new StubService() {
+                        })));
+                        senders.put(key, sender);
+                        keys.put(sender, key);
+                    }
+                    return sender;
+                case "cancelIntentSender":
+                    Key cancelled = keys.remove(args[0]);
+                    if (cancelled != null) {
+                        senders.remove(cancelled);
+                    }
+                    return null;
+                default:
+                    return super.handle(proxy, method, args);
+            }
+        }
+    }
+
+    private static final class IntentSender extends StubService {
+        private final Object binder;
+
+        IntentSender(Object binder) {
+            this.binder = binder;
+        }
+
+        @Override
+        Object handle(Object proxy, Method method, Object[] args) {
+            if ("asBinder".equals(method.getName())) {
+                return binder;
+            }
+            return super.handle(proxy, method, args);
+        }
+    }
+
+    /**
+     * Pending intents match on the request code and on what {@link Intent#filterEquals} compares,
+     * but not on extras.
+     */
+    private static final class Key {
+        private final int requestCode;
+        private final Intent intent;
+
+        Key(int requestCode, Intent intent) {
+            this.requestCode = requestCode;
+            this.intent = intent;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return requestCode == key.requestCode && intent.filterEquals(key.intent);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * requestCode + intent.filterHashCode();
+        }
+    }
+
+    private static final class StubJobScheduler extends JobScheduler {
+        private final Map<Integer, JobInfo> jobs = new HashMap<>();
+
+        @Override
+        public synchronized int schedule(JobInfo job) {
+            jobs.put(job.getId(), job);
+            return RESULT_SUCCESS;
+        }
+
+        @Override
+        public int enqueue(JobInfo job, JobWorkItem work) {
+            return schedule(job);
+        }
+
+        @Override
+        public int scheduleAsPackage(JobInfo job, String packageName, int userId, String tag) {
+            return schedule(job);
+        }
+
+        @Override
+        public synchronized void cancel(int jobId) {
+            jobs.remove(jobId);
+        }
+
+        @Override
+        public synchronized void cancelAll() {
+            jobs.clear();
+        }
+
+        @Override
+        public synchronized List<JobInfo> getAllPendingJobs() {
+            return new ArrayList<>(jobs.values());
+        }
+
+        @Override
+        public synchronized JobInfo getPendingJob(int jobId) {
+            return jobs.get(jobId);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CronExpressionBenchmark {
+    @Param({"*/15 8-18 * * MON-FRI", "0 9 1 JAN *", "0 0 29 2 *"})
+    private String expression;
+
+    private CronExpression cron;
+    private long afterMillis;
+
+    @Setup
+    public void setUp() {
+        cron = CronExpression.parse(expression);
+        afterMillis = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public CronExpression parse() {
+        return CronExpression.parse(expression);
+    }
+
+    @Benchmark
+    public long nextAfter() {
+        return cron.nextAfter(afterMillis);
+    }
+}
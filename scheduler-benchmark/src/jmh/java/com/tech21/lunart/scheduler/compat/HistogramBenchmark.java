@@ -0,0 +1,44 @@
+package com.tech21.lunart.scheduler.compat;
+
+import com.tech21.lunart.scheduler.compat.metrics.Histogram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording a metric, alone and with 4 threads recording into the same histogram.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HistogramBenchmark {
+    private final Histogram histogram = new Histogram();
+
+    @State(Scope.Thread)
+    public static class Value {
+        long next = 1;
+    }
+
+    @Benchmark
+    public void record(Value value) {
+        histogram.record(value.next++ & 0xfffff);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Value value) {
+        histogram.record(value.next++ & 0xfffff);
+    }
+
+    @Benchmark
+    public Histogram.Snapshot snapshot() {
+        return histogram.snapshot();
+    }
+}
@@ -0,0 +1,91 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done by {@link RearmReceiver} before the backends are called: replaying the journal and
+ * computing the next fire time of every schedule. Options mix daily, cron and one-off schedules.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RearmBenchmark {
+    @Param({"10000", "50000"})
+    public int size;
+
+    private File dir;
+    private ScheduleStore store;
+    private List<SchedulerOption> options;
+    private long now;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = File.createTempFile("rearm", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        store = new ScheduleStore(dir);
+        long start = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        // Rearmed after three days off, so most schedules have missed some occurrences.
+        now = start + TimeUnit.DAYS.toMillis(3);
+        List<SchedulerOption> options = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            SchedulerOption.Builder builder = new SchedulerOption.Builder()
+                    .scheduleId(i)
+                    .scheduleFor(start + (i * 7919L) % TimeUnit.DAYS.toMillis(1))
+                    .scheduleAction("ACTION_BENCHMARK");
+            switch (i % 3) {
+                case 0:
+                    builder.recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME);
+                    break;
+                case 1:
+                    builder.cron("*/15 9-17 * * 1-5");
+                    break;
+                default:
+                    builder.recurringType(SchedulerCompat.OCCUR_ONCE);
+                    break;
+            }
+            options.add(builder.build());
+        }
+        store.putAll(options);
+        this.options = store.getAll();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public int replay() {
+        return new ScheduleStore(dir).size();
+    }
+
+    @Benchmark
+    public long[] nextTriggers() {
+        long[] triggerAtMillis = RearmReceiver.getNextTriggers(store, options, now);
+        store.setNextTriggers(options, triggerAtMillis);
+        return triggerAtMillis;
+    }
+}
@@ -0,0 +1,107 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexed {@link ScheduleStore} queries against the full scan callers had to do before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScheduleQueryBenchmark {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private File dir;
+    private ScheduleStore store;
+    private long start;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = File.createTempFile("schedule-query", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        store = new ScheduleStore(dir);
+        start = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        List<SchedulerOption> options = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            options.add(new SchedulerOption.Builder()
+                    .scheduleId(i)
+                    .scheduleName("benchmark-" + (i % 100))
+                    .scheduleFor(start + (i * 7919L) % TimeUnit.DAYS.toMillis(1))
+                    .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                    .scheduleAction("ACTION_BENCHMARK")
+                    .build());
+        }
+        store.putAll(options);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public List<SchedulerOption> nextDue() {
+        return store.nextDue(10);
+    }
+
+    @Benchmark
+    public List<SchedulerOption> nextDueByScan() {
+        List<SchedulerOption> options = store.getAll();
+        Collections.sort(options, new Comparator<SchedulerOption>() {
+            @Override
+            public int compare(SchedulerOption o1, SchedulerOption o2) {
+                return Long.compare(o1.getScheduleFor(), o2.getScheduleFor());
+            }
+        });
+        return options.subList(0, Math.min(10, options.size()));
+    }
+
+    @Benchmark
+    public List<SchedulerOption> dueBetween() {
+        return store.dueBetween(start + 6 * HOUR, start + 7 * HOUR);
+    }
+
+    @Benchmark
+    public List<SchedulerOption> findByName() {
+        return store.findByName("benchmark-42");
+    }
+
+    @Benchmark
+    public List<SchedulerOption> findByNameByScan() {
+        List<SchedulerOption> result = new ArrayList<>();
+        for (SchedulerOption option : store.getAll()) {
+            if ("benchmark-42".equals(option.getScheduleName())) {
+                result.add(option);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Add/cancel throughput of {@link ScheduleStore} as the number of threads grows. Every thread
+ * works on its own schedule ids, the common case of independent features scheduling work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScheduleStoreBenchmark {
+    private static final int IDS_PER_THREAD = 1024;
+
+    private final AtomicInteger threads = new AtomicInteger();
+    private File dir;
+    private ScheduleStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = File.createTempFile("schedule-store", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        store = new ScheduleStore(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addThenCancel1(Worker worker) {
+        worker.addThenCancel(store);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void addThenCancel2(Worker worker) {
+        worker.addThenCancel(store);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addThenCancel4(Worker worker) {
+        worker.addThenCancel(store);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void addThenCancel8(Worker worker) {
+        worker.addThenCancel(store);
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        private SchedulerOption[] options;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ScheduleStoreBenchmark benchmark) {
+            int firstId = benchmark.threads.getAndIncrement() * IDS_PER_THREAD;
+            long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+            options = new SchedulerOption[IDS_PER_THREAD];
+            for (int i = 0; i < IDS_PER_THREAD; i++) {
+                options[i] = new SchedulerOption.Builder()
+                        .scheduleId(firstId + i)
+                        .scheduleName("benchmark-" + (firstId + i))
+                        .scheduleFor(scheduleFor)
+                        .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                        .scheduleAction("ACTION_BENCHMARK")
+                        .build();
+            }
+        }
+
+        void addThenCancel(ScheduleStore store) {
+            SchedulerOption option = options[next];
+            next = (next + 1) & (IDS_PER_THREAD - 1);
+            store.put(option);
+            store.remove(option.getScheduleId());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.tech21.lunart.scheduler.compat;
+
+import com.tech21.lunart.scheduler.compat.v21.SchedulerService;
+import com.tech21.lunart.scheduler.compat.v4.AlarmService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Add/cancel cost of every backend engine at different registry sizes, against the in-memory
+ * system services of {@link BenchmarkContext}. The backends are singletons, so every trial
+ * needs a fork of its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SchedulerBackendBenchmark {
+    private static final String ACTION = "ACTION_BENCHMARK";
+
+    @Param({"ALARM_PER_SCHEDULE", "SINGLE_ALARM", "JOB_PER_SCHEDULE", "MULTIPLEXED"})
+    public String engine;
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private BenchmarkContext context;
+    private IScheduler<?> scheduler;
+    private List<SchedulerOption> options;
+    private SchedulerOption extraOption;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        context = new BenchmarkContext();
+        switch (engine) {
+            case "ALARM_PER_SCHEDULE":
+                scheduler = AlarmService.with(context).setEngine(AlarmService.ENGINE_ALARM_PER_SCHEDULE);
+                break;
+            case "SINGLE_ALARM":
+                scheduler = AlarmService.with(context).setEngine(AlarmService.ENGINE_SINGLE_ALARM);
+                break;
+            case "JOB_PER_SCHEDULE":
+                scheduler = SchedulerService.with(context).setEngine(SchedulerService.ENGINE_JOB_PER_SCHEDULE);
+                break;
+            case "MULTIPLEXED":
+                scheduler = SchedulerService.with(context).setEngine(SchedulerService.ENGINE_MULTIPLEXED);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine " + engine);
+        }
+
+        long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        options = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            options.add(new SchedulerOption.Builder()
+                    .scheduleId(i)
+                    .scheduleName("benchmark-" + i)
+                    .scheduleFor(scheduleFor + (i * 7919L) % TimeUnit.DAYS.toMillis(1))
+                    .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                    .scheduleAction(ACTION)
+                    .build());
+        }
+        extraOption = new SchedulerOption.Builder()
+                .scheduleId(size)
+                .scheduleName("benchmark-extra")
+                .scheduleFor(scheduleFor + TimeUnit.HOURS.toMillis(12))
+                .recurringType(SchedulerCompat.OCCUR_ONCE)
+                .scheduleAction(ACTION)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.cancelAll();
+        context.delete();
+    }
+
+    /**
+     * Fills the registry before each iteration. Filling it before each call to {@link #cancelAll}
+     * would spend the whole run rebuilding 100k schedules for a single measured call.
+     */
+    @Setup(Level.Iteration)
+    public void fill() {
+        scheduler.addAll(options);
+    }
+
+    @Benchmark
+    public IScheduler<?> addThenCancel() {
+        scheduler.add(extraOption);
+        scheduler.cancel(extraOption.getScheduleId());
+        return scheduler;
+    }
+
+    /**
+     * Timed once per iteration on the registry {@link #fill} left, so it takes more iterations
+     * than the other benchmarks to settle.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public IScheduler<?> cancelAll() {
+        scheduler.cancelAll();
+        return scheduler;
+    }
+}
@@ -0,0 +1,73 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.PersistableBundle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SchedulerOptionBenchmark {
+    private static final String ACTION = "ACTION_BENCHMARK";
+
+    private BroadcastReceiver receiver;
+    private long scheduleFor;
+    private SchedulerOption option;
+    private PersistableBundle persistableBundle;
+
+    @Setup
+    public void setUp() {
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // no-op
+            }
+        };
+        scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(365);
+        option = build();
+        persistableBundle = new SchedulerOption.Builder().toPersistableBundle(option);
+    }
+
+    @Benchmark
+    public SchedulerOption build() {
+        return new SchedulerOption.Builder()
+                .scheduleId(42)
+                .scheduleName("benchmark")
+                .scheduleFor(scheduleFor)
+                .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                .scheduleReceiver(ACTION, receiver)
+                .build();
+    }
+
+    @Benchmark
+    public Bundle toBundle() {
+        return new SchedulerOption.Builder().toBundle(option);
+    }
+
+    @Benchmark
+    public PersistableBundle toPersistableBundle() {
+        return new SchedulerOption.Builder().toPersistableBundle(option);
+    }
+
+    @Benchmark
+    public Bundle toBundleFromPersistableBundle() {
+        return new SchedulerOption.Builder().toBundle(persistableBundle);
+    }
+
+    @Benchmark
+    public SchedulerOption fromBundle() {
+        return new SchedulerOption.Builder().fromBundle(persistableBundle);
+    }
+}
@@ -0,0 +1,86 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.os.Bundle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding an option into its intent extra and reading it back on fire, with one Bundle entry
+ * per field against a single {@link SchedulerOptionCodec} byte array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SchedulerOptionCodecBenchmark {
+    private SchedulerOption option;
+    private Bundle bundle;
+    private byte[] encoded;
+    private final SchedulerOptionCodec.View view = new SchedulerOptionCodec.View();
+
+    @Setup
+    public void setUp() {
+        option = new SchedulerOption.Builder()
+                .scheduleId(42)
+                .scheduleName("benchmark")
+                .scheduleFor(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1))
+                .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                .tolerance(TimeUnit.MINUTES.toMillis(5))
+                .group("benchmarks")
+                .scheduleAction("ACTION_BENCHMARK")
+                .build();
+        bundle = new SchedulerOption.Builder().toBundle(option);
+        encoded = SchedulerOptionCodec.encode(option);
+    }
+
+    @Benchmark
+    public Bundle encodeBundle() {
+        return new SchedulerOption.Builder().toBundle(option);
+    }
+
+    @Benchmark
+    public Bundle encodeCodec() {
+        Bundle extras = new Bundle();
+        extras.putByteArray(SchedulerOption.ENCODED_OPTION_KEY, SchedulerOptionCodec.encode(option));
+        return extras;
+    }
+
+    /**
+     * What a fire reads before dispatching: id, fire time, recurrence and action.
+     */
+    @Benchmark
+    public void readBundle(Blackhole blackhole) {
+        blackhole.consume(bundle.getInt(SchedulerOption.SCHEDULE_ID_KEY, -1));
+        blackhole.consume(bundle.getLong(SchedulerOption.SCHEDULE_FOR_KEY, 0));
+        blackhole.consume(bundle.getInt(SchedulerOption.RECURRING_TYPE_KEY, -1));
+        blackhole.consume(bundle.getString(SchedulerOption.SCHEDULE_RECEIVER_ACTION_NAME_KEY));
+    }
+
+    @Benchmark
+    public void readView(Blackhole blackhole) {
+        view.wrap(encoded);
+        blackhole.consume(view.getScheduleId());
+        blackhole.consume(view.getScheduleFor());
+        blackhole.consume(view.getRecurringType());
+        blackhole.consume(view.getActionName());
+    }
+
+    @Benchmark
+    public SchedulerOption decodeBundle() {
+        SchedulerOption.Builder builder = new SchedulerOption.Builder();
+        return builder.fromBundle(builder.toPersistableBundle(option));
+    }
+
+    @Benchmark
+    public SchedulerOption decodeCodec() {
+        return SchedulerOptionCodec.decode(encoded);
+    }
+}
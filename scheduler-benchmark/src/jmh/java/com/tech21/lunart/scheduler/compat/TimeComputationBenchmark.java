@@ -0,0 +1,63 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latency of a daily job is computed the way {@code SchedulerService#getMinimumLatency}
+ * does for a trigger in the past. The {@code calendar*} benchmarks keep the previous
+ * {@link Calendar} based implementations as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimeComputationBenchmark {
+    private long pastTriggerAtMillis;
+
+    @Setup
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        pastTriggerAtMillis = now - TimeUnit.DAYS.toMillis(3) - TimeUnit.HOURS.toMillis(5);
+    }
+
+    @Benchmark
+    public long scheduleFor() {
+        return SchedulerCompat.scheduleFor(9, 30);
+    }
+
+    @Benchmark
+    public long minimumLatencyForPastDailyTrigger() {
+        long now = SchedulerCompat.getClock().currentTimeMillis();
+        return LocalTimeCalculator.getDefault().nextDailyTriggerAfter(pastTriggerAtMillis, now) - now;
+    }
+
+    @Benchmark
+    public long calendarScheduleFor() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(System.currentTimeMillis());
+        calendar.set(Calendar.HOUR_OF_DAY, 9);
+        calendar.set(Calendar.MINUTE, 30);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    @Benchmark
+    public long calendarMinimumLatencyForPastDailyTrigger() {
+        long now = System.currentTimeMillis();
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(pastTriggerAtMillis);
+        while (cal.getTimeInMillis() <= now) {
+            cal.add(Calendar.DATE, 1);
+        }
+        return cal.getTimeInMillis() - now;
+    }
+}
@@ -0,0 +1,36 @@
+package dalvik.system;
+
+import java.lang.reflect.Array;
+
+/**
+ * Stands in for the runtime class, whose natives only exist on a device. Arrays are plain JVM
+ * arrays.
+ */
+public final class VMRuntime {
+    private static final VMRuntime THE_ONE = new VMRuntime();
+
+    private int targetSdkVersion = 28;
+
+    private VMRuntime() {
+    }
+
+    public static VMRuntime getRuntime() {
+        return THE_ONE;
+    }
+
+    public boolean is64Bit() {
+        return true;
+    }
+
+    public synchronized int getTargetSdkVersion() {
+        return targetSdkVersion;
+    }
+
+    public synchronized void setTargetSdkVersion(int targetSdkVersion) {
+        this.targetSdkVersion = targetSdkVersion;
+    }
+
+    public Object newUnpaddedArray(Class<?> componentType, int length) {
+        return Array.newInstance(componentType, length);
+    }
+}
@@ -0,0 +1,110 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares per-item and batch scheduling throughput against the real system services, which is
+ * where the per-item cost (receiver registration, state commits and binder calls) is paid.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BatchSchedulingBenchmark {
+    private static final String TAG = BatchSchedulingBenchmark.class.getSimpleName();
+    private static final int SCHEDULE_COUNT = 500;
+    private static final String ACTION_BENCHMARK = "ACTION_BATCH_SCHEDULING_BENCHMARK";
+
+    private SchedulerCompat scheduler;
+    private List<SchedulerOption> options;
+    private int[] scheduleIds;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        scheduler = SchedulerCompat.with(context);
+        scheduler.cancelAll();
+
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // no-op
+            }
+        };
+        long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        options = new ArrayList<>(SCHEDULE_COUNT);
+        scheduleIds = new int[SCHEDULE_COUNT];
+        for (int i = 0; i < SCHEDULE_COUNT; i++) {
+            options.add(new SchedulerOption.Builder()
+                    .scheduleId(i)
+                    .scheduleName("benchmark-" + i)
+                    .scheduleFor(scheduleFor + i)
+                    .recurringType(SchedulerCompat.OCCUR_ONCE)
+                    .scheduleReceiver(ACTION_BENCHMARK, receiver)
+                    .build());
+            scheduleIds[i] = i;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.cancel(scheduleIds);
+    }
+
+    @Test
+    public void addPerItemVersusBatch() {
+        long start = System.nanoTime();
+        for (SchedulerOption option : options) {
+            scheduler.add(option);
+        }
+        long perItemNanos = System.nanoTime() - start;
+        scheduler.cancel(scheduleIds);
+
+        start = System.nanoTime();
+        scheduler.addAll(options);
+        long batchNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        scheduler.addAll(options);
+        long unchangedBatchNanos = System.nanoTime() - start;
+
+        report("add", perItemNanos);
+        report("addAll", batchNanos);
+        report("addAll (unchanged)", unchangedBatchNanos);
+    }
+
+    @Test
+    public void cancelPerItemVersusBatch() {
+        scheduler.addAll(options);
+        long start = System.nanoTime();
+        for (int scheduleId : scheduleIds) {
+            scheduler.cancel(scheduleId);
+        }
+        long perItemNanos = System.nanoTime() - start;
+
+        scheduler.addAll(options);
+        start = System.nanoTime();
+        scheduler.cancel(scheduleIds);
+        long batchNanos = System.nanoTime() - start;
+
+        report("cancel", perItemNanos);
+        report("cancel(int[])", batchNanos);
+    }
+
+    private static void report(String operation, long elapsedNanos) {
+        double opsPerSecond = SCHEDULE_COUNT / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        Log.i(TAG, String.format("%s: %d schedules in %.2f ms (%.0f ops/s)",
+                operation, SCHEDULE_COUNT, elapsedNanos / 1e6, opsPerSecond));
+    }
+}
@@ -0,0 +1,61 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time the calling thread spends creating the scheduler and adding a first schedule, as an
+ * {@code Application.onCreate()} would, with eager and with deferred initialization. The
+ * schedule journal is only replayed once per process, so run each test in a fresh one, e.g.
+ * with {@code -e class com.tech21.lunart.scheduler.compat.StartupBenchmark#eagerInit}, to
+ * include it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    private static final String TAG = StartupBenchmark.class.getSimpleName();
+    private static final String ACTION_BENCHMARK = "ACTION_STARTUP_BENCHMARK";
+    private static final int SCHEDULE_ID = 0;
+
+    @Test
+    public void eagerInit() {
+        measure("eager", false);
+    }
+
+    @Test
+    public void deferredInit() {
+        measure("deferred", true);
+    }
+
+    private static void measure(String mode, boolean deferInit) {
+        Context context = InstrumentationRegistry.getTargetContext();
+        SchedulerOption option = new SchedulerOption.Builder()
+                .scheduleId(SCHEDULE_ID)
+                .scheduleFor(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1))
+                .recurringType(SchedulerCompat.OCCUR_ONCE)
+                .scheduleAction(ACTION_BENCHMARK)
+                .build();
+
+        long start = System.nanoTime();
+        SchedulerCompat scheduler = new SchedulerCompat(context, deferInit,
+                deferInit ? AsyncTask.THREAD_POOL_EXECUTOR : null);
+        scheduler.add(option);
+        long elapsedNanos = System.nanoTime() - start;
+
+        // Waits for the deferred setup and the queued add.
+        scheduler.getNextTriggerAt(SCHEDULE_ID);
+        long readyNanos = System.nanoTime() - start;
+        scheduler.cancel(SCHEDULE_ID);
+        scheduler.onStop();
+
+        Log.i(TAG, String.format("%s: caller blocked for %.2f ms, ready after %.2f ms",
+                mode, elapsedNanos / 1e6, readyNanos / 1e6));
+    }
+}
@@ -0,0 +1,46 @@
+package com.tech21.lunart.scheduler.compat;
+
+/**
+ * Outcome of {@link SchedulerCompat#addIfChanged(java.util.Collection)}.
+ */
+public final class AddResult {
+    private final int added;
+    private final int updated;
+    private final int unchanged;
+
+    AddResult(int added, int updated, int unchanged) {
+        this.added = added;
+        this.updated = updated;
+        this.unchanged = unchanged;
+    }
+
+    /**
+     * @return how many options had no schedule with their id yet.
+     */
+    public int getAdded() {
+        return added;
+    }
+
+    /**
+     * @return how many options replaced a schedule with the same id but other content.
+     */
+    public int getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return how many options were registered already and left alone.
+     */
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    @Override
+    public String toString() {
+        return "AddResult{" +
+                "added=" + added +
+                ", updated=" + updated +
+                ", unchanged=" + unchanged +
+                '}';
+    }
+}
@@ -0,0 +1,16 @@
+package com.tech21.lunart.scheduler.compat;
+
+/**
+ * Source of wall-clock time for the library. Replace it with
+ * {@link SchedulerCompat#setClock(Clock)}, e.g. with a {@link VirtualClock} in tests.
+ */
+public interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long currentTimeMillis();
+}
@@ -0,0 +1,376 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.PowerManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import com.tech21.lunart.scheduler.compat.v21.SchedulerService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.tech21.lunart.scheduler.compat.SchedulerCompat.CONSTRAINT_BATTERY_NOT_LOW;
+import static com.tech21.lunart.scheduler.compat.SchedulerCompat.CONSTRAINT_CHARGING;
+import static com.tech21.lunart.scheduler.compat.SchedulerCompat.CONSTRAINT_DEVICE_IDLE;
+import static com.tech21.lunart.scheduler.compat.SchedulerCompat.CONSTRAINT_UNMETERED_NETWORK;
+
+/**
+ * Holds the fires of schedules whose {@link SchedulerCompat.Constraint}s aren't met, wherever no
+ * job scheduler enforces them: alarms before O and the multiplexed job engine.
+ *
+ * Held fires are kept in a pending set, mirrored to a small file so that they outlive the
+ * process, and released in one batch once conditions change. From O on, manifest receivers
+ * no longer get these broadcasts, so the constraints are handed to the job scheduler instead:
+ * each combination of them that is held gets a release job carrying it. Before O, while
+ * anything is held, {@link ConditionReceiver} is enabled in the manifest for power and
+ * connectivity changes, and registered at runtime for the screen going off and Doze, which
+ * manifest receivers don't get. One-off schedules stay in the {@link ScheduleStore} until
+ * released, so a held fire of a cancelled or replaced schedule is dropped.
+ *
+ * The conditions approximate the job scheduler ones: the device is idle when it dozes or its
+ * screen is off, and the battery is low at 15% or less unless charging.
+ */
+public class ConditionMonitor {
+    private static final String TAG = ConditionMonitor.class.getSimpleName();
+    private static final String HELD_FILE = "scheduler-compat-held";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private final Context context;
+    private final File file;
+    private final Map<Integer, Held> pending = new LinkedHashMap<>();
+    private final ConditionReceiver receiver = new ConditionReceiver();
+    // Serializes writing the file and toggling the receiver, which both happen outside the
+    // lock on pending so that dispatching never waits for them.
+    private final Object flushLock = new Object();
+    private boolean listening;
+    // Bit i is set while the release job for constraints i is pending, from O on.
+    private int armedReleaseJobs;
+
+    private static volatile ConditionMonitor sInstance;
+
+    private ConditionMonitor(@NonNull Context context) {
+        this.context = context;
+        this.file = new File(context.getFilesDir(), HELD_FILE);
+        read();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // A release job may be running right now, and scheduling it again would stop it.
+            armedReleaseJobs = SchedulerService.with(context).getArmedReleaseJobs();
+        }
+        flush();
+    }
+
+    public static ConditionMonitor with(@NonNull Context context) {
+        ConditionMonitor instance = sInstance;
+        if (instance == null) {
+            synchronized (ConditionMonitor.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new ConditionMonitor(context.getApplicationContext());
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Holds the fire of {@code option} planned for {@code triggerAtMillis} unless its
+     * constraints are met. A later fire of the same schedule replaces a held one.
+     *
+     * @return true if the fire has been held, in which case the caller must neither dispatch it
+     * nor remove a one-off schedule from the store.
+     */
+    public boolean holdIfUnmet(@NonNull SchedulerOption option, long triggerAtMillis) {
+        int constraints = option.getConstraints();
+        if (constraints == 0 || areMet(constraints, getMetConstraints())) {
+            return false;
+        }
+
+        synchronized (this) {
+            pending.put(option.getScheduleId(),
+                    new Held(option.getScheduleId(), option.getContentHash(), triggerAtMillis));
+        }
+        flush();
+        return true;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Dispatches every held fire whose constraints are met now, together, and calls
+     * {@code listener} once all of them have completed.
+     */
+    public void release(@NonNull ScheduleDispatcher.OnDispatchCompleteListener listener) {
+        release(0, listener);
+    }
+
+    /**
+     * Like {@link #release(ScheduleDispatcher.OnDispatchCompleteListener)}, from the release job
+     * for {@code satisfied}, which the job scheduler has found met.
+     */
+    public void release(
+            @SchedulerCompat.Constraint int satisfied,
+            @NonNull ScheduleDispatcher.OnDispatchCompleteListener listener
+    ) {
+        boolean changed = false;
+        if (satisfied != 0) {
+            synchronized (flushLock) {
+                // The job has run, so it has to be armed again if anything still needs it.
+                armedReleaseJobs &= ~(1 << satisfied);
+            }
+            changed = true;
+        }
+        ScheduleStore store = ScheduleStore.with(context);
+        List<SchedulerOption> released = new ArrayList<>();
+        List<Long> releasedAt = new ArrayList<>();
+        synchronized (this) {
+            if (!pending.isEmpty()) {
+                int met = getMetConstraints() | satisfied;
+                Iterator<Held> iterator = pending.values().iterator();
+                while (iterator.hasNext()) {
+                    Held held = iterator.next();
+                    SchedulerOption option = store.get(held.scheduleId);
+                    if (option == null || option.getContentHash() != held.contentHash) {
+                        iterator.remove();
+                        changed = true;
+                    } else if (areMet(option.getConstraints(), met)) {
+                        iterator.remove();
+                        changed = true;
+                        released.add(option);
+                        releasedAt.add(held.triggerAtMillis);
+                    }
+                }
+            }
+        }
+        if (changed) {
+            flush();
+        }
+
+        long now = SchedulerCompat.getClock().currentTimeMillis();
+        ScheduleDispatcher.CompletionBarrier barrier = new ScheduleDispatcher.CompletionBarrier(listener);
+        for (int i = 0; i < released.size(); i++) {
+            SchedulerOption option = released.get(i);
+            barrier.expect();
+            ScheduleDispatcher.getInstance().dispatchDue(context, option,
+                    new SchedulerOption.Builder().toBundle(option), releasedAt.get(i), now,
+                    new CancellationSignal(), barrier, System.nanoTime());
+            if (!Recurrence.isRecurring(option)) {
+                store.remove(option.getScheduleId());
+            }
+        }
+        barrier.arrive();
+    }
+
+    private static boolean areMet(int constraints, int met) {
+        return (constraints & ~met) == 0;
+    }
+
+    @SuppressWarnings("deprecation")
+    private int getMetConstraints() {
+        int met = 0;
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+                met |= CONSTRAINT_CHARGING | CONSTRAINT_BATTERY_NOT_LOW;
+            } else if (level >= 0 && scale > 0 && level * 100 > LOW_BATTERY_PERCENT * scale) {
+                met |= CONSTRAINT_BATTERY_NOT_LOW;
+            }
+        }
+
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager != null) {
+            NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+            if (network != null && network.isConnected() && !connectivityManager.isActiveNetworkMetered()) {
+                met |= CONSTRAINT_UNMETERED_NETWORK;
+            }
+        }
+
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager != null) {
+            boolean idle;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && powerManager.isDeviceIdleMode()) {
+                idle = true;
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+                idle = !powerManager.isInteractive();
+            } else {
+                idle = !powerManager.isScreenOn();
+            }
+            if (idle) {
+                met |= CONSTRAINT_DEVICE_IDLE;
+            }
+        }
+        return met;
+    }
+
+    /**
+     * Brings the file and the receiver in line with the pending set. Each call reads the set
+     * afresh, so whichever runs last leaves both matching it.
+     */
+    private void flush() {
+        synchronized (flushLock) {
+            List<Held> snapshot;
+            synchronized (this) {
+                snapshot = new ArrayList<>(pending.values());
+            }
+            write(snapshot);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                updateReleaseJobs(snapshot);
+            } else {
+                updateListening(!snapshot.isEmpty());
+            }
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private void updateReleaseJobs(@NonNull List<Held> held) {
+        ScheduleStore store = ScheduleStore.with(context);
+        int needed = 0;
+        for (Held fire : held) {
+            SchedulerOption option = store.get(fire.scheduleId);
+            if (option != null && option.getContentHash() == fire.contentHash) {
+                needed |= 1 << option.getConstraints();
+            }
+        }
+        SchedulerService scheduler = SchedulerService.with(context);
+        for (int constraints = 1; constraints < SchedulerService.RELEASE_JOB_COUNT; constraints++) {
+            int job = 1 << constraints;
+            if ((needed & job) != 0 && (armedReleaseJobs & job) == 0) {
+                scheduler.armReleaseJob(constraints);
+            } else if ((needed & job) == 0 && (armedReleaseJobs & job) != 0) {
+                scheduler.cancelReleaseJob(constraints);
+            }
+        }
+        armedReleaseJobs = needed;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void updateListening(boolean listen) {
+        if (listen == listening) {
+            return;
+        }
+        listening = listen;
+
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, ConditionReceiver.class),
+                listen ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : PackageManager.COMPONENT_ENABLED_STATE_DEFAULT,
+                PackageManager.DONT_KILL_APP);
+        if (listen) {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_POWER_CONNECTED);
+            filter.addAction(Intent.ACTION_BATTERY_OKAY);
+            filter.addAction(Intent.ACTION_SCREEN_OFF);
+            // Deprecated in N, but still delivered to receivers registered at runtime.
+            filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+            }
+            context.registerReceiver(receiver, filter);
+        } else {
+            context.unregisterReceiver(receiver);
+        }
+    }
+
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Held held = new Held(in.readInt(), in.readLong(), in.readLong());
+                pending.put(held.scheduleId, held);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read held fires", e);
+        } finally {
+            close(in);
+        }
+    }
+
+    private void write(@NonNull List<Held> held) {
+        if (held.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                Log.e(TAG, "Unable to delete " + file);
+            }
+            return;
+        }
+        // Written aside and renamed, so a crash never leaves a partial file to be read back.
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(temp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(held.size());
+            for (Held fire : held) {
+                out.writeInt(fire.scheduleId);
+                out.writeLong(fire.contentHash);
+                out.writeLong(fire.triggerAtMillis);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write held fires", e);
+            return;
+        } finally {
+            close(stream);
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Unable to replace " + file);
+        }
+    }
+
+    private static void close(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close held fires", e);
+            }
+        }
+    }
+
+    private static final class Held {
+        final int scheduleId;
+        final long contentHash;
+        final long triggerAtMillis;
+
+        Held(int scheduleId, long contentHash, long triggerAtMillis) {
+            this.scheduleId = scheduleId;
+            this.contentHash = contentHash;
+            this.triggerAtMillis = triggerAtMillis;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Releases the fires held by {@link ConditionMonitor} whenever power, connectivity or idle state
+ * changes. It is only enabled while a fire is held.
+ */
+public class ConditionReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final PendingResult pendingResult = goAsync();
+        ConditionMonitor.with(context).release(new ScheduleDispatcher.OnDispatchCompleteListener() {
+            @Override
+            public void onDispatchComplete() {
+                if (pendingResult != null) {
+                    pendingResult.finish();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,276 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A standard five field cron expression, {@code minute hour day-of-month month day-of-week},
+ * compiled once into one bitset per field.
+ *
+ * Every field accepts {@code *}, single values, ranges ({@code 8-18}), steps ({@code *}{@code /15},
+ * {@code 0-30/5}) and comma separated lists of those. Months and days of week also accept their
+ * three letter English names; Sunday is both {@code 0} and {@code 7}. As in cron, when both the
+ * day-of-month and the day-of-week are restricted a day matching either one fires.
+ *
+ * Times are local wall clock times, resolved with {@link LocalTimeCalculator}.
+ */
+public final class CronExpression {
+    private static final long DAY_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long HOUR_IN_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long MINUTE_IN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // Long enough to reach any Feb 29th.
+    private static final int MAX_SEARCH_DAYS = 8 * 366;
+
+    private static final String[] MONTH_NAMES = {
+        "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"
+    };
+    private static final String[] DAY_OF_WEEK_NAMES = {
+        "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"
+    };
+
+    private final String expression;
+    private final long minutes;     // bits 0-59
+    private final long hours;       // bits 0-23
+    private final long daysOfMonth; // bits 1-31
+    private final long months;      // bits 1-12
+    private final long daysOfWeek;  // bits 0-6, Sunday is 0
+    private final boolean anyDayOfMonth;
+    private final boolean anyDayOfWeek;
+
+    private CronExpression(
+            String expression,
+            long minutes,
+            long hours,
+            long daysOfMonth,
+            long months,
+            long daysOfWeek,
+            boolean anyDayOfMonth,
+            boolean anyDayOfWeek
+    ) {
+        this.expression = expression;
+        this.minutes = minutes;
+        this.hours = hours;
+        this.daysOfMonth = daysOfMonth;
+        this.months = months;
+        this.daysOfWeek = daysOfWeek;
+        this.anyDayOfMonth = anyDayOfMonth;
+        this.anyDayOfWeek = anyDayOfWeek;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code expression} isn't a valid five field expression.
+     */
+    @NonNull
+    public static CronExpression parse(@NonNull String expression) {
+        String[] fields = expression.trim().split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException(
+                    "Cron expression must have 5 fields, got '" + expression + "'");
+        }
+
+        long daysOfWeek = parseField(fields[4], 0, 7, DAY_OF_WEEK_NAMES, 0);
+        if ((daysOfWeek & (1L << 7)) != 0) {
+            daysOfWeek = (daysOfWeek | 1L) & ~(1L << 7);
+        }
+        return new CronExpression(
+                expression,
+                parseField(fields[0], 0, 59, null, 0),
+                parseField(fields[1], 0, 23, null, 0),
+                parseField(fields[2], 1, 31, null, 0),
+                parseField(fields[3], 1, 12, MONTH_NAMES, 1),
+                daysOfWeek,
+                fields[2].startsWith("*"),
+                fields[4].startsWith("*"));
+    }
+
+    @NonNull
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return the first matching instant strictly after {@code afterMillis}, or
+     * {@link Long#MAX_VALUE} if the expression never matches (e.g. {@code 0 0 30 2 *}).
+     */
+    public long nextAfter(long afterMillis) {
+        return nextAfter(afterMillis, LocalTimeCalculator.getDefault());
+    }
+
+    public long nextAfter(long afterMillis, @NonNull LocalTimeCalculator calculator) {
+        long localMillis = calculator.toLocal(afterMillis);
+        // Start at the next whole minute.
+        localMillis = floor(localMillis, MINUTE_IN_MILLIS) + MINUTE_IN_MILLIS;
+
+        while (true) {
+            long match = nextLocalMatch(localMillis);
+            if (match == Long.MAX_VALUE) {
+                return match;
+            }
+            long triggerAtMillis = calculator.toInstant(match);
+            if (triggerAtMillis > afterMillis) {
+                return triggerAtMillis;
+            }
+            // The local time repeats in a DST overlap that we've already passed.
+            localMillis = match + MINUTE_IN_MILLIS;
+        }
+    }
+
+    /**
+     * Finds the first matching local wall time at or after {@code localMillis}.
+     */
+    private long nextLocalMatch(long localMillis) {
+        long epochDay = floor(localMillis, DAY_IN_MILLIS) / DAY_IN_MILLIS;
+        long timeOfDay = localMillis - epochDay * DAY_IN_MILLIS;
+        int hour = (int) (timeOfDay / HOUR_IN_MILLIS);
+        int minute = (int) ((timeOfDay % HOUR_IN_MILLIS) / MINUTE_IN_MILLIS);
+
+        for (int i = 0; i < MAX_SEARCH_DAYS; i++, epochDay++, hour = 0, minute = 0) {
+            // Civil date from the epoch day, see http://howardhinnant.github.io/date_algorithms.html
+            long z = epochDay + 719468;
+            long era = (z >= 0 ? z : z - 146096) / 146097;
+            long dayOfEra = z - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long mp = (5 * dayOfYear + 2) / 153;
+            int dayOfMonth = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+            int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+
+            if ((months & (1L << month)) == 0) {
+                // Skip the rest of the month.
+                epochDay += daysLeftInMonth(dayOfMonth, month, era * 400 + yearOfEra + (month <= 2 ? 1 : 0));
+                continue;
+            }
+            int dayOfWeek = (int) floorMod(epochDay + 4, 7); // 1970-01-01 was a Thursday
+            if (!matchesDay(dayOfMonth, dayOfWeek)) {
+                continue;
+            }
+
+            long candidateHours = hours & (-1L << hour);
+            while (candidateHours != 0) {
+                int h = Long.numberOfTrailingZeros(candidateHours);
+                long candidateMinutes = h == hour ? minutes & (-1L << minute) : minutes;
+                if (candidateMinutes != 0) {
+                    int m = Long.numberOfTrailingZeros(candidateMinutes);
+                    return epochDay * DAY_IN_MILLIS + h * HOUR_IN_MILLIS + m * MINUTE_IN_MILLIS;
+                }
+                candidateHours &= candidateHours - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private boolean matchesDay(int dayOfMonth, int dayOfWeek) {
+        boolean dayOfMonthMatches = (daysOfMonth & (1L << dayOfMonth)) != 0;
+        boolean dayOfWeekMatches = (daysOfWeek & (1L << dayOfWeek)) != 0;
+        if (anyDayOfMonth || anyDayOfWeek) {
+            return dayOfMonthMatches && dayOfWeekMatches;
+        }
+        return dayOfMonthMatches || dayOfWeekMatches;
+    }
+
+    private static int daysLeftInMonth(int dayOfMonth, int month, long year) {
+        int length;
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                length = leap ? 29 : 28;
+                break;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                length = 30;
+                break;
+            default:
+                length = 31;
+        }
+        return length - dayOfMonth;
+    }
+
+    private static long parseField(String field, int min, int max, String[] names, int nameOffset) {
+        long bits = 0;
+        for (String part : TextUtils.split(field, ",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = parseValue(part.substring(slash + 1), 1, max, null, 0);
+                part = part.substring(0, slash);
+            }
+
+            int from;
+            int to;
+            if (part.equals("*")) {
+                from = min;
+                to = max;
+            } else {
+                int dash = part.indexOf('-');
+                if (dash >= 0) {
+                    from = parseValue(part.substring(0, dash), min, max, names, nameOffset);
+                    to = parseValue(part.substring(dash + 1), min, max, names, nameOffset);
+                } else {
+                    from = parseValue(part, min, max, names, nameOffset);
+                    to = slash >= 0 ? max : from;
+                }
+                if (from > to) {
+                    throw new IllegalArgumentException("Invalid cron range '" + part + "'");
+                }
+            }
+
+            for (int value = from; value <= to; value += step) {
+                bits |= 1L << value;
+            }
+        }
+        return bits;
+    }
+
+    private static int parseValue(String value, int min, int max, String[] names, int nameOffset) {
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equalsIgnoreCase(value)) {
+                    return i + nameOffset;
+                }
+            }
+        }
+
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cron value '" + value + "'", e);
+        }
+        if (parsed < min || parsed > max) {
+            throw new IllegalArgumentException(
+                    "Cron value " + parsed + " is out of range [" + min + ", " + max + "]");
+        }
+        return parsed;
+    }
+
+    private static long floor(long value, long unit) {
+        return value - floorMod(value, unit);
+    }
+
+    private static long floorMod(long value, long unit) {
+        long mod = value % unit;
+        return mod < 0 ? mod + unit : mod;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CronExpression that = (CronExpression) o;
+        return expression.equals(that.expression);
+    }
+
+    @Override
+    public int hashCode() {
+        return expression.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -0,0 +1,137 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.tech21.lunart.scheduler.compat.metrics.SchedulerMetrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Admission stage in front of the handler executor. At most {@code maxConcurrent} tasks run at
+ * a time and up to {@code capacity} more wait in FIFO order; a task that finds the queue full,
+ * or that the executor refuses, is rejected instead. Each task is handed to the executor only
+ * once a slot is free, so the executor itself never queues.
+ */
+class DispatchQueue {
+    interface Task extends Runnable {
+        void onRejected();
+    }
+
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private int maxConcurrent;
+    private int capacity;
+    private int running;
+
+    DispatchQueue(int maxConcurrent, int capacity) {
+        setLimits(maxConcurrent, capacity);
+    }
+
+    /**
+     * A lower limit takes effect as running tasks finish, and tasks already queued stay queued
+     * even if they are over a lower capacity.
+     */
+    void setLimits(int maxConcurrent, int capacity) {
+        if (maxConcurrent < 1 || capacity < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid dispatch limits: " + maxConcurrent + ", " + capacity);
+        }
+        List<Entry> started = new ArrayList<>();
+        synchronized (this) {
+            this.maxConcurrent = maxConcurrent;
+            this.capacity = capacity;
+            while (running < maxConcurrent && !pending.isEmpty()) {
+                running++;
+                started.add(pending.poll());
+            }
+        }
+        for (Entry entry : started) {
+            start(entry);
+        }
+    }
+
+    synchronized int getDepth() {
+        return pending.size();
+    }
+
+    synchronized int getRunning() {
+        return running;
+    }
+
+    void submit(@NonNull Executor executor, @NonNull Task task) {
+        Entry entry = new Entry(executor, task, System.nanoTime());
+        synchronized (this) {
+            if (running >= maxConcurrent) {
+                if (pending.size() < capacity) {
+                    pending.add(entry);
+                    SchedulerMetrics.getInstance().recordDispatchQueued(pending.size());
+                    return;
+                }
+                entry = null;
+            } else {
+                running++;
+            }
+        }
+        if (entry == null) {
+            SchedulerMetrics.getInstance().recordDispatchRejected();
+            task.onRejected();
+            return;
+        }
+        start(entry);
+    }
+
+    private void start(@Nullable Entry entry) {
+        while (entry != null) {
+            try {
+                entry.executor.execute(entry);
+                return;
+            } catch (RejectedExecutionException e) {
+                SchedulerMetrics.getInstance().recordDispatchRejected();
+                entry.task.onRejected();
+                entry = next();
+            }
+        }
+    }
+
+    /**
+     * Hands the slot of a finished task to the oldest queued one, or frees it.
+     */
+    @Nullable
+    private synchronized Entry next() {
+        // Over a limit that has just been lowered, the slot is given up.
+        if (running <= maxConcurrent) {
+            Entry entry = pending.poll();
+            if (entry != null) {
+                return entry;
+            }
+        }
+        running--;
+        return null;
+    }
+
+    private final class Entry implements Runnable {
+        final Executor executor;
+        final Task task;
+        final long submittedAtNanos;
+
+        Entry(@NonNull Executor executor, @NonNull Task task, long submittedAtNanos) {
+            this.executor = executor;
+            this.task = task;
+            this.submittedAtNanos = submittedAtNanos;
+        }
+
+        @Override
+        public void run() {
+            SchedulerMetrics.getInstance().recordDispatchWait(System.nanoTime() - submittedAtNanos);
+            try {
+                task.run();
+            } finally {
+                start(next());
+            }
+        }
+    }
+}
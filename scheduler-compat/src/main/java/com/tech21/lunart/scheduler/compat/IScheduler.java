@@ -2,9 +2,14 @@ package com.tech21.lunart.scheduler.compat;
 
 import android.support.annotation.NonNull;
 
+import java.util.Collection;
+
 public interface IScheduler<T> {
     T add(@NonNull SchedulerOption options);
+    T addAll(@NonNull Collection<SchedulerOption> options);
     void cancel(int scheduleId);
+    void cancel(@NonNull int[] scheduleIds);
+    void cancelGroup(@NonNull String group);
     void cancelAll();
 
     interface Lifecycle {
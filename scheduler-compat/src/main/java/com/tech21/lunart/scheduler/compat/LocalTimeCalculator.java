@@ -0,0 +1,269 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.support.annotation.NonNull;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall clock arithmetic on epoch millis, without {@link java.util.Calendar}.
+ *
+ * The zone offsets of the most recently used local days are cached, together with the DST
+ * transition instant when a day has one, so repeated lookups around "now" don't allocate.
+ * A wall time skipped by a DST gap resolves to the same instant shifted forward by the gap,
+ * and a wall time repeated by an overlap resolves to its earlier instant.
+ *
+ * Call {@link #invalidate()} once the device time zone has changed.
+ */
+public final class LocalTimeCalculator {
+    private static final long DAY_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long HOUR_IN_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long MINUTE_IN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // Widest DST shift looked for around a local day boundary.
+    private static final long TRANSITION_SLACK_MILLIS = TimeUnit.HOURS.toMillis(3);
+    private static final long NO_TRANSITION = Long.MIN_VALUE;
+
+    private static final LocalTimeCalculator sDefault = new LocalTimeCalculator();
+
+    private final boolean followsDefaultZone;
+    private volatile TimeZone zone;
+    private volatile Day recent;
+    private volatile Day previous;
+
+    /**
+     * Offsets of a single local day, [{@link #localStart}, {@code localStart + 1 day}).
+     * If the offset changes within the day, it changes from {@link #startOffset} to
+     * {@link #endOffset} at {@link #transitionAt}.
+     */
+    private static final class Day {
+        final TimeZone zone;
+        final long localStart;
+        final long start;
+        final long end;
+        final int startOffset;
+        final int endOffset;
+        final long transitionAt;
+
+        Day(TimeZone zone, long localStart, long start, long end,
+            int startOffset, int endOffset, long transitionAt) {
+            this.zone = zone;
+            this.localStart = localStart;
+            this.start = start;
+            this.end = end;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.transitionAt = transitionAt;
+        }
+
+        boolean containsInstant(TimeZone zone, long millis) {
+            return this.zone == zone && millis >= start && millis < end;
+        }
+
+        boolean isDay(TimeZone zone, long localDay) {
+            return this.zone == zone && localStart == localDay;
+        }
+
+        int offsetAt(long millis) {
+            return transitionAt == NO_TRANSITION || millis < transitionAt ? startOffset : endOffset;
+        }
+
+        long toInstant(long localMillis) {
+            if (transitionAt == NO_TRANSITION) {
+                return localMillis - startOffset;
+            }
+
+            long before = localMillis - startOffset;
+            if (before < transitionAt) {
+                return before;
+            }
+            long after = localMillis - endOffset;
+            if (after >= transitionAt) {
+                return after;
+            }
+            // Skipped by a gap: keep the pre-transition offset, which lands past the gap.
+            return before;
+        }
+    }
+
+    public LocalTimeCalculator(@NonNull TimeZone zone) {
+        this.followsDefaultZone = false;
+        this.zone = zone;
+    }
+
+    private LocalTimeCalculator() {
+        this.followsDefaultZone = true;
+        this.zone = TimeZone.getDefault();
+    }
+
+    /**
+     * @return the calculator for the device time zone.
+     */
+    @NonNull
+    public static LocalTimeCalculator getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Drops the cached offsets and, for {@link #getDefault()}, picks up the current device
+     * time zone.
+     */
+    public void invalidate() {
+        if (followsDefaultZone) {
+            zone = TimeZone.getDefault();
+        }
+        recent = null;
+        previous = null;
+    }
+
+    @NonNull
+    public TimeZone getTimeZone() {
+        return zone;
+    }
+
+    /**
+     * @return the instant of {@code hourOfDay:minutes} on the local day containing {@code millis}.
+     */
+    public long atTimeOfDay(long millis, int hourOfDay, int minutes) {
+        Day day = dayOf(millis);
+        return day.toInstant(day.localStart + hourOfDay * HOUR_IN_MILLIS + minutes * MINUTE_IN_MILLIS);
+    }
+
+    /**
+     * @return the first instant of {@code hourOfDay:minutes} strictly after {@code afterMillis}.
+     */
+    public long nextOccurrence(long afterMillis, int hourOfDay, int minutes) {
+        long wallTime = hourOfDay * HOUR_IN_MILLIS + minutes * MINUTE_IN_MILLIS;
+        Day day = dayOf(afterMillis);
+        long triggerAtMillis = day.toInstant(day.localStart + wallTime);
+        if (triggerAtMillis > afterMillis) {
+            return triggerAtMillis;
+        }
+        Day nextDay = localDay(day.localStart + DAY_IN_MILLIS);
+        return nextDay.toInstant(nextDay.localStart + wallTime);
+    }
+
+    /**
+     * @return the instant with the same wall time as {@code millis}, {@code days} local days
+     * later (or earlier, when negative).
+     */
+    public long addDays(long millis, int days) {
+        long localMillis = millis + offsetAt(millis);
+        long localStart = floorDay(localMillis);
+        Day day = localDay(localStart + days * DAY_IN_MILLIS);
+        return day.toInstant(day.localStart + (localMillis - localStart));
+    }
+
+    /**
+     * Returns the first instant strictly after {@code afterMillis} with the same wall time as
+     * {@code triggerAtMillis}, skipping every daily occurrence that has been missed.
+     */
+    public long nextDailyTriggerAfter(long triggerAtMillis, long afterMillis) {
+        long localMillis = triggerAtMillis + offsetAt(triggerAtMillis);
+        long wallTime = localMillis - floorDay(localMillis);
+
+        Day day = dayOf(Math.max(afterMillis, triggerAtMillis));
+        long nextTriggerAtMillis = day.toInstant(day.localStart + wallTime);
+        if (nextTriggerAtMillis > afterMillis && nextTriggerAtMillis > triggerAtMillis) {
+            return nextTriggerAtMillis;
+        }
+        Day nextDay = localDay(day.localStart + DAY_IN_MILLIS);
+        return nextDay.toInstant(nextDay.localStart + wallTime);
+    }
+
+    /**
+     * @return the local wall time of {@code millis}, as millis since the local epoch.
+     */
+    long toLocal(long millis) {
+        return millis + offsetAt(millis);
+    }
+
+    /**
+     * @return the instant of the local wall time {@code localMillis}.
+     */
+    long toInstant(long localMillis) {
+        long localStart = floorDay(localMillis);
+        return localDay(localStart).toInstant(localMillis);
+    }
+
+    private int offsetAt(long millis) {
+        TimeZone zone = this.zone;
+        Day day = recent;
+        if (day != null && day.containsInstant(zone, millis)) {
+            return day.offsetAt(millis);
+        }
+        day = previous;
+        if (day != null && day.containsInstant(zone, millis)) {
+            return day.offsetAt(millis);
+        }
+        return zone.getOffset(millis);
+    }
+
+    private Day dayOf(long millis) {
+        TimeZone zone = this.zone;
+        Day day = recent;
+        if (day != null && day.containsInstant(zone, millis)) {
+            return day;
+        }
+        day = previous;
+        if (day != null && day.containsInstant(zone, millis)) {
+            return day;
+        }
+        return cache(computeDay(zone, floorDay(millis + zone.getOffset(millis))));
+    }
+
+    private Day localDay(long localStart) {
+        TimeZone zone = this.zone;
+        Day day = recent;
+        if (day != null && day.isDay(zone, localStart)) {
+            return day;
+        }
+        day = previous;
+        if (day != null && day.isDay(zone, localStart)) {
+            return day;
+        }
+        return cache(computeDay(zone, localStart));
+    }
+
+    private Day cache(Day day) {
+        previous = recent;
+        recent = day;
+        return day;
+    }
+
+    private static Day computeDay(TimeZone zone, long localStart) {
+        long localEnd = localStart + DAY_IN_MILLIS;
+        int rawOffset = zone.getRawOffset();
+        long from = localStart - rawOffset - TRANSITION_SLACK_MILLIS;
+        long to = localEnd - rawOffset + TRANSITION_SLACK_MILLIS;
+        int startOffset = zone.getOffset(from);
+        int endOffset = zone.getOffset(to);
+
+        long transitionAt = NO_TRANSITION;
+        if (startOffset != endOffset) {
+            // Binary search for the first instant at the new offset.
+            long low = from;
+            long high = to;
+            while (high - low > 1) {
+                long mid = low + (high - low) / 2;
+                if (zone.getOffset(mid) == startOffset) {
+                    low = mid;
+                } else {
+                    high = mid;
+                }
+            }
+            transitionAt = high;
+        }
+
+        Day day = new Day(zone, localStart, 0, 0, startOffset, endOffset, transitionAt);
+        return new Day(zone, localStart, day.toInstant(localStart), day.toInstant(localEnd),
+                startOffset, endOffset, transitionAt);
+    }
+
+    private static long floorDay(long localMillis) {
+        long day = localMillis / DAY_IN_MILLIS;
+        if (localMillis % DAY_IN_MILLIS < 0) {
+            day--;
+        }
+        return day * DAY_IN_MILLIS;
+    }
+}
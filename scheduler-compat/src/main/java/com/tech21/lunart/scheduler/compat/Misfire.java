@@ -0,0 +1,92 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Occurrences of a schedule that are due when one of its fires is delivered, and which of them
+ * to deliver according to its {@link SchedulerCompat.MisfirePolicy}.
+ *
+ * The backends only arm the next occurrence, so when the device sleeps through several of them
+ * the system delivers a single late fire. Counting from the occurrence that fire was planned
+ * for, the stored anchor, tells how many have been missed.
+ */
+public final class Misfire {
+    /**
+     * Occurrences delivered by {@link SchedulerCompat#MISFIRE_FIRE_ALL} at most.
+     */
+    public static final int MAX_CATCH_UP_FIRES = 32;
+
+    // Bounds the work done for a schedule that has been asleep for a very long time.
+    private static final int MAX_COUNTED = 1024;
+
+    private final long[] triggerTimes;
+    private final int missedCount;
+
+    private Misfire(@NonNull long[] triggerTimes, int missedCount) {
+        this.triggerTimes = triggerTimes;
+        this.missedCount = missedCount;
+    }
+
+    /**
+     * @param triggerAtMillis the occurrence the fire has been planned for.
+     * @param now             when the fire has been delivered.
+     */
+    @NonNull
+    public static Misfire resolve(@NonNull SchedulerOption option, long triggerAtMillis, long now) {
+        if (!Recurrence.isRecurring(option)) {
+            return new Misfire(new long[]{triggerAtMillis}, 0);
+        }
+
+        int due = 1;
+        long latestAtMillis = triggerAtMillis;
+        long nextAtMillis;
+        while (due < MAX_COUNTED
+                && (nextAtMillis = Recurrence.getNextTriggerAfter(option, latestAtMillis, latestAtMillis)) <= now) {
+            latestAtMillis = nextAtMillis;
+            due++;
+        }
+
+        switch (option.getMisfirePolicy()) {
+            case SchedulerCompat.MISFIRE_SKIP_TO_NEXT:
+                if (due > 1) {
+                    return new Misfire(new long[0], due);
+                }
+                return new Misfire(new long[]{triggerAtMillis}, 0);
+            case SchedulerCompat.MISFIRE_FIRE_ALL:
+                // The latest occurrences are delivered, the ones before are counted as missed.
+                long[] triggerTimes = new long[Math.min(due, MAX_CATCH_UP_FIRES)];
+                long occurrenceAtMillis = triggerAtMillis;
+                for (int i = 0; i < due - triggerTimes.length; i++) {
+                    occurrenceAtMillis = Recurrence.getNextTriggerAfter(option, occurrenceAtMillis, occurrenceAtMillis);
+                }
+                for (int i = 0; i < triggerTimes.length; i++) {
+                    triggerTimes[i] = occurrenceAtMillis;
+                    occurrenceAtMillis = Recurrence.getNextTriggerAfter(option, occurrenceAtMillis, occurrenceAtMillis);
+                }
+                return new Misfire(triggerTimes, due - triggerTimes.length);
+            default:
+                return new Misfire(new long[]{latestAtMillis}, due - 1);
+        }
+    }
+
+    /**
+     * @return the number of occurrences to deliver, possibly 0.
+     */
+    public int size() {
+        return triggerTimes.length;
+    }
+
+    /**
+     * @return the time of the {@code index}-th occurrence to deliver, oldest first.
+     */
+    public long getTriggerAt(int index) {
+        return triggerTimes[index];
+    }
+
+    /**
+     * @return how many due occurrences before the first delivered one aren't delivered.
+     */
+    public int getMissedCount() {
+        return missedCount;
+    }
+}
@@ -0,0 +1,185 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Files holding the payloads of schedules, so that alarms and jobs only carry a small handle
+ * instead of the data itself. A payload is stored as {@code <schedule id>-<handle>}, where the
+ * handle is a hash of its content, and is memory-mapped when read.
+ *
+ * Payloads are deleted when their schedule is cancelled or replaced by one with another
+ * payload, and once a fired one-off schedule has been handled. {@link #sweep(ScheduleStore)}
+ * collects whatever is left, e.g. one-off schedules delivered through system broadcasts.
+ */
+public final class PayloadStore {
+    private static final String TAG = PayloadStore.class.getSimpleName();
+    private static final String PAYLOAD_DIR = "scheduler-compat-payloads";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final Object lock = new Object();
+
+    private static volatile PayloadStore sInstance;
+
+    private PayloadStore(@NonNull Context context) {
+        this(new File(context.getFilesDir(), PAYLOAD_DIR));
+    }
+
+    @VisibleForTesting
+    PayloadStore(@NonNull File dir) {
+        this.dir = dir;
+    }
+
+    public static PayloadStore with(@NonNull Context context) {
+        PayloadStore instance = sInstance;
+        if (instance == null) {
+            synchronized (PayloadStore.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new PayloadStore(context.getApplicationContext());
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of {@code payload}, never 0.
+     */
+    static long getHandle(@NonNull byte[] payload) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : payload) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Writes the payload of {@code option} unless it is stored already, and deletes any other
+     * payload of the same schedule.
+     */
+    public void write(@NonNull SchedulerOption option) throws IOException {
+        byte[] payload = option.getPayload();
+        if (payload == null) {
+            return;
+        }
+
+        synchronized (lock) {
+            File file = getFile(option.getScheduleId(), option.getPayloadHandle());
+            if (!file.exists()) {
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("Unable to create " + dir);
+                }
+                // Written aside and renamed, so a fire never maps a partial payload.
+                File temp = new File(dir, file.getName() + TEMP_SUFFIX);
+                FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    out.write(payload);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Unable to write " + file);
+                }
+            }
+            deleteOthers(option.getScheduleId(), option.getPayloadHandle());
+        }
+    }
+
+    /**
+     * Maps a payload read-only. Pages are only read from disk as the buffer is accessed.
+     *
+     * @return the payload, or null when it doesn't exist.
+     */
+    @Nullable
+    public ByteBuffer map(int scheduleId, long handle) throws IOException {
+        if (handle == 0) {
+            return null;
+        }
+        File file = getFile(scheduleId, handle);
+        RandomAccessFile payload;
+        try {
+            payload = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            FileChannel channel = payload.getChannel();
+            // The mapping stays valid after the file has been closed or even deleted.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            payload.close();
+        }
+    }
+
+    public void delete(int scheduleId, long handle) {
+        synchronized (lock) {
+            delete(getFile(scheduleId, handle));
+        }
+    }
+
+    /**
+     * Deletes every payload that no schedule in {@code store} refers to any more.
+     */
+    public void sweep(@NonNull ScheduleStore store) {
+        synchronized (lock) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                SchedulerOption option = null;
+                try {
+                    option = store.get(Integer.parseInt(name.substring(0, name.lastIndexOf('-'))));
+                } catch (RuntimeException ignored) {
+                    // Not a payload file, e.g. a temp file left by a crash.
+                }
+                if (option == null || !name.equals(
+                        getFile(option.getScheduleId(), option.getPayloadHandle()).getName())) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    private void deleteOthers(int scheduleId, long keptHandle) {
+        String prefix = scheduleId + "-";
+        String kept = getFile(scheduleId, keptHandle).getName();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && !name.equals(kept)) {
+                delete(file);
+            }
+        }
+    }
+
+    @NonNull
+    private File getFile(int scheduleId, long handle) {
+        return new File(dir, scheduleId + "-" + Long.toHexString(handle));
+    }
+
+    private static void delete(@NonNull File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+}
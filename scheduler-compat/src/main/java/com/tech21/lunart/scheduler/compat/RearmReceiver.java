@@ -0,0 +1,149 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.tech21.lunart.scheduler.compat.v21.SchedulerService;
+import com.tech21.lunart.scheduler.compat.v4.AlarmService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Arms every stored schedule again once the system has dropped or misplaced them: alarms don't
+ * survive a reboot, and alarms and jobs keep their old offsets when the wall clock or the time
+ * zone changes.
+ *
+ * The journal is replayed in one sequential pass, next fire times are computed in parallel
+ * chunks and each backend re-arms everything under a single lock, so the single alarm and
+ * multiplexed engines get by with a handful of system calls. The work runs off the main thread
+ * within the {@link #goAsync()} window of the broadcast.
+ */
+public class RearmReceiver extends BroadcastReceiver {
+    private static final int CHUNK_SIZE = 1024;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(action)
+                && !Intent.ACTION_TIME_CHANGED.equals(action)
+                && !Intent.ACTION_TIMEZONE_CHANGED.equals(action)) {
+            return;
+        }
+
+        // Cached offsets may belong to the previous zone.
+        LocalTimeCalculator.getDefault().invalidate();
+
+        final Context appContext = context.getApplicationContext();
+        final PendingResult pendingResult = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rearm(appContext);
+                } finally {
+                    if (pendingResult != null) {
+                        pendingResult.finish();
+                    }
+                }
+            }
+        }, "scheduler-compat-rearm").start();
+    }
+
+    private static void rearm(@NonNull Context context) {
+        ScheduleStore store = ScheduleStore.with(context);
+        List<SchedulerOption> options = store.getAll();
+        if (options.isEmpty()) {
+            return;
+        }
+
+        long[] triggerAtMillis = getNextTriggers(store, options,
+                SchedulerCompat.getClock().currentTimeMillis());
+        store.setNextTriggers(options, triggerAtMillis);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            SchedulerService.with(context).rearm(options, triggerAtMillis);
+            // Release jobs for held fires are gone after a reboot too.
+            ConditionMonitor.with(context);
+        } else {
+            AlarmService.with(context).rearm(options, triggerAtMillis);
+        }
+        store.markRegisteredSinceBoot();
+    }
+
+    /**
+     * Returns the next fire time after {@code now} of every option. Chunks of options are
+     * handed out to one thread per core, the calling thread included.
+     */
+    @VisibleForTesting
+    static long[] getNextTriggers(
+            @NonNull final ScheduleStore store,
+            @NonNull final List<SchedulerOption> options,
+            final long now
+    ) {
+        final long[] triggerAtMillis = new long[options.size()];
+        final int chunks = (options.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int chunk;
+                while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                    int end = Math.min(options.size(), (chunk + 1) * CHUNK_SIZE);
+                    for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+                        triggerAtMillis[i] = getNextTrigger(store, options.get(i), now);
+                    }
+                }
+            }
+        };
+
+        int threads = Math.min(chunks, Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            worker.run();
+            return triggerAtMillis;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads - 1);
+        try {
+            List<Future<?>> futures = new ArrayList<>(threads - 1);
+            for (int i = 0; i < threads - 1; i++) {
+                futures.add(executor.submit(worker));
+            }
+            worker.run();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return triggerAtMillis;
+    }
+
+    private static long getNextTrigger(
+            @NonNull ScheduleStore store,
+            @NonNull SchedulerOption option,
+            long now
+    ) {
+        long triggerAtMillis = Recurrence.getFirstTriggerAt(option);
+        if (Recurrence.isRecurring(option)) {
+            long afterMillis = Math.max(now, store.getLastFiredAt(option.getScheduleId()));
+            if (triggerAtMillis <= afterMillis) {
+                triggerAtMillis = Recurrence.getNextTriggerAfter(option, triggerAtMillis, afterMillis);
+            }
+        }
+        return triggerAtMillis;
+    }
+}
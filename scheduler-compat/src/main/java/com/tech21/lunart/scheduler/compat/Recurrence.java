@@ -0,0 +1,100 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_CRON;
+import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_EVERY_DAYLIGHT;
+import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_EVERY_MIDNIGHT;
+import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME;
+import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_ONCE_IMMEDIATELY;
+
+/**
+ * Fire time arithmetic shared by the backends that keep their own schedule queue.
+ */
+public final class Recurrence {
+    private static final long IMMEDIATE_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private Recurrence() {
+    }
+
+    public static long getFirstTriggerAt(@NonNull SchedulerOption option) {
+        switch (option.getRecurringType()) {
+            case OCCUR_EVERY_MIDNIGHT:
+                return SchedulerCompat.scheduleFor(0, 0) + option.getJitterMillis();
+            case OCCUR_EVERY_DAYLIGHT:
+                return SchedulerCompat.scheduleFor(12, 0) + option.getJitterMillis();
+            case OCCUR_ONCE_IMMEDIATELY:
+                return SchedulerCompat.getClock().currentTimeMillis() + IMMEDIATE_DELAY_MILLIS;
+            default:
+                return option.getScheduleFor() + option.getJitterMillis();
+        }
+    }
+
+    /**
+     * Returns an offset in {@code [0, windowMillis)} for the schedule, the same for the same id
+     * and seed. Daily occurrences keep the wall time of the first one, so shifting that one
+     * shifts them all.
+     */
+    public static long getJitterOffset(int scheduleId, long windowMillis, long seed) {
+        if (windowMillis <= 0) {
+            return 0;
+        }
+        // SplitMix64 finalizer, so that consecutive ids land far apart in the window.
+        long z = seed + (scheduleId + 1L) * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z ^= z >>> 31;
+        return (z >>> 1) % windowMillis;
+    }
+
+    public static long getInterval(@NonNull SchedulerOption option) {
+        switch (option.getRecurringType()) {
+            case OCCUR_EVERY_MIDNIGHT:
+            case OCCUR_EVERY_DAYLIGHT:
+            case OCCUR_EVERY_SPECIFIC_TIME:
+                return TimeUnit.DAYS.toMillis(1);
+            default:
+                return 0;
+        }
+    }
+
+    public static boolean isRecurring(@NonNull SchedulerOption option) {
+        return option.getRecurringType() == OCCUR_CRON || getInterval(option) > 0;
+    }
+
+    /**
+     * Returns the first occurrence after {@code afterMillis} of {@code option}, which last fired
+     * at {@code triggerAtMillis}. Daily schedules keep their wall time across DST transitions.
+     */
+    public static long getNextTriggerAfter(
+            @NonNull SchedulerOption option,
+            long triggerAtMillis,
+            long afterMillis
+    ) {
+        switch (option.getRecurringType()) {
+            case OCCUR_EVERY_MIDNIGHT:
+            case OCCUR_EVERY_DAYLIGHT:
+            case OCCUR_EVERY_SPECIFIC_TIME:
+                return LocalTimeCalculator.getDefault().nextDailyTriggerAfter(triggerAtMillis, afterMillis);
+            case OCCUR_CRON:
+                return option.getCronExpression().nextAfter(Math.max(triggerAtMillis, afterMillis));
+            default:
+                return getNextTriggerAfter(triggerAtMillis, getInterval(option), afterMillis);
+        }
+    }
+
+    /**
+     * Returns the first occurrence after {@code afterMillis} of a schedule that last fired
+     * at {@code triggerAtMillis}, skipping every occurrence that has been missed.
+     */
+    public static long getNextTriggerAfter(long triggerAtMillis, long intervalInMillis, long afterMillis) {
+        long nextTriggerAtMillis = triggerAtMillis + intervalInMillis;
+        if (nextTriggerAtMillis <= afterMillis) {
+            long missed = (afterMillis - nextTriggerAtMillis) / intervalInMillis + 1;
+            nextTriggerAtMillis += missed * intervalInMillis;
+        }
+        return nextTriggerAtMillis;
+    }
+}
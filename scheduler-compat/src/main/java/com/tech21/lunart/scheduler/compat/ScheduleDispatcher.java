@@ -0,0 +1,386 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.tech21.lunart.scheduler.compat.metrics.SchedulerMetrics;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers fired schedules to their receivers and handlers.
+ *
+ * In {@link #DISPATCH_IN_PROCESS} mode schedule receivers are kept in a routing table keyed by
+ * action name instead of being registered with the system, and a fire is handed straight to the
+ * receiver. A system broadcast is only sent when nothing is routed for the action, e.g. when
+ * the fire has just started a fresh process.
+ *
+ * {@link ScheduleHandler}s are always routed in process and run on an executor behind a
+ * {@link DispatchQueue}, which bounds how many run at once and how many may wait. A handler
+ * turned away by a full queue is submitted again after a random delay within
+ * {@link #OVERFLOW_RETRY_WINDOW_MILLIS}, so that an overflowing burst comes back spread out
+ * instead of being lost. The completion listener passed to {@link #dispatch} is called once
+ * the handler has returned, which keeps the receiver or job that delivered the fire alive
+ * while it waits.
+ */
+public class ScheduleDispatcher {
+    private static final String TAG = ScheduleDispatcher.class.getSimpleName();
+
+    @IntDef({
+        DISPATCH_SYSTEM_BROADCAST,
+        DISPATCH_IN_PROCESS
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface DispatchMode { }
+
+    public static final int DISPATCH_SYSTEM_BROADCAST = 0;
+    public static final int DISPATCH_IN_PROCESS = 1;
+
+    private static final int MAX_HANDLER_THREADS = 4;
+    private static final int HANDLER_QUEUE_CAPACITY = 64;
+    private static final long HANDLER_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    public static final long OVERFLOW_RETRY_WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private static final ScheduleDispatcher sInstance = new ScheduleDispatcher();
+
+    private final ConcurrentHashMap<String, BroadcastReceiver> routes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ScheduleHandler> handlers = new ConcurrentHashMap<>();
+    private final DispatchQueue dispatchQueue = new DispatchQueue(
+            Math.max(1, Math.min(MAX_HANDLER_THREADS, Runtime.getRuntime().availableProcessors() - 1)),
+            HANDLER_QUEUE_CAPACITY);
+    private volatile @DispatchMode int mode = DISPATCH_SYSTEM_BROADCAST;
+    private volatile Executor executor;
+    private final Handler retryHandler = new Handler(Looper.getMainLooper());
+    private final Random retryJitter = new Random();
+
+    public interface OnDispatchCompleteListener {
+        void onDispatchComplete();
+    }
+
+    private ScheduleDispatcher() {
+    }
+
+    public static ScheduleDispatcher getInstance() {
+        return sInstance;
+    }
+
+    public @DispatchMode int getMode() {
+        return mode;
+    }
+
+    void setMode(@DispatchMode int mode) {
+        this.mode = mode;
+    }
+
+    boolean isInProcess() {
+        return mode == DISPATCH_IN_PROCESS;
+    }
+
+    void setExecutor(@NonNull Executor executor) {
+        this.executor = executor;
+    }
+
+    void setLimits(int maxConcurrent, int queueCapacity) {
+        dispatchQueue.setLimits(maxConcurrent, queueCapacity);
+    }
+
+    /**
+     * @return the number of handlers waiting for a slot.
+     */
+    public int getQueueDepth() {
+        return dispatchQueue.getDepth();
+    }
+
+    /**
+     * @return the number of handlers running.
+     */
+    public int getRunningCount() {
+        return dispatchQueue.getRunning();
+    }
+
+    void register(@NonNull String actionName, @NonNull BroadcastReceiver receiver) {
+        routes.put(actionName, receiver);
+    }
+
+    boolean unregister(@NonNull String actionName, @NonNull BroadcastReceiver receiver) {
+        return routes.remove(actionName, receiver);
+    }
+
+    void registerHandler(@NonNull String actionName, @NonNull ScheduleHandler handler) {
+        handlers.put(actionName, handler);
+    }
+
+    void unregisterHandler(@NonNull String actionName) {
+        handlers.remove(actionName);
+    }
+
+    public void dispatch(@NonNull Context context, @NonNull String actionName, @NonNull Bundle extras) {
+        dispatch(context, actionName, extras, new CancellationSignal(), null);
+    }
+
+    public void dispatch(
+            @NonNull Context context,
+            @NonNull String actionName,
+            @NonNull Bundle extras,
+            @NonNull CancellationSignal cancellationSignal,
+            @Nullable OnDispatchCompleteListener listener
+    ) {
+        dispatch(context, actionName, extras, cancellationSignal, listener, System.nanoTime());
+    }
+
+    /**
+     * @param receivedAtNanos {@link System#nanoTime()} when the OS delivered the fire, used to
+     *                        measure the dispatch latency.
+     */
+    public void dispatch(
+            @NonNull Context context,
+            @NonNull String actionName,
+            @NonNull Bundle extras,
+            @NonNull CancellationSignal cancellationSignal,
+            @Nullable OnDispatchCompleteListener listener,
+            long receivedAtNanos
+    ) {
+        ScheduleHandler handler = handlers.get(actionName);
+        if (handler != null) {
+            execute(context.getApplicationContext(), handler, new ScheduleEvent(extras),
+                    cancellationSignal, releasePayload(context, extras, cancellationSignal, listener), receivedAtNanos);
+            return;
+        }
+
+        Intent intent = new Intent(actionName);
+        intent.putExtras(extras);
+
+        BroadcastReceiver receiver = routes.get(actionName);
+        if (receiver != null) {
+            long startedAtNanos = System.nanoTime();
+            receiver.onReceive(context, intent);
+            SchedulerMetrics.getInstance().recordDispatch(actionName, receivedAtNanos,
+                    startedAtNanos, System.nanoTime());
+            notifyComplete(releasePayload(context, extras, cancellationSignal, listener));
+        } else {
+            // Receivers of the broadcast run later, so the payload is left to PayloadStore.sweep().
+            context.sendBroadcast(intent);
+            notifyComplete(listener);
+        }
+    }
+
+    /**
+     * Dispatches the fire of {@code option} planned for {@code triggerAtMillis}, together with
+     * every later occurrence that is due by {@code now}, according to its misfire policy. Each
+     * dispatch carries {@link SchedulerOption#TRIGGER_AT_KEY} and
+     * {@link SchedulerOption#MISSED_COUNT_KEY} on top of {@code extras}.
+     */
+    public void dispatchDue(
+            @NonNull Context context,
+            @NonNull SchedulerOption option,
+            @NonNull Bundle extras,
+            long triggerAtMillis,
+            long now,
+            @NonNull CancellationSignal cancellationSignal,
+            @NonNull OnDispatchCompleteListener listener,
+            long receivedAtNanos
+    ) {
+        Misfire misfire = Misfire.resolve(option, triggerAtMillis, now);
+        String actionName = option.getScheduleReceiver().first;
+        if (misfire.size() == 1) {
+            extras.putLong(SchedulerOption.TRIGGER_AT_KEY, misfire.getTriggerAt(0));
+            extras.putInt(SchedulerOption.MISSED_COUNT_KEY, misfire.getMissedCount());
+            dispatch(context, actionName, extras, cancellationSignal, listener, receivedAtNanos);
+            return;
+        }
+
+        CompletionBarrier barrier = new CompletionBarrier(listener);
+        for (int i = 0; i < misfire.size(); i++) {
+            Bundle occurrence = new Bundle(extras);
+            occurrence.putLong(SchedulerOption.TRIGGER_AT_KEY, misfire.getTriggerAt(i));
+            occurrence.putInt(SchedulerOption.MISSED_COUNT_KEY, i == 0 ? misfire.getMissedCount() : 0);
+            barrier.expect();
+            dispatch(context, actionName, occurrence, cancellationSignal, barrier, receivedAtNanos);
+        }
+        barrier.arrive();
+    }
+
+    /**
+     * Deletes the payload of a one-off schedule once it has been handled, unless the schedule
+     * has been added again meanwhile or the dispatch was cancelled, in which case it may fire
+     * again.
+     */
+    @Nullable
+    private static OnDispatchCompleteListener releasePayload(
+            @NonNull Context context,
+            @NonNull Bundle extras,
+            @NonNull final CancellationSignal cancellationSignal,
+            @Nullable final OnDispatchCompleteListener listener
+    ) {
+        final long handle = extras.getLong(SchedulerOption.PAYLOAD_HANDLE_KEY, 0);
+        int type = extras.getInt(SchedulerOption.RECURRING_TYPE_KEY, -1);
+        if (handle == 0
+                || (type != SchedulerCompat.OCCUR_ONCE && type != SchedulerCompat.OCCUR_ONCE_IMMEDIATELY)) {
+            return listener;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final int scheduleId = extras.getInt(SchedulerOption.SCHEDULE_ID_KEY, -1);
+        final long scheduleFor = extras.getLong(SchedulerOption.SCHEDULE_FOR_KEY, 0);
+        return new OnDispatchCompleteListener() {
+            @Override
+            public void onDispatchComplete() {
+                if (cancellationSignal.isCanceled()) {
+                    notifyComplete(listener);
+                    return;
+                }
+                SchedulerOption option = ScheduleStore.with(appContext).get(scheduleId);
+                if (option == null || option.getPayloadHandle() != handle
+                        || option.getScheduleFor() == scheduleFor) {
+                    PayloadStore.with(appContext).delete(scheduleId, handle);
+                }
+                notifyComplete(listener);
+            }
+        };
+    }
+
+    private void execute(
+            @NonNull final Context context,
+            @NonNull final ScheduleHandler handler,
+            @NonNull final ScheduleEvent event,
+            @NonNull final CancellationSignal cancellationSignal,
+            @Nullable final OnDispatchCompleteListener listener,
+            final long receivedAtNanos
+    ) {
+        dispatchQueue.submit(getExecutor(), new DispatchQueue.Task() {
+            @Override
+            public void run() {
+                try {
+                    if (!cancellationSignal.isCanceled()) {
+                        long startedAtNanos = System.nanoTime();
+                        handler.onSchedule(context, event, cancellationSignal);
+                        SchedulerMetrics.getInstance().recordDispatch(event.getActionName(),
+                                receivedAtNanos, startedAtNanos, System.nanoTime());
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Handler failed for " + event, e);
+                } finally {
+                    notifyComplete(listener);
+                }
+            }
+
+            @Override
+            public void onRejected() {
+                if (cancellationSignal.isCanceled()) {
+                    notifyComplete(listener);
+                    return;
+                }
+                Log.w(TAG, "Dispatch queue is full, retrying " + event);
+                retryLater(this);
+            }
+        });
+    }
+
+    private void retryLater(@NonNull final DispatchQueue.Task task) {
+        long delayMillis;
+        synchronized (retryJitter) {
+            delayMillis = 1 + (long) (retryJitter.nextDouble() * OVERFLOW_RETRY_WINDOW_MILLIS);
+        }
+        retryHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                dispatchQueue.submit(getExecutor(), task);
+            }
+        }, delayMillis);
+    }
+
+    private Executor getExecutor() {
+        Executor executor = this.executor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = this.executor;
+                if (executor == null) {
+                    executor = createDefaultExecutor();
+                    this.executor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static void notifyComplete(@Nullable OnDispatchCompleteListener listener) {
+        if (listener != null) {
+            listener.onDispatchComplete();
+        }
+    }
+
+    private static Executor createDefaultExecutor() {
+        // The dispatch queue decides how many handlers run, so threads are only created for
+        // them and time out once idle.
+        return new ThreadPoolExecutor(
+                0,
+                Integer.MAX_VALUE,
+                HANDLER_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new HandlerThreadFactory());
+    }
+
+    /**
+     * Reports completion once every schedule dispatched from one system wakeup has completed.
+     * Call {@link #expect()} before each dispatch and {@link #arrive()} once all are sent.
+     */
+    public static final class CompletionBarrier implements OnDispatchCompleteListener {
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final OnDispatchCompleteListener listener;
+
+        public CompletionBarrier(@NonNull OnDispatchCompleteListener listener) {
+            this.listener = listener;
+        }
+
+        public void expect() {
+            pending.incrementAndGet();
+        }
+
+        public void arrive() {
+            if (pending.decrementAndGet() == 0) {
+                listener.onDispatchComplete();
+            }
+        }
+
+        @Override
+        public void onDispatchComplete() {
+            arrive();
+        }
+    }
+
+    private static final class HandlerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "scheduler-compat-" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.tech21.lunart.scheduler.compat.SchedulerCompat.RecurringType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.CRON_EXPRESSION_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.GROUP_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.MISSED_COUNT_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.PAYLOAD_HANDLE_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.RECURRING_TYPE_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.SCHEDULE_FOR_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.SCHEDULE_ID_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.SCHEDULE_NAME_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.SCHEDULE_RECEIVER_ACTION_NAME_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.TRIGGER_AT_KEY;
+
+public class ScheduleEvent {
+    private final Bundle extras;
+
+    ScheduleEvent(@NonNull Bundle extras) {
+        this.extras = extras;
+    }
+
+    public int getScheduleId() {
+        return extras.getInt(SCHEDULE_ID_KEY, -1);
+    }
+
+    public String getScheduleName() {
+        return extras.getString(SCHEDULE_NAME_KEY);
+    }
+
+    public long getScheduleFor() {
+        return extras.getLong(SCHEDULE_FOR_KEY, 0);
+    }
+
+    /**
+     * @return the occurrence this fire stands for, which for a recurring schedule is usually
+     * later than {@link #getScheduleFor()}.
+     */
+    public long getTriggerAt() {
+        return extras.getLong(TRIGGER_AT_KEY, getScheduleFor());
+    }
+
+    /**
+     * @return how many occurrences right before this one were missed and won't be delivered,
+     * see {@link SchedulerCompat.MisfirePolicy}.
+     */
+    public int getMissedCount() {
+        return extras.getInt(MISSED_COUNT_KEY, 0);
+    }
+
+    public @RecurringType int getRecurringType() {
+        return extras.getInt(RECURRING_TYPE_KEY, -1);
+    }
+
+    public String getActionName() {
+        return extras.getString(SCHEDULE_RECEIVER_ACTION_NAME_KEY);
+    }
+
+    public String getCronExpression() {
+        return extras.getString(CRON_EXPRESSION_KEY);
+    }
+
+    public String getGroup() {
+        return extras.getString(GROUP_KEY);
+    }
+
+    public long getPayloadHandle() {
+        return extras.getLong(PAYLOAD_HANDLE_KEY, 0);
+    }
+
+    /**
+     * Maps the payload attached with {@link SchedulerOption.Builder#payload(byte[])}. Only the
+     * pages that are read are loaded from disk.
+     *
+     * @return a read-only buffer, or null when the schedule has no payload or it is gone.
+     */
+    @Nullable
+    public ByteBuffer getPayload(@NonNull Context context) throws IOException {
+        return PayloadStore.with(context).map(getScheduleId(), getPayloadHandle());
+    }
+
+    @NonNull
+    public Bundle getExtras() {
+        return extras;
+    }
+
+    @Override
+    public String toString() {
+        return "ScheduleEvent{" +
+                "scheduleId=" + getScheduleId() +
+                ", scheduleName='" + getScheduleName() + '\'' +
+                ", scheduleFor=" + getScheduleFor() +
+                ", triggerAt=" + getTriggerAt() +
+                ", missedCount=" + getMissedCount() +
+                ", recurringType=" + getRecurringType() +
+                ", actionName='" + getActionName() + '\'' +
+                ", cronExpression='" + getCronExpression() + '\'' +
+                ", group='" + getGroup() + '\'' +
+                '}';
+    }
+}
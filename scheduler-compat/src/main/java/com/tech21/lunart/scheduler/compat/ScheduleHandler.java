@@ -0,0 +1,23 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+/**
+ * Handles a fired schedule off the main thread, on the executor configured with
+ * {@link SchedulerCompat#setHandlerExecutor(java.util.concurrent.Executor)}.
+ *
+ * The backend keeps the fire alive until this method returns: the alarm broadcast stays pending
+ * and the job is only finished afterwards. Long running handlers should check the cancellation
+ * signal, which is cancelled when the system stops the job.
+ */
+public interface ScheduleHandler {
+    @WorkerThread
+    void onSchedule(
+            @NonNull Context context,
+            @NonNull ScheduleEvent event,
+            @NonNull CancellationSignal cancellationSignal
+    ) throws Exception;
+}
@@ -0,0 +1,309 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Indexed binary min-heaps of pending fire windows keyed by schedule id.
+ * Offer, remove and poll are O(log n); peeking the earliest fire time or deadline is O(1).
+ *
+ * Each entry may fire anywhere in {@code [triggerAt, deadline]}. Waking up at
+ * {@link #peekDeadline()} and polling everything whose window has opened is the greedy
+ * interval stabbing schedule: it serves every entry with the fewest possible wakeups.
+ */
+public class ScheduleQueue {
+    public static final long EMPTY = Long.MAX_VALUE;
+
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final Heap triggers = new Heap(false);
+    private final Heap deadlines = new Heap(true);
+
+    public interface OnDueListener {
+        void onDue(int scheduleId, long triggerAtMillis);
+    }
+
+    public int size() {
+        return triggers.size;
+    }
+
+    public boolean isEmpty() {
+        return triggers.size == 0;
+    }
+
+    public boolean contains(int scheduleId) {
+        return entries.containsKey(scheduleId);
+    }
+
+    public long peekTriggerAt() {
+        return triggers.size == 0 ? EMPTY : triggers.heap[0].triggerAtMillis;
+    }
+
+    /**
+     * @return the earliest deadline, i.e. the latest time the next wakeup may happen.
+     */
+    public long peekDeadline() {
+        return deadlines.size == 0 ? EMPTY : deadlines.heap[0].deadlineMillis;
+    }
+
+    /**
+     * @return the latest fire time that is not after {@code millis}, or {@link #EMPTY} when no
+     * window has opened by then. Waking up anywhere between it and {@code millis} polls the
+     * same entries.
+     */
+    public long getLatestTriggerAtOrBefore(long millis) {
+        return triggers.latestKeyAtOrBefore(0, millis, EMPTY);
+    }
+
+    /**
+     * Fills {@code deadlines} with the smallest distinct deadlines in ascending order, e.g. to
+     * plan more than one wakeup ahead.
+     *
+     * @return how many deadlines were written.
+     */
+    public int peekDeadlines(@NonNull long[] deadlines) {
+        return this.deadlines.smallestDistinctKeys(deadlines);
+    }
+
+    public long getTriggerAt(int scheduleId) {
+        Entry entry = entries.get(scheduleId);
+        return entry == null ? EMPTY : entry.triggerAtMillis;
+    }
+
+    public void offer(int scheduleId, long triggerAtMillis) {
+        offer(scheduleId, triggerAtMillis, triggerAtMillis);
+    }
+
+    public void offer(int scheduleId, long triggerAtMillis, long deadlineMillis) {
+        if (deadlineMillis < triggerAtMillis) {
+            deadlineMillis = triggerAtMillis;
+        }
+
+        Entry entry = entries.get(scheduleId);
+        if (entry != null) {
+            long previousTriggerAt = entry.triggerAtMillis;
+            long previousDeadline = entry.deadlineMillis;
+            entry.triggerAtMillis = triggerAtMillis;
+            entry.deadlineMillis = deadlineMillis;
+            triggers.update(entry, triggerAtMillis < previousTriggerAt);
+            deadlines.update(entry, deadlineMillis < previousDeadline);
+            return;
+        }
+
+        entry = new Entry(scheduleId, triggerAtMillis, deadlineMillis);
+        entries.put(scheduleId, entry);
+        triggers.add(entry);
+        deadlines.add(entry);
+    }
+
+    public boolean remove(int scheduleId) {
+        Entry entry = entries.remove(scheduleId);
+        if (entry == null) {
+            return false;
+        }
+        triggers.removeAt(entry.triggerIndex);
+        deadlines.removeAt(entry.deadlineIndex);
+        return true;
+    }
+
+    public void clear() {
+        triggers.clear();
+        deadlines.clear();
+        entries.clear();
+    }
+
+    /**
+     * Removes every entry due at {@code nowMillis} in fire-time order and reports it to the
+     * listener. Recurring schedules are expected to be offered again from the listener with a
+     * fire time later than {@code nowMillis}.
+     */
+    public int pollDue(long nowMillis, @NonNull OnDueListener listener) {
+        int count = 0;
+        while (triggers.size > 0 && triggers.heap[0].triggerAtMillis <= nowMillis) {
+            Entry head = triggers.heap[0];
+            entries.remove(head.scheduleId);
+            triggers.removeAt(0);
+            deadlines.removeAt(head.deadlineIndex);
+            listener.onDue(head.scheduleId, head.triggerAtMillis);
+            count++;
+        }
+        return count;
+    }
+
+    private static final class Entry {
+        final int scheduleId;
+        long triggerAtMillis;
+        long deadlineMillis;
+        int triggerIndex;
+        int deadlineIndex;
+
+        Entry(int scheduleId, long triggerAtMillis, long deadlineMillis) {
+            this.scheduleId = scheduleId;
+            this.triggerAtMillis = triggerAtMillis;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    /**
+     * Min-heap over either the fire time or the deadline of its entries.
+     */
+    private static final class Heap {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final boolean byDeadline;
+        private Entry[] heap = new Entry[INITIAL_CAPACITY];
+        private int size;
+
+        Heap(boolean byDeadline) {
+            this.byDeadline = byDeadline;
+        }
+
+        void add(Entry entry) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size << 1);
+            }
+            heap[size] = entry;
+            setIndex(entry, size);
+            siftUp(size++);
+        }
+
+        void update(Entry entry, boolean decreased) {
+            if (decreased) {
+                siftUp(indexOf(entry));
+            } else {
+                siftDown(indexOf(entry));
+            }
+        }
+
+        void clear() {
+            Arrays.fill(heap, 0, size, null);
+            size = 0;
+        }
+
+        void removeAt(int index) {
+            int last = --size;
+            if (index == last) {
+                heap[last] = null;
+                return;
+            }
+
+            Entry moved = heap[last];
+            heap[last] = null;
+            heap[index] = moved;
+            setIndex(moved, index);
+            siftDown(index);
+            if (heap[index] == moved) {
+                siftUp(index);
+            }
+        }
+
+        /**
+         * Walks the heap best-first from the root, so only nodes up to the last key written and
+         * their children are visited.
+         */
+        int smallestDistinctKeys(long[] keys) {
+            if (size == 0 || keys.length == 0) {
+                return 0;
+            }
+
+            PriorityQueue<Integer> frontier = new PriorityQueue<>(keys.length * 2,
+                    new Comparator<Integer>() {
+                        @Override
+                        public int compare(Integer a, Integer b) {
+                            return Long.compare(key(heap[a]), key(heap[b]));
+                        }
+                    });
+            frontier.add(0);
+            int count = 0;
+            while (count < keys.length && !frontier.isEmpty()) {
+                int index = frontier.poll();
+                long key = key(heap[index]);
+                if (count == 0 || keys[count - 1] != key) {
+                    keys[count++] = key;
+                }
+                int child = (index << 1) + 1;
+                if (child < size) {
+                    frontier.add(child);
+                }
+                if (child + 1 < size) {
+                    frontier.add(child + 1);
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Visits only the subtrees whose root is not after {@code millis}.
+         */
+        long latestKeyAtOrBefore(int index, long millis, long latest) {
+            if (index >= size || key(heap[index]) > millis) {
+                return latest;
+            }
+            long key = key(heap[index]);
+            if (latest == EMPTY || key > latest) {
+                latest = key;
+            }
+            latest = latestKeyAtOrBefore((index << 1) + 1, millis, latest);
+            return latestKeyAtOrBefore((index << 1) + 2, millis, latest);
+        }
+
+        private long key(Entry entry) {
+            return byDeadline ? entry.deadlineMillis : entry.triggerAtMillis;
+        }
+
+        private int indexOf(Entry entry) {
+            return byDeadline ? entry.deadlineIndex : entry.triggerIndex;
+        }
+
+        private void setIndex(Entry entry, int index) {
+            if (byDeadline) {
+                entry.deadlineIndex = index;
+            } else {
+                entry.triggerIndex = index;
+            }
+        }
+
+        private void siftUp(int index) {
+            Entry entry = heap[index];
+            long key = key(entry);
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                Entry parentEntry = heap[parent];
+                if (key(parentEntry) <= key) {
+                    break;
+                }
+                heap[index] = parentEntry;
+                setIndex(parentEntry, index);
+                index = parent;
+            }
+            heap[index] = entry;
+            setIndex(entry, index);
+        }
+
+        private void siftDown(int index) {
+            Entry entry = heap[index];
+            long key = key(entry);
+            int half = size >>> 1;
+            while (index < half) {
+                int child = (index << 1) + 1;
+                int right = child + 1;
+                if (right < size && key(heap[right]) < key(heap[child])) {
+                    child = right;
+                }
+                Entry childEntry = heap[child];
+                if (key <= key(childEntry)) {
+                    break;
+                }
+                heap[index] = childEntry;
+                setIndex(childEntry, index);
+                index = child;
+            }
+            heap[index] = entry;
+            setIndex(entry, index);
+        }
+    }
+}
@@ -0,0 +1,821 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Durable registry of every {@link SchedulerOption} added through the library.
+ *
+ * State is kept in memory and mirrored to an append-only journal under the app's files
+ * directory. Add, cancel and fire each append one small record with a single write; the
+ * journal is rewritten from the live entries once it has grown well past them. On first
+ * access the journal is replayed in one sequential pass, so both backends can keep
+ * cancelling and re-arming schedules after the process has been killed.
+ *
+ * Schedules can also be looked up by next fire time, name and group through in-memory indexes
+ * that are rebuilt on replay.
+ *
+ * Reads are lock-free. Writes to the same schedule id are serialised by a striped lock and only
+ * the journal append itself is shared, so adds and cancels of different schedules don't wait on
+ * each other in memory.
+ *
+ * Broadcast receivers can't outlive the process, so options restored from the journal only
+ * carry the receiver action name.
+ */
+public class ScheduleStore {
+    private static final String TAG = ScheduleStore.class.getSimpleName();
+
+    private static final String STORE_DIR = "scheduler-compat";
+    private static final String JOURNAL_FILE = "schedules.journal";
+    private static final String COMPACT_FILE = "schedules.journal.tmp";
+
+    private static final int MAGIC = 0x53434a4c;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    private static final int CONCURRENCY_LEVEL = 16;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_CANCEL = 2;
+    private static final byte OP_FIRE = 3;
+    private static final byte OP_CLEAR = 4;
+    private static final byte OP_REGISTERED = 5;
+    private static final byte OP_ENGINE = 6;
+
+    private static final long NEVER_FIRED = -1L;
+    private static final long UNKNOWN_BOOT = Long.MIN_VALUE;
+    // Boot times drift with wall clock corrections; a real reboot moves them by far more.
+    private static final long BOOT_TOLERANCE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Map<Integer, SchedulerOption> options = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> lastFiredAt = new ConcurrentHashMap<>();
+    // Secondary indexes, kept up to date under the stripe of each schedule id. A set is created
+    // and dropped once empty under the lock of its map, so a concurrent add with the same key
+    // can't land in a set that has just been unlinked.
+    private final ConcurrentMap<String, Set<Integer>> groups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<Integer>> names = new ConcurrentHashMap<>();
+    private final Map<Integer, Due> dueById = new ConcurrentHashMap<>();
+    private final NavigableSet<Due> dueByTime = new ConcurrentSkipListSet<>();
+    private final StripedLock locks = new StripedLock(CONCURRENCY_LEVEL);
+    private final Object journalLock = new Object();
+    private final File journal;
+    private final File compactJournal;
+    private DataOutputStream out;
+    // Journal length before the open stream's first byte, and up to its last complete record.
+    // A failed write is cut back to the latter, so replay doesn't stop at its partial record.
+    private long appendedFrom;
+    private long committedLength;
+    private int recordCount;
+    private volatile long registeredBootAtMillis = UNKNOWN_BOOT;
+    private volatile int engine;
+
+    private static volatile ScheduleStore sInstance;
+
+    private ScheduleStore(@NonNull Context context) {
+        this(new File(context.getFilesDir(), STORE_DIR));
+    }
+
+    @VisibleForTesting
+    ScheduleStore(@NonNull File dir) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + dir);
+        }
+        this.journal = new File(dir, JOURNAL_FILE);
+        this.compactJournal = new File(dir, COMPACT_FILE);
+        replay();
+    }
+
+    public static ScheduleStore with(@NonNull Context context) {
+        ScheduleStore instance = sInstance;
+        if (instance == null) {
+            synchronized (ScheduleStore.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new ScheduleStore(context.getApplicationContext());
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    public int size() {
+        return options.size();
+    }
+
+    public boolean contains(int scheduleId) {
+        return options.containsKey(scheduleId);
+    }
+
+    @Nullable
+    public SchedulerOption get(int scheduleId) {
+        return options.get(scheduleId);
+    }
+
+    /**
+     * Returns the stored option {@code view} encodes, which saves decoding it on every fire, or
+     * the decoded option if another schedule has taken its id since.
+     */
+    @NonNull
+    public SchedulerOption get(@NonNull SchedulerOptionCodec.View view) {
+        SchedulerOption stored = options.get(view.getScheduleId());
+        if (stored != null && stored.getContentHash() == view.getContentHash()) {
+            return stored;
+        }
+        return view.toOption();
+    }
+
+    @NonNull
+    public List<SchedulerOption> getAll() {
+        return new ArrayList<>(options.values());
+    }
+
+    @NonNull
+    public int[] getScheduleIds() {
+        return toArray(options.keySet());
+    }
+
+    /**
+     * @return the ids of every schedule in {@code group}, looked up without scanning the store.
+     */
+    @NonNull
+    public int[] getScheduleIds(@NonNull String group) {
+        Set<Integer> scheduleIds = groups.get(group);
+        return scheduleIds == null ? new int[0] : toArray(scheduleIds);
+    }
+
+    /**
+     * @return every schedule named {@code scheduleName}.
+     */
+    @NonNull
+    public List<SchedulerOption> findByName(@NonNull String scheduleName) {
+        Set<Integer> scheduleIds = names.get(scheduleName);
+        List<SchedulerOption> result = new ArrayList<>();
+        if (scheduleIds != null) {
+            for (Integer scheduleId : scheduleIds) {
+                SchedulerOption option = options.get(scheduleId);
+                if (option != null) {
+                    result.add(option);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return up to {@code count} schedules in next fire time order, overdue ones first.
+     */
+    @NonNull
+    public List<SchedulerOption> nextDue(int count) {
+        return toOptions(dueByTime, count);
+    }
+
+    /**
+     * @return the schedules whose next fire time is in {@code [fromMillis, toMillis)}, in fire
+     * time order. Recurring schedules only show up with their next occurrence.
+     */
+    @NonNull
+    public List<SchedulerOption> dueBetween(long fromMillis, long toMillis) {
+        if (fromMillis >= toMillis) {
+            return new ArrayList<>();
+        }
+        return toOptions(dueByTime.subSet(
+                new Due(Integer.MIN_VALUE, fromMillis), true,
+                new Due(Integer.MIN_VALUE, toMillis), false), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the next fire time of a schedule as of its last add or fire, or
+     * {@link Long#MAX_VALUE} if it isn't registered.
+     */
+    public long getNextTriggerAt(int scheduleId) {
+        Due due = dueById.get(scheduleId);
+        return due == null ? Long.MAX_VALUE : due.triggerAtMillis;
+    }
+
+    /**
+     * Returns the next fire time of {@code option}, or {@code defaultMillis} if another schedule
+     * has taken its id since.
+     */
+    public long getNextTriggerAt(@NonNull SchedulerOption option, long defaultMillis) {
+        SchedulerOption stored = options.get(option.getScheduleId());
+        Due due = dueById.get(option.getScheduleId());
+        return stored != null && due != null && stored.hasSameSchedule(option)
+                ? due.triggerAtMillis : defaultMillis;
+    }
+
+    public long getLastFiredAt(int scheduleId) {
+        Long firedAt = lastFiredAt.get(scheduleId);
+        return firedAt == null ? NEVER_FIRED : firedAt;
+    }
+
+    /**
+     * Returns true when every stored schedule has been handed to the system since the current
+     * boot. Alarms and jobs don't survive a reboot, so until then a stored schedule may not be
+     * armed at all even though it looks unchanged.
+     */
+    public boolean isRegisteredSinceBoot() {
+        return options.isEmpty()
+                || Math.abs(registeredBootAtMillis - getBootAtMillis()) < BOOT_TOLERANCE_MILLIS;
+    }
+
+    /**
+     * Records that every stored schedule has been handed to the system during this boot.
+     */
+    public void markRegisteredSinceBoot() {
+        long bootAtMillis = getBootAtMillis();
+        if (Math.abs(registeredBootAtMillis - bootAtMillis) < BOOT_TOLERANCE_MILLIS) {
+            return;
+        }
+        synchronized (journalLock) {
+            registeredBootAtMillis = bootAtMillis;
+            try {
+                DataOutputStream out = openJournal();
+                out.writeByte(OP_REGISTERED);
+                out.writeLong(bootAtMillis);
+                commit(out);
+            } catch (IOException e) {
+                onWriteFailed(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the engine the scheduler backend last ran with, 0 if it was never set, so that a
+     * fresh process arms schedules the same way before anything has been added.
+     */
+    public int getEngine() {
+        return engine;
+    }
+
+    public void setEngine(int engine) {
+        if (this.engine == engine) {
+            return;
+        }
+        synchronized (journalLock) {
+            this.engine = engine;
+            try {
+                DataOutputStream out = openJournal();
+                out.writeByte(OP_ENGINE);
+                out.writeInt(engine);
+                commit(out);
+            } catch (IOException e) {
+                onWriteFailed(e);
+            }
+        }
+    }
+
+    private static long getBootAtMillis() {
+        return SchedulerCompat.getClock().currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    public void put(@NonNull SchedulerOption option) {
+        Lock lock = locks.get(option.getScheduleId());
+        lock.lock();
+        try {
+            putLocal(option);
+            synchronized (journalLock) {
+                try {
+                    DataOutputStream out = openJournal();
+                    out.writeByte(OP_ADD);
+                    SchedulerOptionCodec.write(out, option);
+                    commit(out);
+                } catch (IOException e) {
+                    onWriteFailed(e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void putAll(@NonNull Collection<SchedulerOption> options) {
+        if (options.isEmpty()) {
+            return;
+        }
+        locks.lockAll();
+        try {
+            for (SchedulerOption option : options) {
+                putLocal(option);
+            }
+            synchronized (journalLock) {
+                try {
+                    DataOutputStream out = openJournal();
+                    for (SchedulerOption option : options) {
+                        out.writeByte(OP_ADD);
+                        SchedulerOptionCodec.write(out, option);
+                    }
+                    commit(out, options.size());
+                } catch (IOException e) {
+                    onWriteFailed(e);
+                }
+            }
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    public void remove(int scheduleId) {
+        Lock lock = locks.get(scheduleId);
+        lock.lock();
+        try {
+            if (removeLocal(scheduleId) == null) {
+                return;
+            }
+            synchronized (journalLock) {
+                try {
+                    DataOutputStream out = openJournal();
+                    out.writeByte(OP_CANCEL);
+                    out.writeInt(scheduleId);
+                    commit(out);
+                } catch (IOException e) {
+                    onWriteFailed(e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeAll(@NonNull int[] scheduleIds) {
+        locks.lockAll();
+        try {
+            int[] removedIds = new int[scheduleIds.length];
+            int removed = 0;
+            for (int scheduleId : scheduleIds) {
+                if (removeLocal(scheduleId) != null) {
+                    removedIds[removed++] = scheduleId;
+                }
+            }
+            if (removed == 0) {
+                return;
+            }
+            synchronized (journalLock) {
+                try {
+                    DataOutputStream out = openJournal();
+                    for (int i = 0; i < removed; i++) {
+                        out.writeByte(OP_CANCEL);
+                        out.writeInt(removedIds[i]);
+                    }
+                    commit(out, removed);
+                } catch (IOException e) {
+                    onWriteFailed(e);
+                }
+            }
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    public void markFired(int scheduleId, long firedAtMillis) {
+        Lock lock = locks.get(scheduleId);
+        lock.lock();
+        try {
+            if (!options.containsKey(scheduleId)) {
+                return;
+            }
+            markFiredLocal(scheduleId, firedAtMillis);
+            synchronized (journalLock) {
+                try {
+                    DataOutputStream out = openJournal();
+                    out.writeByte(OP_FIRE);
+                    out.writeInt(scheduleId);
+                    out.writeLong(firedAtMillis);
+                    commit(out);
+                } catch (IOException e) {
+                    onWriteFailed(e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the next fire times of {@code options} with ones computed by the caller, e.g.
+     * after the time zone has changed under them. Options that have been replaced or cancelled
+     * since are left alone. Fire times are derived state, so nothing is journaled.
+     */
+    public void setNextTriggers(@NonNull List<SchedulerOption> options, @NonNull long[] triggerAtMillis) {
+        locks.lockAll();
+        try {
+            for (int i = 0; i < triggerAtMillis.length; i++) {
+                SchedulerOption option = options.get(i);
+                if (this.options.get(option.getScheduleId()) != option) {
+                    continue;
+                }
+                Due due = dueById.get(option.getScheduleId());
+                if (due != null) {
+                    dueByTime.remove(due);
+                }
+                index(option, triggerAtMillis[i]);
+            }
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    public void clear() {
+        locks.lockAll();
+        try {
+            clearLocal();
+            synchronized (journalLock) {
+                try {
+                    DataOutputStream out = openJournal();
+                    out.writeByte(OP_CLEAR);
+                    commit(out);
+                } catch (IOException e) {
+                    onWriteFailed(e);
+                }
+            }
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    private void putLocal(@NonNull SchedulerOption option) {
+        int scheduleId = option.getScheduleId();
+        SchedulerOption previous = options.put(scheduleId, option);
+        lastFiredAt.remove(scheduleId);
+        if (previous != null) {
+            unindex(previous);
+        }
+        index(option, Recurrence.getFirstTriggerAt(option));
+    }
+
+    @Nullable
+    private SchedulerOption removeLocal(int scheduleId) {
+        SchedulerOption removed = options.remove(scheduleId);
+        if (removed == null) {
+            return null;
+        }
+        lastFiredAt.remove(scheduleId);
+        unindex(removed);
+        return removed;
+    }
+
+    private void markFiredLocal(int scheduleId, long firedAtMillis) {
+        lastFiredAt.put(scheduleId, firedAtMillis);
+        SchedulerOption option = options.get(scheduleId);
+        Due due = dueById.get(scheduleId);
+        if (option != null && due != null && Recurrence.isRecurring(option)) {
+            dueByTime.remove(due);
+            index(option, Recurrence.getNextTriggerAfter(option, due.triggerAtMillis, firedAtMillis));
+        }
+    }
+
+    private void clearLocal() {
+        options.clear();
+        lastFiredAt.clear();
+        groups.clear();
+        names.clear();
+        dueById.clear();
+        dueByTime.clear();
+    }
+
+    private void index(@NonNull SchedulerOption option, long triggerAtMillis) {
+        Due due = new Due(option.getScheduleId(), triggerAtMillis);
+        dueById.put(option.getScheduleId(), due);
+        dueByTime.add(due);
+        addToIndex(groups, option.getGroup(), option.getScheduleId());
+        addToIndex(names, option.getScheduleName(), option.getScheduleId());
+    }
+
+    private void unindex(@NonNull SchedulerOption option) {
+        Due due = dueById.remove(option.getScheduleId());
+        if (due != null) {
+            dueByTime.remove(due);
+        }
+        removeFromIndex(groups, option.getGroup(), option.getScheduleId());
+        removeFromIndex(names, option.getScheduleName(), option.getScheduleId());
+    }
+
+    /**
+     * Index updates lock the index so a key emptied by {@link #removeFromIndex} can't be dropped
+     * while another schedule is joining it. Lookups read it without locking.
+     */
+    private static void addToIndex(
+            @NonNull ConcurrentMap<String, Set<Integer>> index,
+            @Nullable String key,
+            int scheduleId
+    ) {
+        if (key == null) {
+            return;
+        }
+        synchronized (index) {
+            Set<Integer> scheduleIds = index.get(key);
+            if (scheduleIds == null) {
+                scheduleIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+                index.put(key, scheduleIds);
+            }
+            scheduleIds.add(scheduleId);
+        }
+    }
+
+    private static void removeFromIndex(
+            @NonNull ConcurrentMap<String, Set<Integer>> index,
+            @Nullable String key,
+            int scheduleId
+    ) {
+        if (key == null) {
+            return;
+        }
+        synchronized (index) {
+            Set<Integer> scheduleIds = index.get(key);
+            if (scheduleIds != null && scheduleIds.remove(scheduleId) && scheduleIds.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    @NonNull
+    private List<SchedulerOption> toOptions(@NonNull Collection<Due> dues, int limit) {
+        List<SchedulerOption> result = new ArrayList<>();
+        for (Due due : dues) {
+            if (result.size() == limit) {
+                break;
+            }
+            SchedulerOption option = options.get(due.scheduleId);
+            if (option != null) {
+                result.add(option);
+            }
+        }
+        return result;
+    }
+
+    private static int[] toArray(@NonNull Set<Integer> scheduleIds) {
+        // Weakly consistent: ids added or removed meanwhile may or may not be included.
+        List<Integer> snapshot = new ArrayList<>(scheduleIds);
+        int[] array = new int[snapshot.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = snapshot.get(i);
+        }
+        return array;
+    }
+
+    private void commit(@NonNull DataOutputStream out) throws IOException {
+        commit(out, 1);
+    }
+
+    private void commit(@NonNull DataOutputStream out, int records) throws IOException {
+        out.flush();
+        committedLength = appendedFrom + out.size();
+        recordCount += records;
+        if (recordCount >= COMPACT_MIN_RECORDS
+                && recordCount > 2 * (options.size() + lastFiredAt.size())) {
+            compact();
+        }
+    }
+
+    private DataOutputStream openJournal() throws IOException {
+        if (out == null) {
+            boolean fresh = !journal.exists() || journal.length() < HEADER_SIZE;
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(journal, !fresh), BUFFER_SIZE));
+            appendedFrom = fresh ? 0 : journal.length();
+            if (fresh) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                recordCount = 0;
+            }
+        }
+        return out;
+    }
+
+    private void closeJournal() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close schedule journal", e);
+            }
+            out = null;
+        }
+    }
+
+    private void compact() throws IOException {
+        // Writers update memory before appending, so a change that races with this snapshot is
+        // appended after it and replays to the same state.
+        closeJournal();
+
+        FileOutputStream file = new FileOutputStream(compactJournal);
+        DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+        try {
+            compacted.writeInt(MAGIC);
+            compacted.writeInt(VERSION);
+            for (SchedulerOption option : options.values()) {
+                compacted.writeByte(OP_ADD);
+                SchedulerOptionCodec.write(compacted, option);
+            }
+            for (Map.Entry<Integer, Long> fired : lastFiredAt.entrySet()) {
+                compacted.writeByte(OP_FIRE);
+                compacted.writeInt(fired.getKey());
+                compacted.writeLong(fired.getValue());
+            }
+            if (registeredBootAtMillis != UNKNOWN_BOOT) {
+                compacted.writeByte(OP_REGISTERED);
+                compacted.writeLong(registeredBootAtMillis);
+            }
+            if (engine != 0) {
+                compacted.writeByte(OP_ENGINE);
+                compacted.writeInt(engine);
+            }
+            // Synced before the rename, so a crash can't leave the journal replaced by a file
+            // whose contents never reached the disk.
+            compacted.flush();
+            file.getFD().sync();
+        } finally {
+            compacted.close();
+        }
+
+        if (!compactJournal.renameTo(journal)) {
+            throw new IOException("Unable to replace " + journal);
+        }
+        committedLength = journal.length();
+        recordCount = options.size() + lastFiredAt.size();
+    }
+
+    private void onWriteFailed(@NonNull IOException e) {
+        Log.e(TAG, "Unable to write schedule journal", e);
+        closeJournal();
+        truncate(committedLength);
+    }
+
+    private void replay() {
+        if (!journal.exists()) {
+            return;
+        }
+
+        CountingInputStream counter = null;
+        long validLength = 0;
+        try {
+            counter = new CountingInputStream(new BufferedInputStream(
+                    new FileInputStream(journal), BUFFER_SIZE));
+            DataInputStream in = new DataInputStream(counter);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Discarding schedule journal with unknown format");
+                counter.close();
+                counter = null;
+                if (!journal.delete()) {
+                    Log.e(TAG, "Unable to delete " + journal);
+                }
+                return;
+            }
+            validLength = counter.count;
+
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    break;
+                }
+                replayRecord(in, op);
+                recordCount++;
+                validLength = counter.count;
+            }
+            committedLength = validLength;
+        } catch (EOFException e) {
+            Log.w(TAG, "Schedule journal ends with a partial record, truncating");
+            truncate(validLength);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to replay schedule journal", e);
+            truncate(validLength);
+        } finally {
+            if (counter != null) {
+                try {
+                    counter.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void replayRecord(@NonNull DataInputStream in, int op) throws IOException {
+        switch (op) {
+            case OP_ADD:
+                putLocal(SchedulerOptionCodec.read(in));
+                break;
+            case OP_CANCEL:
+                removeLocal(in.readInt());
+                break;
+            case OP_FIRE:
+                markFiredLocal(in.readInt(), in.readLong());
+                break;
+            case OP_CLEAR:
+                clearLocal();
+                break;
+            case OP_REGISTERED:
+                registeredBootAtMillis = in.readLong();
+                break;
+            case OP_ENGINE:
+                engine = in.readInt();
+                break;
+            default:
+                throw new IOException("Unknown journal record " + op);
+        }
+    }
+
+    private void truncate(long length) {
+        if (length < HEADER_SIZE) {
+            length = 0;
+        }
+        committedLength = length;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(journal, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to truncate schedule journal", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Entry of the time index, ordered by fire time and then schedule id.
+     */
+    private static final class Due implements Comparable<Due> {
+        final int scheduleId;
+        final long triggerAtMillis;
+
+        Due(int scheduleId, long triggerAtMillis) {
+            this.scheduleId = scheduleId;
+            this.triggerAtMillis = triggerAtMillis;
+        }
+
+        @Override
+        public int compareTo(@NonNull Due other) {
+            if (triggerAtMillis != other.triggerAtMillis) {
+                return triggerAtMillis < other.triggerAtMillis ? -1 : 1;
+            }
+            return scheduleId < other.scheduleId ? -1 : (scheduleId == other.scheduleId ? 0 : 1);
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -4,20 +4,31 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.IntentFilter;
 import android.os.Build;
-import android.preference.PreferenceManager;
+import android.provider.Settings;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
 import android.util.Pair;
-import android.util.SparseArray;
 
 import com.tech21.lunart.scheduler.compat.v21.SchedulerService;
 import com.tech21.lunart.scheduler.compat.v4.AlarmReceiver;
 import com.tech21.lunart.scheduler.compat.v4.AlarmService;
 
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SchedulerCompat implements IScheduler<SchedulerCompat>, IScheduler.Lifecycle {
     @IntDef({
@@ -25,7 +36,8 @@ public class SchedulerCompat implements IScheduler<SchedulerCompat>, IScheduler.
         OCCUR_EVERY_DAYLIGHT,
         OCCUR_ONCE,
         OCCUR_ONCE_IMMEDIATELY,
-        OCCUR_EVERY_SPECIFIC_TIME
+        OCCUR_EVERY_SPECIFIC_TIME,
+        OCCUR_CRON
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface RecurringType { }
@@ -35,39 +47,236 @@ public class SchedulerCompat implements IScheduler<SchedulerCompat>, IScheduler.
     public static final int OCCUR_ONCE = 2;
     public static final int OCCUR_ONCE_IMMEDIATELY = 3;
     public static final int OCCUR_EVERY_SPECIFIC_TIME = 4;
+    public static final int OCCUR_CRON = 5;
 
-    private final SparseArray<Pair<String, BroadcastReceiver>> scheduleReceivers = new SparseArray<>();
-    private WeakReference<Context> context;
-    private ReceiverState receiverState;
-    private static SchedulerCompat sInstance;
+    @IntDef({
+        MISFIRE_FIRE_ONCE,
+        MISFIRE_FIRE_ALL,
+        MISFIRE_SKIP_TO_NEXT
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface MisfirePolicy { }
+
+    /**
+     * Occurrences of a recurring schedule missed while the device slept fire once, as the
+     * latest of them, with {@link ScheduleEvent#getMissedCount()} telling how many came before.
+     */
+    public static final int MISFIRE_FIRE_ONCE = 0;
+
+    /**
+     * Every missed occurrence fires, oldest first, each with its own
+     * {@link ScheduleEvent#getTriggerAt()}. At most {@link Misfire#MAX_CATCH_UP_FIRES} are
+     * delivered; older ones are counted as missed by the first.
+     */
+    public static final int MISFIRE_FIRE_ALL = 1;
+
+    /**
+     * Once an occurrence has been missed, nothing fires until the next one.
+     */
+    public static final int MISFIRE_SKIP_TO_NEXT = 2;
+
+    @IntDef(flag = true, value = {
+        CONSTRAINT_UNMETERED_NETWORK,
+        CONSTRAINT_CHARGING,
+        CONSTRAINT_DEVICE_IDLE,
+        CONSTRAINT_BATTERY_NOT_LOW
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Constraint { }
+
+    public static final int CONSTRAINT_UNMETERED_NETWORK = 1;
+    public static final int CONSTRAINT_CHARGING = 1 << 1;
+    public static final int CONSTRAINT_DEVICE_IDLE = 1 << 2;
+    public static final int CONSTRAINT_BATTERY_NOT_LOW = 1 << 3;
+
+    private static final String TAG = SchedulerCompat.class.getSimpleName();
+
+    private final ConcurrentHashMap<Integer, Pair<String, BroadcastReceiver>> scheduleReceivers =
+            new ConcurrentHashMap<>();
+    private final ReceiverState receiverState = new ReceiverState();
+    private final ScheduleDispatcher dispatcher = ScheduleDispatcher.getInstance();
+    private final AlarmReceiver alarmReceiver = new AlarmReceiver();
+    private volatile WeakReference<Context> context;
+    private static volatile SchedulerCompat sInstance;
+    private static volatile Clock sClock = Clock.SYSTEM;
+    private static volatile long sJitterSeed;
+    private static volatile boolean sJitterSeedSet;
+    // Reading ANDROID_ID is an IPC, so the seed is resolved on first use rather than here.
+    private static volatile WeakReference<Context> sSeedContext;
+    private static final Object sSeedLock = new Object();
 
-    private SchedulerCompat(@NonNull Context context) {
+    // Deferred initialization. Operations made before it has finished are queued and replayed
+    // in order by the thread running it.
+    private final List<Runnable> pendingOperations = new ArrayList<>();
+    private final AtomicBoolean initStarted = new AtomicBoolean();
+    private final CountDownLatch initFinished = new CountDownLatch(1);
+    private volatile boolean initialized;
+    private volatile Thread initThread;
+    private volatile RuntimeException initFailure;
+    private final boolean initOnFirstUse;
+
+    /**
+     * @param initExecutor runs the deferred setup, or null to run it on the thread that first
+     * uses the scheduler. Ignored unless {@code deferInit} is set.
+     */
+    @VisibleForTesting
+    SchedulerCompat(@NonNull Context context, boolean deferInit, @Nullable Executor initExecutor) {
         this.context = new WeakReference<>(context.getApplicationContext());
-        this.receiverState = new ReceiverState(context);
-        registerReceiverPreOreo();
+        sSeedContext = this.context;
+        initOnFirstUse = deferInit && initExecutor == null;
+        if (!deferInit) {
+            registerReceiverPreOreo();
+            initStarted.set(true);
+            initialized = true;
+            initFinished.countDown();
+        } else if (initExecutor != null) {
+            initExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    initialize();
+                }
+            });
+        }
     }
 
     public static SchedulerCompat with(@NonNull Context context) {
-        if (sInstance == null) {
-            sInstance = new SchedulerCompat(context);
+        return with(context, false, null);
+    }
+
+    /**
+     * Like {@link #with(Context)}, but the first call returns right away and leaves the setup,
+     * i.e. replaying the schedule journal and registering the alarm receiver, to the first
+     * call that uses the scheduler. Meant for {@code Application.onCreate()}, to keep it off
+     * the cold start path when nothing is scheduled there.
+     */
+    public static SchedulerCompat withDeferredInit(@NonNull Context context) {
+        return with(context, true, null);
+    }
+
+    /**
+     * Like {@link #withDeferredInit(Context)}, but the setup is handed to {@code executor}
+     * right away. Schedules added or cancelled before it has finished are queued and applied
+     * in order; queries and {@link #addIfChanged(Collection)} wait for it.
+     */
+    public static SchedulerCompat withDeferredInit(
+            @NonNull Context context,
+            @NonNull Executor executor
+    ) {
+        return with(context, true, executor);
+    }
+
+    private static SchedulerCompat with(
+            @NonNull Context context,
+            boolean deferInit,
+            @Nullable Executor initExecutor
+    ) {
+        SchedulerCompat instance = sInstance;
+        if (instance == null) {
+            synchronized (SchedulerCompat.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new SchedulerCompat(context, deferInit, initExecutor);
+                    sInstance = instance;
+                }
+            }
         }
-        if (sInstance.context == null || sInstance.context.get() == null) {
-            sInstance.context = new WeakReference<>(context);
+        if (instance.context == null || instance.context.get() == null) {
+            instance.context = new WeakReference<>(context);
         }
-        return sInstance;
+        return instance;
+    }
+
+    /**
+     * Switches between delivering fires through system broadcasts to dynamically registered
+     * receivers and handing them straight to the receivers within this process.
+     */
+    public SchedulerCompat setDispatchMode(@ScheduleDispatcher.DispatchMode final int mode) {
+        assert context != null && context.get() != null;
+        if (!initialized && defer(new Runnable() {
+            @Override
+            public void run() {
+                setDispatchMode(mode);
+            }
+        })) {
+            return this;
+        }
+        if (dispatcher.getMode() == mode) {
+            return this;
+        }
+
+        unregisterReceivers();
+        dispatcher.setMode(mode);
+        registerReceivers();
+        return this;
+    }
+
+    /**
+     * Routes fires of the given action to a {@link ScheduleHandler}. Handlers only live as long
+     * as the process, so register them from {@code Application.onCreate()} for schedules that
+     * may fire after a cold start.
+     */
+    public SchedulerCompat registerHandler(@NonNull String actionName, @NonNull ScheduleHandler handler) {
+        dispatcher.registerHandler(actionName, handler);
+        return this;
+    }
+
+    public SchedulerCompat unregisterHandler(@NonNull String actionName) {
+        dispatcher.unregisterHandler(actionName);
+        return this;
+    }
+
+    /**
+     * Replaces the executor {@link ScheduleHandler}s run on. The dispatch limits still decide
+     * how many of them run at once, see {@link #setDispatchLimits(int, int)}.
+     */
+    public SchedulerCompat setHandlerExecutor(@NonNull Executor executor) {
+        dispatcher.setExecutor(executor);
+        return this;
+    }
+
+    /**
+     * Runs at most {@code maxConcurrent} {@link ScheduleHandler}s at a time and queues up to
+     * {@code queueCapacity} more, so that schedules firing together don't all start at once.
+     * Fires beyond that are retried after a short random delay, see
+     * {@link ScheduleDispatcher#OVERFLOW_RETRY_WINDOW_MILLIS}, and counted in
+     * {@link com.tech21.lunart.scheduler.compat.metrics.SchedulerMetrics}.
+     *
+     * @throws IllegalArgumentException if {@code maxConcurrent} is less than 1 or
+     *                                  {@code queueCapacity} is negative.
+     */
+    public SchedulerCompat setDispatchLimits(int maxConcurrent, int queueCapacity) {
+        dispatcher.setLimits(maxConcurrent, queueCapacity);
+        return this;
     }
 
     @Override
     public void onStart() {
+        if (!initialized && defer(new Runnable() {
+            @Override
+            public void run() {
+                onStart();
+            }
+        })) {
+            return;
+        }
         registerReceiverPreOreo();
         registerReceivers();
     }
 
     @Override
-    public SchedulerCompat add(@NonNull SchedulerOption option) {
+    public SchedulerCompat add(@NonNull final SchedulerOption option) {
         assert context != null && context.get() != null;
+        if (!initialized && defer(new Runnable() {
+            @Override
+            public void run() {
+                add(option);
+            }
+        })) {
+            return this;
+        }
 
-        registerReceiver(option.getScheduleId(), option.getScheduleReceiver());
+        register(option);
+        writePayload(option);
 
         Context context = this.context.get();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -80,114 +289,523 @@ public class SchedulerCompat implements IScheduler<SchedulerCompat>, IScheduler.
     }
 
     @Override
-    public void cancel(int scheduleId) {
+    public SchedulerCompat addAll(@NonNull Collection<SchedulerOption> options) {
         assert context != null && context.get() != null;
+        if (!initialized) {
+            // The caller may reuse its collection before the queue is replayed.
+            final List<SchedulerOption> queued = new ArrayList<>(options);
+            if (defer(new Runnable() {
+                @Override
+                public void run() {
+                    addAll(queued);
+                }
+            })) {
+                return this;
+            }
+        }
+
+        registerReceivers(options);
+        for (SchedulerOption option : options) {
+            writePayload(option);
+        }
 
         Context context = this.context.get();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            SchedulerService.with(context).addAll(options);
+        } else {
+            AlarmService.with(context).addAll(options);
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds {@code options} the way {@link #addAll(Collection)} does, but leaves the system alone
+     * for every option that is registered with the same content already, so that the same set
+     * can be added on every launch without any alarm or job being set again. After a reboot
+     * every stored schedule is registered once more, since the system has dropped them all.
+     */
+    @NonNull
+    public AddResult addIfChanged(@NonNull Collection<SchedulerOption> options) {
+        assert context != null && context.get() != null;
+        awaitInitialized();
+
+        ScheduleStore store = ScheduleStore.with(context.get());
+        boolean registered = store.isRegisteredSinceBoot();
+        Map<Integer, SchedulerOption> changed = new LinkedHashMap<>();
+        int added = 0;
+        int updated = 0;
+        int unchanged = 0;
+        for (SchedulerOption option : options) {
+            SchedulerOption existing = store.get(option.getScheduleId());
+            if (existing == null) {
+                added++;
+                changed.put(option.getScheduleId(), option);
+            } else if (existing.getContentHash() != option.getContentHash()
+                    || !existing.hasSameSchedule(option)) {
+                updated++;
+                changed.put(option.getScheduleId(), option);
+            } else {
+                unchanged++;
+                if (!registered) {
+                    changed.put(option.getScheduleId(), option);
+                }
+            }
+        }
+        if (!registered) {
+            for (SchedulerOption option : store.getAll()) {
+                if (!changed.containsKey(option.getScheduleId())) {
+                    changed.put(option.getScheduleId(), option);
+                }
+            }
+        }
+
+        // Receivers and handlers only live in this process, so they are registered regardless.
+        registerReceivers(options);
+        if (!changed.isEmpty()) {
+            for (SchedulerOption option : changed.values()) {
+                writePayload(option);
+            }
+            Context context = this.context.get();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                SchedulerService.with(context).addAll(changed.values());
+            } else {
+                AlarmService.with(context).addAll(changed.values());
+            }
+        }
+        store.markRegisteredSinceBoot();
+        PayloadStore.with(context.get()).sweep(store);
+        return new AddResult(added, updated, unchanged);
+    }
+
+    @Override
+    public void cancel(final int scheduleId) {
+        assert context != null && context.get() != null;
+        if (!initialized && defer(new Runnable() {
+            @Override
+            public void run() {
+                cancel(scheduleId);
+            }
+        })) {
+            return;
+        }
+
+        Context context = this.context.get();
+        SchedulerOption option = ScheduleStore.with(context).get(scheduleId);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             SchedulerService.with(context).cancel(scheduleId);
+        } else {
+            AlarmService.with(context).cancel(scheduleId);
+            unregisterReceiver(scheduleId);
+        }
+        deletePayload(option);
+    }
+
+    @Override
+    public void cancel(@NonNull int[] scheduleIds) {
+        assert context != null && context.get() != null;
+        if (!initialized) {
+            final int[] queued = scheduleIds.clone();
+            if (defer(new Runnable() {
+                @Override
+                public void run() {
+                    cancel(queued);
+                }
+            })) {
+                return;
+            }
+        }
+
+        Context context = this.context.get();
+        ScheduleStore store = ScheduleStore.with(context);
+        SchedulerOption[] options = new SchedulerOption[scheduleIds.length];
+        for (int i = 0; i < scheduleIds.length; i++) {
+            options[i] = store.get(scheduleIds[i]);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            SchedulerService.with(context).cancel(scheduleIds);
+        } else {
+            AlarmService.with(context).cancel(scheduleIds);
+            unregisterReceivers(scheduleIds);
+        }
+        for (SchedulerOption option : options) {
+            deletePayload(option);
+        }
+    }
+
+    /**
+     * Cancels every schedule added with {@link SchedulerOption.Builder#group(String)}.
+     */
+    @Override
+    public void cancelGroup(@NonNull final String group) {
+        assert context != null && context.get() != null;
+        if (!initialized && defer(new Runnable() {
+            @Override
+            public void run() {
+                cancelGroup(group);
+            }
+        })) {
             return;
         }
-        AlarmService.with(context).cancel(scheduleId);
-        unregisterReceiver(scheduleId);
+
+        cancel(ScheduleStore.with(context.get()).getScheduleIds(group));
     }
 
     @Override
     public void cancelAll() {
         assert context != null && context.get() != null;
+        if (!initialized && defer(new Runnable() {
+            @Override
+            public void run() {
+                cancelAll();
+            }
+        })) {
+            return;
+        }
 
         Context context = this.context.get();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             SchedulerService.with(context).cancelAll();
-            return;
+        } else {
+            AlarmService.with(context).cancelAll();
+            for (Integer scheduleId : scheduleReceivers.keySet()) {
+                unregisterReceiver(scheduleId);
+            }
         }
-        AlarmService.with(context).cancelAll();
+        PayloadStore.with(context).sweep(ScheduleStore.with(context));
+    }
+
+    /**
+     * @return up to {@code count} registered schedules in next fire time order, overdue ones first.
+     */
+    @NonNull
+    public List<SchedulerOption> nextDue(int count) {
+        assert context != null && context.get() != null;
+        awaitInitialized();
+        return ScheduleStore.with(context.get()).nextDue(count);
+    }
+
+    /**
+     * @return the registered schedules whose next fire time is in {@code [fromMillis, toMillis)}.
+     */
+    @NonNull
+    public List<SchedulerOption> dueBetween(long fromMillis, long toMillis) {
+        assert context != null && context.get() != null;
+        awaitInitialized();
+        return ScheduleStore.with(context.get()).dueBetween(fromMillis, toMillis);
+    }
+
+    @NonNull
+    public List<SchedulerOption> findByName(@NonNull String scheduleName) {
+        assert context != null && context.get() != null;
+        awaitInitialized();
+        return ScheduleStore.with(context.get()).findByName(scheduleName);
+    }
+
+    public long getNextTriggerAt(int scheduleId) {
+        assert context != null && context.get() != null;
+        awaitInitialized();
+        return ScheduleStore.with(context.get()).getNextTriggerAt(scheduleId);
     }
 
     @Override
     public void onStop() {
+        if (!initialized && defer(new Runnable() {
+            @Override
+            public void run() {
+                onStop();
+            }
+        })) {
+            return;
+        }
         unregisterReceiverPreOreo();
         unregisterReceivers();
     }
 
+    /**
+     * Runs the deferred setup, then the operations queued meanwhile, until none is left.
+     * Returns right away when another thread has started it already.
+     */
+    private void initialize() {
+        if (!initStarted.compareAndSet(false, true)) {
+            return;
+        }
+        initThread = Thread.currentThread();
+        try {
+            ScheduleStore.with(context.get());
+            registerReceiverPreOreo();
+            while (true) {
+                List<Runnable> operations;
+                synchronized (pendingOperations) {
+                    if (pendingOperations.isEmpty()) {
+                        initialized = true;
+                        break;
+                    }
+                    operations = new ArrayList<>(pendingOperations);
+                    pendingOperations.clear();
+                }
+                for (Runnable operation : operations) {
+                    operation.run();
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Deferred initialization failed", e);
+            initFailure = e;
+            throw e;
+        } finally {
+            initThread = null;
+            initFinished.countDown();
+        }
+    }
+
+    /**
+     * Queues {@code operation} while the deferred setup hasn't finished, after starting it on
+     * this thread if no executor has been given one.
+     *
+     * @return false if it has, or if called while replaying the queue; the caller then runs
+     * the operation itself.
+     */
+    private boolean defer(@NonNull Runnable operation) {
+        if (initOnFirstUse) {
+            initialize();
+        }
+        synchronized (pendingOperations) {
+            if (initialized || Thread.currentThread() == initThread) {
+                return false;
+            }
+            checkInitFailure();
+            pendingOperations.add(operation);
+            return true;
+        }
+    }
+
+    /**
+     * Runs the deferred setup on this thread if it hasn't started yet, and waits for it
+     * otherwise.
+     */
+    private void awaitInitialized() {
+        if (initialized || Thread.currentThread() == initThread) {
+            return;
+        }
+        initialize();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                initFinished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkInitFailure();
+    }
+
+    private void checkInitFailure() {
+        if (initFailure != null) {
+            throw new IllegalStateException("SchedulerCompat failed to initialize", initFailure);
+        }
+    }
+
+    private void writePayload(@NonNull SchedulerOption option) {
+        if (option.getPayload() == null) {
+            return;
+        }
+        try {
+            PayloadStore.with(context.get()).write(option);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to store the payload of " + option, e);
+        }
+    }
+
+    private void deletePayload(@Nullable SchedulerOption option) {
+        if (option != null && option.getPayloadHandle() != 0) {
+            PayloadStore.with(context.get()).delete(option.getScheduleId(), option.getPayloadHandle());
+        }
+    }
+
+    private void register(@NonNull SchedulerOption option) {
+        Pair<String, BroadcastReceiver> scheduleReceiver = option.getScheduleReceiver();
+        if (option.getScheduleHandler() != null) {
+            dispatcher.registerHandler(scheduleReceiver.first, option.getScheduleHandler());
+        }
+        if (scheduleReceiver.second != null) {
+            registerReceiver(option.getScheduleId(), scheduleReceiver);
+        }
+    }
+
     private void registerReceiver(
             int scheduleId,
             @NonNull Pair<String, BroadcastReceiver> scheduleReceiver
     ) {
-        if (!receiverState.didReceiverRegistered(scheduleReceiver.first)) {
-            context.get().registerReceiver(scheduleReceiver.second, new IntentFilter(scheduleReceiver.first));
-            receiverState.setDidReceiverRegistered(scheduleReceiver.first, true);
-            scheduleReceivers.append(scheduleId, scheduleReceiver);
+        scheduleReceivers.put(scheduleId, scheduleReceiver);
+        registerReceiver(scheduleReceiver);
+    }
+
+    private void registerReceiver(@NonNull Pair<String, BroadcastReceiver> scheduleReceiver) {
+        if (receiverState.markRegistered(scheduleReceiver.first)) {
+            if (dispatcher.isInProcess()) {
+                dispatcher.register(scheduleReceiver.first, scheduleReceiver.second);
+            } else {
+                context.get().registerReceiver(scheduleReceiver.second, new IntentFilter(scheduleReceiver.first));
+            }
+        }
+    }
+
+    private void registerReceivers(@NonNull Collection<SchedulerOption> options) {
+        for (SchedulerOption option : options) {
+            register(option);
         }
     }
 
     private void registerReceiverPreOreo() {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-            if (!receiverState.didReceiverRegistered(AlarmService.ACTION_SCHEDULE_ALARM_SERVICE_INTENT)) {
-                context.get().registerReceiver(new AlarmReceiver(),
+            if (receiverState.markRegistered(AlarmService.ACTION_SCHEDULE_ALARM_SERVICE_INTENT)) {
+                context.get().registerReceiver(alarmReceiver,
                         new IntentFilter(AlarmService.ACTION_SCHEDULE_ALARM_SERVICE_INTENT));
-                receiverState.setDidReceiverRegistered(AlarmService.ACTION_SCHEDULE_ALARM_SERVICE_INTENT, true);
             }
         }
     }
 
     private void registerReceivers() {
-        for (int i = 0; i < scheduleReceivers.size(); i++) {
-            Pair<String, BroadcastReceiver> receiverPair = scheduleReceivers.valueAt(i);
-            registerReceiver(scheduleReceivers.keyAt(i), receiverPair);
+        for (Pair<String, BroadcastReceiver> scheduleReceiver : scheduleReceivers.values()) {
+            registerReceiver(scheduleReceiver);
         }
     }
 
     private void unregisterReceiver(int scheduleId) {
-        Pair<String, BroadcastReceiver> scheduleReceiver = scheduleReceivers.get(scheduleId);
-        if (receiverState.didReceiverRegistered(scheduleReceiver.first)) {
+        Pair<String, BroadcastReceiver> scheduleReceiver = scheduleReceivers.remove(scheduleId);
+        if (scheduleReceiver == null) {
+            return;
+        }
+        unregisterReceiver(scheduleReceiver);
+    }
+
+    private void unregisterReceiver(@NonNull Pair<String, BroadcastReceiver> scheduleReceiver) {
+        if (receiverState.markUnregistered(scheduleReceiver.first)
+                && !dispatcher.unregister(scheduleReceiver.first, scheduleReceiver.second)) {
             context.get().unregisterReceiver(scheduleReceiver.second);
-            receiverState.setDidReceiverRegistered(scheduleReceiver.first, false);
-            scheduleReceivers.remove(scheduleId);
+        }
+    }
+
+    private void unregisterReceivers(@NonNull int[] scheduleIds) {
+        for (int scheduleId : scheduleIds) {
+            unregisterReceiver(scheduleId);
         }
     }
 
     private void unregisterReceiverPreOreo() {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-            if (receiverState.didReceiverRegistered(AlarmService.ACTION_SCHEDULE_ALARM_SERVICE_INTENT)) {
-                context.get().unregisterReceiver(new AlarmReceiver());
-                receiverState.setDidReceiverRegistered(AlarmService.ACTION_SCHEDULE_ALARM_SERVICE_INTENT, false);
+            if (receiverState.markUnregistered(AlarmService.ACTION_SCHEDULE_ALARM_SERVICE_INTENT)) {
+                context.get().unregisterReceiver(alarmReceiver);
             }
         }
     }
 
     private void unregisterReceivers() {
-        for (int i = 0; i < scheduleReceivers.size(); i++) {
-            unregisterReceiver(scheduleReceivers.keyAt(i));
+        // Lifecycle stop: receivers are kept so that onStart() can register them again.
+        for (Pair<String, BroadcastReceiver> scheduleReceiver : scheduleReceivers.values()) {
+            unregisterReceiver(scheduleReceiver);
         }
     }
 
+    @NonNull
+    public static Clock getClock() {
+        return sClock;
+    }
+
+    public static void setClock(@NonNull Clock clock) {
+        sClock = clock;
+    }
+
+    /**
+     * @return the seed {@link SchedulerOption.Builder#jitter(long)} offsets are derived from,
+     * read once from the install on first use.
+     * @throws IllegalStateException if neither {@link #with(Context)} nor
+     * {@link #setJitterSeed(long)} has been called yet, since any offset derived then would
+     * differ from the one the schedule gets once they have.
+     */
+    public static long getJitterSeed() {
+        if (!sJitterSeedSet) {
+            WeakReference<Context> seedContext = sSeedContext;
+            Context context = seedContext == null ? null : seedContext.get();
+            if (context == null) {
+                throw new IllegalStateException("No jitter seed yet. Call SchedulerCompat.with() "
+                        + "or setJitterSeed() before arming jittered schedules.");
+            }
+            synchronized (sSeedLock) {
+                if (!sJitterSeedSet) {
+                    sJitterSeed = getInstallSeed(context);
+                    sJitterSeedSet = true;
+                }
+            }
+        }
+        return sJitterSeed;
+    }
+
+    /**
+     * Replaces the per-install seed, which is derived from {@link Settings.Secure#ANDROID_ID}
+     * by default, e.g. with a hash of an account id to spread fires across users rather than
+     * devices. Set it before jittered schedules are armed, on every process start.
+     */
+    public static void setJitterSeed(long seed) {
+        synchronized (sSeedLock) {
+            sJitterSeed = seed;
+            sJitterSeedSet = true;
+        }
+    }
+
+    private static long getInstallSeed(@NonNull Context context) {
+        String androidId = Settings.Secure.getString(context.getContentResolver(),
+                Settings.Secure.ANDROID_ID);
+        long seed = 0;
+        if (androidId != null) {
+            for (int i = 0; i < androidId.length(); i++) {
+                seed = 31 * seed + androidId.charAt(i);
+            }
+        }
+        return seed;
+    }
+
     public static long scheduleFor(int hourOfDay, int minutes) {
-        Calendar calendar = Calendar.getInstance();
-        calendar.set(Calendar.HOUR_OF_DAY, hourOfDay);
-        calendar.set(Calendar.MINUTE, minutes);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
-        return calendar.getTimeInMillis();
+        return LocalTimeCalculator.getDefault()
+                .atTimeOfDay(sClock.currentTimeMillis(), hourOfDay, minutes);
     }
 
-    class ReceiverState {
-        private Context context;
+    /**
+     * Tracks which actions currently have a dynamically registered receiver. Registrations die
+     * with the process, so the state is only kept in memory; lookups are lock-free and toggling
+     * an action that has been seen before doesn't allocate.
+     */
+    static class ReceiverState {
+        private final ConcurrentHashMap<String, AtomicBoolean> registrations = new ConcurrentHashMap<>();
 
-        ReceiverState(@NonNull Context context) {
-            this.context = context;
+        boolean didReceiverRegistered(@NonNull String actionName) {
+            AtomicBoolean registered = registrations.get(actionName);
+            return registered != null && registered.get();
         }
 
-        boolean didReceiverRegistered(String actionName) {
-            return PreferenceManager.getDefaultSharedPreferences(context)
-                    .getBoolean(actionName, false);
+        boolean markRegistered(@NonNull String actionName) {
+            return registration(actionName).compareAndSet(false, true);
         }
 
-        void setDidReceiverRegistered(String actionName, boolean status) {
-            PreferenceManager.getDefaultSharedPreferences(context)
-                    .edit()
-                    .putBoolean(actionName, status)
-                    .apply();
+        boolean markUnregistered(@NonNull String actionName) {
+            AtomicBoolean registered = registrations.get(actionName);
+            return registered != null && registered.compareAndSet(true, false);
+        }
+
+        private AtomicBoolean registration(@NonNull String actionName) {
+            AtomicBoolean registered = registrations.get(actionName);
+            if (registered == null) {
+                AtomicBoolean created = new AtomicBoolean();
+                registered = registrations.putIfAbsent(actionName, created);
+                if (registered == null) {
+                    registered = created;
+                }
+            }
+            return registered;
         }
     }
 }
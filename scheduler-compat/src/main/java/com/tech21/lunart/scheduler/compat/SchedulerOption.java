@@ -10,8 +10,10 @@ import android.text.TextUtils;
 import android.util.Pair;
 
 import com.tech21.lunart.scheduler.compat.SchedulerCompat.RecurringType;
+import com.tech21.lunart.scheduler.compat.v21.SchedulerService;
 
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 public class SchedulerOption {
     public static final String SCHEDULE_ID_KEY      = "SCHEDULE_ID_KEY";
@@ -19,6 +21,28 @@ public class SchedulerOption {
     public static final String SCHEDULE_FOR_KEY     = "SCHEDULE_FOR_KEY";
     public static final String RECURRING_TYPE_KEY   = "RECURRING_TYPE_KEY";
     public static final String SCHEDULE_RECEIVER_ACTION_NAME_KEY = "SCHEDULE_RECEIVER_ACTION_NAME_KEY";
+    public static final String CRON_EXPRESSION_KEY  = "CRON_EXPRESSION_KEY";
+    public static final String TOLERANCE_KEY        = "TOLERANCE_KEY";
+    public static final String GROUP_KEY            = "GROUP_KEY";
+    /**
+     * Handle of the schedule's payload, see {@link PayloadStore#map(int, long)}.
+     */
+    public static final String PAYLOAD_HANDLE_KEY   = "PAYLOAD_HANDLE_KEY";
+    public static final String MISFIRE_POLICY_KEY   = "MISFIRE_POLICY_KEY";
+    public static final String JITTER_KEY           = "JITTER_KEY";
+    public static final String CONSTRAINTS_KEY      = "CONSTRAINTS_KEY";
+    /**
+     * Set on fire only: the occurrence being delivered, see {@link ScheduleEvent#getTriggerAt()}.
+     */
+    public static final String TRIGGER_AT_KEY       = "TRIGGER_AT_KEY";
+    /**
+     * Set on fire only, see {@link ScheduleEvent#getMissedCount()}.
+     */
+    public static final String MISSED_COUNT_KEY     = "MISSED_COUNT_KEY";
+    /**
+     * Holds the whole option encoded by {@link SchedulerOptionCodec} in place of the keys above.
+     */
+    public static final String ENCODED_OPTION_KEY   = "ENCODED_OPTION_KEY";
 
 
     private int scheduleId;
@@ -26,19 +50,47 @@ public class SchedulerOption {
     private long scheduleFor;
     private int recurringType;
     private Pair<String, BroadcastReceiver> scheduleReceiver;
+    private ScheduleHandler scheduleHandler;
+    private CronExpression cronExpression;
+    private long toleranceMillis;
+    private String group;
+    private byte[] payload;
+    private long payloadHandle;
+    private int misfirePolicy;
+    private long jitterWindowMillis;
+    private int constraints;
+    private long contentHash;
 
     private SchedulerOption(
             int scheduleId,
             String scheduleName,
             long scheduleFor,
             int recurringType,
-            Pair<String, BroadcastReceiver> scheduleReceiver
+            Pair<String, BroadcastReceiver> scheduleReceiver,
+            ScheduleHandler scheduleHandler,
+            CronExpression cronExpression,
+            long toleranceMillis,
+            String group,
+            byte[] payload,
+            long payloadHandle,
+            int misfirePolicy,
+            long jitterWindowMillis,
+            int constraints
     ) {
         this.scheduleId = scheduleId;
         this.scheduleName = scheduleName;
         this.scheduleFor = scheduleFor;
         this.recurringType = recurringType;
         this.scheduleReceiver = scheduleReceiver;
+        this.scheduleHandler = scheduleHandler;
+        this.cronExpression = cronExpression;
+        this.toleranceMillis = toleranceMillis;
+        this.group = group;
+        this.payload = payload;
+        this.payloadHandle = payloadHandle;
+        this.misfirePolicy = misfirePolicy;
+        this.jitterWindowMillis = jitterWindowMillis;
+        this.constraints = constraints;
     }
 
     public int getScheduleId() {
@@ -61,6 +113,123 @@ public class SchedulerOption {
         return scheduleReceiver;
     }
 
+    public ScheduleHandler getScheduleHandler() {
+        return scheduleHandler;
+    }
+
+    /**
+     * @return the compiled expression of an {@link SchedulerCompat#OCCUR_CRON} schedule.
+     */
+    public CronExpression getCronExpression() {
+        return cronExpression;
+    }
+
+    /**
+     * @return how late the schedule may fire, or 0 if it must fire exactly on time.
+     */
+    public long getToleranceMillis() {
+        return toleranceMillis;
+    }
+
+    /**
+     * @return the group the schedule can be cancelled with, or null.
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * @return the payload passed to {@link Builder#payload(byte[])}, or null. Options restored
+     * from the store or an extra only carry its {@link #getPayloadHandle() handle}.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return the content hash the payload is stored under, or 0 without a payload.
+     */
+    public long getPayloadHandle() {
+        return payloadHandle;
+    }
+
+    public @SchedulerCompat.MisfirePolicy int getMisfirePolicy() {
+        return misfirePolicy;
+    }
+
+    /**
+     * @return the window passed to {@link Builder#jitter(long)}, or 0.
+     */
+    public long getJitterWindowMillis() {
+        return jitterWindowMillis;
+    }
+
+    /**
+     * @return how far every occurrence is shifted past its nominal time, see
+     * {@link Builder#jitter(long)}. It is derived when the schedule is armed, so it follows
+     * the seed of the process arming it.
+     * @throws IllegalStateException if the schedule is jittered and no seed is available yet.
+     */
+    public long getJitterMillis() {
+        if (jitterWindowMillis == 0) {
+            return 0;
+        }
+        return Recurrence.getJitterOffset(scheduleId, jitterWindowMillis, SchedulerCompat.getJitterSeed());
+    }
+
+    /**
+     * @return the {@link SchedulerCompat.Constraint} flags that must hold for the schedule to
+     * run, or 0.
+     */
+    public int getConstraints() {
+        return constraints;
+    }
+
+    /**
+     * Returns true when both options would be scheduled identically, regardless of the receiver
+     * instance that handles them.
+     */
+    public boolean hasSameSchedule(@NonNull SchedulerOption other) {
+        return scheduleId == other.scheduleId &&
+                scheduleFor == other.scheduleFor &&
+                recurringType == other.recurringType &&
+                Objects.equals(scheduleName, other.scheduleName) &&
+                toleranceMillis == other.toleranceMillis &&
+                Objects.equals(getActionName(), other.getActionName()) &&
+                Objects.equals(cronExpression, other.cronExpression) &&
+                Objects.equals(group, other.group) &&
+                payloadHandle == other.payloadHandle &&
+                misfirePolicy == other.misfirePolicy &&
+                jitterWindowMillis == other.jitterWindowMillis &&
+                constraints == other.constraints;
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of the {@link SchedulerOptionCodec} encoding, which covers
+     * the same fields as {@link #hasSameSchedule(SchedulerOption)}. Unlike {@link #hashCode()}
+     * it doesn't depend on receiver instances, so it is stable across processes.
+     */
+    public long getContentHash() {
+        long hash = contentHash;
+        if (hash == 0) {
+            hash = 0xcbf29ce484222325L;
+            for (byte b : SchedulerOptionCodec.encode(this)) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            contentHash = hash;
+        }
+        return hash;
+    }
+
+    private String getActionName() {
+        return scheduleReceiver == null ? null : scheduleReceiver.first;
+    }
+
+    private String getCronExpressionString() {
+        return cronExpression == null ? null : cronExpression.getExpression();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -69,13 +238,23 @@ public class SchedulerOption {
         return scheduleId == that.scheduleId &&
                 scheduleFor == that.scheduleFor &&
                 recurringType == that.recurringType &&
+                toleranceMillis == that.toleranceMillis &&
                 Objects.equals(scheduleName, that.scheduleName) &&
-                Objects.equals(scheduleReceiver, that.scheduleReceiver);
+                Objects.equals(scheduleReceiver, that.scheduleReceiver) &&
+                Objects.equals(scheduleHandler, that.scheduleHandler) &&
+                Objects.equals(cronExpression, that.cronExpression) &&
+                Objects.equals(group, that.group) &&
+                payloadHandle == that.payloadHandle &&
+                misfirePolicy == that.misfirePolicy &&
+                jitterWindowMillis == that.jitterWindowMillis &&
+                constraints == that.constraints;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(scheduleId, scheduleName, scheduleFor, recurringType, scheduleReceiver);
+        return Objects.hash(scheduleId, scheduleName, scheduleFor, recurringType, scheduleReceiver,
+                scheduleHandler, cronExpression, toleranceMillis, group, payloadHandle, misfirePolicy,
+                jitterWindowMillis, constraints);
     }
 
     @Override
@@ -86,6 +265,14 @@ public class SchedulerOption {
                 ", scheduleFor=" + scheduleFor +
                 ", recurringType=" + recurringType +
                 ", scheduleReceiver=" + scheduleReceiver +
+                ", scheduleHandler=" + scheduleHandler +
+                ", cronExpression=" + cronExpression +
+                ", toleranceMillis=" + toleranceMillis +
+                ", group='" + group + '\'' +
+                ", payloadHandle=" + payloadHandle +
+                ", misfirePolicy=" + misfirePolicy +
+                ", jitterWindowMillis=" + jitterWindowMillis +
+                ", constraints=" + constraints +
                 '}';
     }
 
@@ -95,6 +282,36 @@ public class SchedulerOption {
         private long scheduleFor;
         private int recurringType;
         private Pair<String, BroadcastReceiver> scheduleReceiver;
+        private ScheduleHandler scheduleHandler;
+        private CronExpression cronExpression;
+        private long toleranceMillis;
+        private String group;
+        private byte[] payload;
+        private long payloadHandle;
+        private int misfirePolicy;
+        private long jitterWindowMillis;
+        private int constraints;
+
+        /**
+         * Copies every field of {@code option}, e.g. to re-add it for its next occurrence.
+         */
+        public Builder from(@NonNull SchedulerOption option) {
+            this.scheduleId = option.scheduleId;
+            this.scheduleName = option.scheduleName;
+            this.scheduleFor = option.scheduleFor;
+            this.recurringType = option.recurringType;
+            this.scheduleReceiver = option.scheduleReceiver;
+            this.scheduleHandler = option.scheduleHandler;
+            this.cronExpression = option.cronExpression;
+            this.toleranceMillis = option.toleranceMillis;
+            this.group = option.group;
+            this.payload = option.payload;
+            this.payloadHandle = option.payloadHandle;
+            this.misfirePolicy = option.misfirePolicy;
+            this.jitterWindowMillis = option.jitterWindowMillis;
+            this.constraints = option.constraints;
+            return this;
+        }
 
         public Builder scheduleId(int scheduleId) {
             this.scheduleId = scheduleId;
@@ -121,6 +338,86 @@ public class SchedulerOption {
             return this;
         }
 
+        /**
+         * Recurs on a five field cron expression, see {@link CronExpression}. Unless a
+         * {@link #scheduleFor(long)} time is set, the schedule first fires at the next match.
+         *
+         * @throws IllegalArgumentException if the expression is invalid.
+         */
+        public Builder cron(@NonNull String expression) {
+            this.cronExpression = CronExpression.parse(expression);
+            this.recurringType = SchedulerCompat.OCCUR_CRON;
+            return this;
+        }
+
+        /**
+         * Lets the schedule fire up to {@code toleranceMillis} late, so it can share a wakeup
+         * with other schedules. Schedules without a tolerance keep exact alarms.
+         */
+        public Builder tolerance(long toleranceMillis) {
+            this.toleranceMillis = toleranceMillis;
+            return this;
+        }
+
+        /**
+         * Tags the schedule so that it can be cancelled together with the rest of its group, see
+         * {@link SchedulerCompat#cancelGroup(String)}.
+         */
+        public Builder group(String group) {
+            this.group = group;
+            return this;
+        }
+
+        /**
+         * Attaches data of any size to the schedule. It is written to a {@link PayloadStore}
+         * file when the schedule is added and only its handle travels with the alarm or job;
+         * read it back on fire with {@link ScheduleEvent#getPayload(android.content.Context)}.
+         */
+        public Builder payload(byte[] payload) {
+            this.payload = payload;
+            this.payloadHandle = payload == null ? 0 : PayloadStore.getHandle(payload);
+            return this;
+        }
+
+        /**
+         * Sets how occurrences of a recurring schedule missed while the device slept are
+         * delivered, {@link SchedulerCompat#MISFIRE_FIRE_ONCE} by default.
+         */
+        public Builder misfirePolicy(@SchedulerCompat.MisfirePolicy int misfirePolicy) {
+            this.misfirePolicy = misfirePolicy;
+            return this;
+        }
+
+        /**
+         * Shifts every occurrence by a fixed offset within {@code windowMillis}, so that schedules
+         * sharing a time of day, e.g. {@link SchedulerCompat#OCCUR_EVERY_MIDNIGHT}, don't all
+         * fire at once. The offset is derived from the schedule id and
+         * {@link SchedulerCompat#getJitterSeed()} each time the schedule is armed, so it stays the
+         * same for the schedule on this install and differs across installs. Only one-off and
+         * daily schedules can be jittered.
+         */
+        public Builder jitter(long windowMillis) {
+            this.jitterWindowMillis = windowMillis;
+            return this;
+        }
+
+        /**
+         * Holds the schedule back until every given {@link SchedulerCompat.Constraint} is met,
+         * e.g. to leave heavy work for when the device is charging on an unmetered network. A
+         * constrained job waits for its conditions even past its {@link #tolerance(long)}.
+         * Alarms can't wait, so their fires are held by a {@link ConditionMonitor} instead.
+         */
+        public Builder constraints(@SchedulerCompat.Constraint int constraints) {
+            this.constraints = constraints;
+            return this;
+        }
+
+        Builder payloadHandle(long payloadHandle) {
+            this.payload = null;
+            this.payloadHandle = payloadHandle;
+            return this;
+        }
+
         public Builder scheduleReceiver(
                 @NonNull String actionId,
                 @NonNull BroadcastReceiver scheduleReceiver
@@ -129,13 +426,46 @@ public class SchedulerOption {
             return this;
         }
 
+        /**
+         * Handles the schedule with a {@link ScheduleHandler} running off the main thread instead
+         * of a broadcast receiver.
+         */
+        public Builder scheduleHandler(
+                @NonNull String actionId,
+                @NonNull ScheduleHandler scheduleHandler
+        ) {
+            this.scheduleReceiver = new Pair<String, BroadcastReceiver>(actionId, null);
+            this.scheduleHandler = scheduleHandler;
+            return this;
+        }
+
+        Builder scheduleAction(@NonNull String actionId) {
+            this.scheduleReceiver = new Pair<String, BroadcastReceiver>(actionId, null);
+            return this;
+        }
+
         @TargetApi(Build.VERSION_CODES.LOLLIPOP)
         public SchedulerOption fromBundle(@NonNull PersistableBundle bundle) {
             this.scheduleId = bundle.getInt(SCHEDULE_ID_KEY, -1);
             this.scheduleName = bundle.getString(SCHEDULE_NAME_KEY, null);
             this.scheduleFor = bundle.getLong(SCHEDULE_FOR_KEY, 0);
             this.recurringType = bundle.getInt(RECURRING_TYPE_KEY, -1);
-            return build();
+            String actionName = bundle.getString(SCHEDULE_RECEIVER_ACTION_NAME_KEY, null);
+            if (actionName != null) {
+                scheduleAction(actionName);
+            }
+            String cronExpression = bundle.getString(CRON_EXPRESSION_KEY, null);
+            if (cronExpression != null) {
+                this.cronExpression = CronExpression.parse(cronExpression);
+            }
+            this.toleranceMillis = bundle.getLong(TOLERANCE_KEY, 0);
+            this.group = bundle.getString(GROUP_KEY, null);
+            this.payloadHandle = bundle.getLong(PAYLOAD_HANDLE_KEY, 0);
+            this.misfirePolicy = bundle.getInt(MISFIRE_POLICY_KEY, SchedulerCompat.MISFIRE_FIRE_ONCE);
+            this.jitterWindowMillis = bundle.getLong(JITTER_KEY, 0);
+            this.constraints = bundle.getInt(CONSTRAINTS_KEY, 0);
+            // Restored from a job that may already be due, so it isn't validated against now.
+            return restore();
         }
 
         @TargetApi(Build.VERSION_CODES.LOLLIPOP)
@@ -146,6 +476,13 @@ public class SchedulerOption {
             bundle.putLong(SCHEDULE_FOR_KEY, option.getScheduleFor());
             bundle.putInt(RECURRING_TYPE_KEY, option.getRecurringType());
             bundle.putString(SCHEDULE_RECEIVER_ACTION_NAME_KEY, option.getScheduleReceiver().first);
+            bundle.putString(CRON_EXPRESSION_KEY, option.getCronExpressionString());
+            bundle.putLong(TOLERANCE_KEY, option.getToleranceMillis());
+            bundle.putString(GROUP_KEY, option.getGroup());
+            bundle.putLong(PAYLOAD_HANDLE_KEY, option.getPayloadHandle());
+            bundle.putInt(MISFIRE_POLICY_KEY, option.getMisfirePolicy());
+            bundle.putLong(JITTER_KEY, option.getJitterWindowMillis());
+            bundle.putInt(CONSTRAINTS_KEY, option.getConstraints());
             return bundle;
         }
 
@@ -157,6 +494,14 @@ public class SchedulerOption {
             bundle.putLong(SCHEDULE_FOR_KEY, option.getLong(SCHEDULE_FOR_KEY, 0));
             bundle.putInt(RECURRING_TYPE_KEY, option.getInt(RECURRING_TYPE_KEY, -1));
             bundle.putString(SCHEDULE_RECEIVER_ACTION_NAME_KEY, option.getString(SCHEDULE_RECEIVER_ACTION_NAME_KEY));
+            bundle.putString(CRON_EXPRESSION_KEY, option.getString(CRON_EXPRESSION_KEY));
+            bundle.putLong(TOLERANCE_KEY, option.getLong(TOLERANCE_KEY, 0));
+            bundle.putString(GROUP_KEY, option.getString(GROUP_KEY));
+            bundle.putLong(PAYLOAD_HANDLE_KEY, option.getLong(PAYLOAD_HANDLE_KEY, 0));
+            bundle.putInt(MISFIRE_POLICY_KEY,
+                    option.getInt(MISFIRE_POLICY_KEY, SchedulerCompat.MISFIRE_FIRE_ONCE));
+            bundle.putLong(JITTER_KEY, option.getLong(JITTER_KEY, 0));
+            bundle.putInt(CONSTRAINTS_KEY, option.getInt(CONSTRAINTS_KEY, 0));
             return bundle;
         }
 
@@ -167,30 +512,98 @@ public class SchedulerOption {
             bundle.putLong(SCHEDULE_FOR_KEY, option.getScheduleFor());
             bundle.putInt(RECURRING_TYPE_KEY, option.getRecurringType());
             bundle.putString(SCHEDULE_RECEIVER_ACTION_NAME_KEY, option.getScheduleReceiver().first);
+            bundle.putString(CRON_EXPRESSION_KEY, option.getCronExpressionString());
+            bundle.putLong(TOLERANCE_KEY, option.getToleranceMillis());
+            bundle.putString(GROUP_KEY, option.getGroup());
+            bundle.putLong(PAYLOAD_HANDLE_KEY, option.getPayloadHandle());
+            bundle.putInt(MISFIRE_POLICY_KEY, option.getMisfirePolicy());
+            bundle.putLong(JITTER_KEY, option.getJitterWindowMillis());
+            bundle.putInt(CONSTRAINTS_KEY, option.getConstraints());
             return bundle;
         }
 
         public SchedulerOption build() {
+            if (recurringType == SchedulerCompat.OCCUR_CRON && cronExpression != null && scheduleFor == 0) {
+                scheduleFor = cronExpression.nextAfter(SchedulerCompat.getClock().currentTimeMillis());
+            }
             validateOption();
             return new SchedulerOption(
                     scheduleId,
                     scheduleName,
                     scheduleFor,
                     recurringType,
-                    scheduleReceiver
+                    scheduleReceiver,
+                    scheduleHandler,
+                    cronExpression,
+                    toleranceMillis,
+                    group,
+                    payload,
+                    payloadHandle,
+                    misfirePolicy,
+                    jitterWindowMillis,
+                    constraints
+            );
+        }
+
+        SchedulerOption restore() {
+            return new SchedulerOption(
+                    scheduleId,
+                    scheduleName,
+                    scheduleFor,
+                    recurringType,
+                    scheduleReceiver,
+                    scheduleHandler,
+                    cronExpression,
+                    toleranceMillis,
+                    group,
+                    payload,
+                    payloadHandle,
+                    misfirePolicy,
+                    jitterWindowMillis,
+                    constraints
             );
         }
 
         private void validateOption() {
+            if (scheduleId >= SchedulerService.RELEASE_JOB_ID_BASE) {
+                throw new IllegalStateException("Schedule ids from "
+                        + SchedulerService.RELEASE_JOB_ID_BASE + " up are reserved.");
+            }
+
+            if (recurringType == SchedulerCompat.OCCUR_CRON && cronExpression == null) {
+                throw new IllegalStateException("Cron schedules need a cron expression.");
+            }
+
+            if (toleranceMillis < 0) {
+                throw new IllegalStateException("Tolerance can't be negative.");
+            }
+
+            if (scheduleFor == Long.MAX_VALUE) {
+                throw new IllegalStateException("Cron expression never matches.");
+            }
+
             if (scheduleFor <= 0) {
                 throw new IllegalStateException("You must set schedule time.");
             }
 
-            if (scheduleFor < System.currentTimeMillis()) {
+            if (scheduleFor < SchedulerCompat.getClock().currentTimeMillis()) {
                 throw new IllegalStateException("You can't add schedule for the past time.");
             }
 
-            if (TextUtils.isEmpty(scheduleReceiver.first)) {
+            if (jitterWindowMillis < 0) {
+                throw new IllegalStateException("Jitter can't be negative.");
+            }
+
+            if (jitterWindowMillis > TimeUnit.DAYS.toMillis(1)) {
+                throw new IllegalStateException("Jitter can't be longer than a day.");
+            }
+
+            if (jitterWindowMillis > 0 && (recurringType == SchedulerCompat.OCCUR_CRON
+                    || recurringType == SchedulerCompat.OCCUR_ONCE_IMMEDIATELY)) {
+                throw new IllegalStateException("Only one-off and daily schedules can be jittered.");
+            }
+
+            if (scheduleReceiver == null || TextUtils.isEmpty(scheduleReceiver.first)) {
                 throw new IllegalStateException("Action ID must be unique, and shouldn't be empty");
             }
         }
@@ -0,0 +1,534 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.CRON_EXPRESSION_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.GROUP_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.CONSTRAINTS_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.JITTER_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.MISFIRE_POLICY_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.PAYLOAD_HANDLE_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.RECURRING_TYPE_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.SCHEDULE_FOR_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.SCHEDULE_ID_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.SCHEDULE_NAME_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.SCHEDULE_RECEIVER_ACTION_NAME_KEY;
+import static com.tech21.lunart.scheduler.compat.SchedulerOption.TOLERANCE_KEY;
+
+/**
+ * Binary form of a {@link SchedulerOption}, carried as a single {@code byte[]} extra instead of
+ * one Bundle entry per field. It is a version byte followed by the tagged fields of the
+ * {@link ScheduleStore} journal.
+ */
+public final class SchedulerOptionCodec {
+    public static final int VERSION = 1;
+
+    private static final String TAG = SchedulerOptionCodec.class.getSimpleName();
+
+    // Fields are written as tagged values so new fields can be appended without breaking older
+    // readers. The two high bits of a tag encode its value type.
+    private static final int TYPE_MASK = 0xc0;
+    private static final int TYPE_INT = 0x00;
+    private static final int TYPE_LONG = 0x40;
+    private static final int TYPE_STRING = 0x80;
+    private static final int TYPE_BYTES = 0xc0;
+
+    private static final int TAG_END = 0x00;
+    private static final int TAG_SCHEDULE_ID = TYPE_INT | 0x01;
+    private static final int TAG_RECURRING_TYPE = TYPE_INT | 0x02;
+    private static final int TAG_MISFIRE_POLICY = TYPE_INT | 0x03;
+    private static final int TAG_CONSTRAINTS = TYPE_INT | 0x04;
+    private static final int TAG_SCHEDULE_FOR = TYPE_LONG | 0x01;
+    private static final int TAG_TOLERANCE = TYPE_LONG | 0x02;
+    private static final int TAG_PAYLOAD_HANDLE = TYPE_LONG | 0x03;
+    private static final int TAG_JITTER = TYPE_LONG | 0x04;
+    private static final int TAG_SCHEDULE_NAME = TYPE_STRING | 0x01;
+    private static final int TAG_ACTION_NAME = TYPE_STRING | 0x02;
+    private static final int TAG_CRON_EXPRESSION = TYPE_STRING | 0x03;
+    private static final int TAG_GROUP = TYPE_STRING | 0x04;
+
+    private SchedulerOptionCodec() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if a string field is longer than 65535 bytes.
+     */
+    @NonNull
+    public static byte[] encode(@NonNull SchedulerOption option) {
+        String actionName = option.getScheduleReceiver() == null
+                ? null : option.getScheduleReceiver().first;
+        String cronExpression = option.getCronExpression() == null
+                ? null : option.getCronExpression().getExpression();
+        int size = 1 + 5 + 5 + 9 + 1
+                + (option.getToleranceMillis() > 0 ? 9 : 0)
+                + (option.getPayloadHandle() != 0 ? 9 : 0)
+                + (option.getMisfirePolicy() != SchedulerCompat.MISFIRE_FIRE_ONCE ? 5 : 0)
+                + (option.getJitterWindowMillis() != 0 ? 9 : 0)
+                + (option.getConstraints() != 0 ? 5 : 0)
+                + getEncodedSize(option.getScheduleName())
+                + getEncodedSize(actionName)
+                + getEncodedSize(cronExpression)
+                + getEncodedSize(option.getGroup());
+
+        // Sized up front and filled in place, which is cheaper than a stream for a few fields.
+        byte[] bytes = new byte[size];
+        int position = 0;
+        bytes[position++] = VERSION;
+        position = putInt(bytes, position, TAG_SCHEDULE_ID, option.getScheduleId());
+        position = putInt(bytes, position, TAG_RECURRING_TYPE, option.getRecurringType());
+        position = putLong(bytes, position, TAG_SCHEDULE_FOR, option.getScheduleFor());
+        if (option.getToleranceMillis() > 0) {
+            position = putLong(bytes, position, TAG_TOLERANCE, option.getToleranceMillis());
+        }
+        if (option.getPayloadHandle() != 0) {
+            position = putLong(bytes, position, TAG_PAYLOAD_HANDLE, option.getPayloadHandle());
+        }
+        if (option.getMisfirePolicy() != SchedulerCompat.MISFIRE_FIRE_ONCE) {
+            position = putInt(bytes, position, TAG_MISFIRE_POLICY, option.getMisfirePolicy());
+        }
+        if (option.getJitterWindowMillis() != 0) {
+            position = putLong(bytes, position, TAG_JITTER, option.getJitterWindowMillis());
+        }
+        if (option.getConstraints() != 0) {
+            position = putInt(bytes, position, TAG_CONSTRAINTS, option.getConstraints());
+        }
+        position = putString(bytes, position, TAG_SCHEDULE_NAME, option.getScheduleName());
+        position = putString(bytes, position, TAG_ACTION_NAME, actionName);
+        position = putString(bytes, position, TAG_CRON_EXPRESSION, cronExpression);
+        position = putString(bytes, position, TAG_GROUP, option.getGroup());
+        bytes[position] = TAG_END;
+        return bytes;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code bytes} has been written by a newer version.
+     */
+    @NonNull
+    public static SchedulerOption decode(@NonNull byte[] bytes) {
+        return new View().wrap(bytes).toOption();
+    }
+
+    /**
+     * Writes {@code option} without the version byte, as a {@link ScheduleStore} journal record.
+     */
+    static void write(@NonNull DataOutput out, @NonNull SchedulerOption option) throws IOException {
+        byte[] bytes = encode(option);
+        out.write(bytes, 1, bytes.length - 1);
+    }
+
+    static SchedulerOption read(@NonNull DataInput in) throws IOException {
+        SchedulerOption.Builder builder = new SchedulerOption.Builder();
+        int tag;
+        while ((tag = in.readUnsignedByte()) != TAG_END) {
+            switch (tag) {
+                case TAG_SCHEDULE_ID:
+                    builder.scheduleId(in.readInt());
+                    break;
+                case TAG_RECURRING_TYPE:
+                    builder.recurringType(in.readInt());
+                    break;
+                case TAG_SCHEDULE_FOR:
+                    builder.scheduleFor(in.readLong());
+                    break;
+                case TAG_TOLERANCE:
+                    builder.tolerance(in.readLong());
+                    break;
+                case TAG_PAYLOAD_HANDLE:
+                    builder.payloadHandle(in.readLong());
+                    break;
+                case TAG_MISFIRE_POLICY:
+                    builder.misfirePolicy(in.readInt());
+                    break;
+                case TAG_JITTER:
+                    builder.jitter(in.readLong());
+                    break;
+                case TAG_CONSTRAINTS:
+                    builder.constraints(in.readInt());
+                    break;
+                case TAG_SCHEDULE_NAME:
+                    builder.scheduleName(in.readUTF());
+                    break;
+                case TAG_ACTION_NAME:
+                    builder.scheduleAction(in.readUTF());
+                    break;
+                case TAG_CRON_EXPRESSION:
+                    cron(builder, in.readUTF());
+                    break;
+                case TAG_GROUP:
+                    builder.group(in.readUTF());
+                    break;
+                default:
+                    skipValue(in, tag);
+                    break;
+            }
+        }
+        return builder.restore();
+    }
+
+    private static int getEncodedSize(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = getUtfLength(value);
+        if (length > 0xffff) {
+            throw new IllegalArgumentException("String field too long: " + length + " bytes");
+        }
+        return 3 + length;
+    }
+
+    /**
+     * Length of {@code value} in the modified UTF-8 of {@link DataOutput#writeUTF(String)}.
+     */
+    private static int getUtfLength(@NonNull String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                length++;
+            } else if (c <= 0x07ff) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int putInt(byte[] bytes, int position, int tag, int value) {
+        bytes[position] = (byte) tag;
+        writeInt(bytes, position + 1, value);
+        return position + 5;
+    }
+
+    private static int putLong(byte[] bytes, int position, int tag, long value) {
+        bytes[position] = (byte) tag;
+        writeInt(bytes, position + 1, (int) (value >>> 32));
+        writeInt(bytes, position + 5, (int) value);
+        return position + 9;
+    }
+
+    private static int putString(byte[] bytes, int position, int tag, String value) {
+        if (value == null) {
+            return position;
+        }
+        int start = position + 3;
+        int end = start;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                bytes[end++] = (byte) c;
+            } else if (c <= 0x07ff) {
+                bytes[end++] = (byte) (0xc0 | (c >> 6));
+                bytes[end++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                bytes[end++] = (byte) (0xe0 | (c >> 12));
+                bytes[end++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[end++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        int length = end - start;
+        bytes[position] = (byte) tag;
+        bytes[position + 1] = (byte) (length >>> 8);
+        bytes[position + 2] = (byte) length;
+        return end;
+    }
+
+    private static void writeInt(byte[] bytes, int position, int value) {
+        bytes[position] = (byte) (value >>> 24);
+        bytes[position + 1] = (byte) (value >>> 16);
+        bytes[position + 2] = (byte) (value >>> 8);
+        bytes[position + 3] = (byte) value;
+    }
+
+    private static void cron(@NonNull SchedulerOption.Builder builder, @NonNull String expression) {
+        try {
+            builder.cron(expression);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping invalid cron expression " + expression, e);
+        }
+    }
+
+    private static void skipValue(@NonNull DataInput in, int tag) throws IOException {
+        switch (tag & TYPE_MASK) {
+            case TYPE_INT:
+                in.readInt();
+                break;
+            case TYPE_LONG:
+                in.readLong();
+                break;
+            case TYPE_STRING:
+                in.readUTF();
+                break;
+            case TYPE_BYTES:
+                in.readFully(new byte[in.readInt()]);
+                break;
+        }
+    }
+
+    /**
+     * Reads the fields of an encoded option in place. {@link #wrap(byte[])} indexes the field
+     * offsets once and the getters decode only what they are asked for, so one view can be
+     * reused for every fire without building a {@link SchedulerOption}. Not thread safe.
+     */
+    public static final class View {
+        private static final int FIELD_SCHEDULE_ID = 0;
+        private static final int FIELD_RECURRING_TYPE = 1;
+        private static final int FIELD_SCHEDULE_FOR = 2;
+        private static final int FIELD_TOLERANCE = 3;
+        private static final int FIELD_SCHEDULE_NAME = 4;
+        private static final int FIELD_ACTION_NAME = 5;
+        private static final int FIELD_CRON_EXPRESSION = 6;
+        private static final int FIELD_GROUP = 7;
+        private static final int FIELD_PAYLOAD_HANDLE = 8;
+        private static final int FIELD_MISFIRE_POLICY = 9;
+        private static final int FIELD_JITTER = 10;
+        private static final int FIELD_CONSTRAINTS = 11;
+        private static final int FIELD_COUNT = 12;
+        private static final int ABSENT = -1;
+
+        private final int[] offsets = new int[FIELD_COUNT];
+        private byte[] bytes;
+
+        /**
+         * @throws IllegalArgumentException if {@code bytes} has been written by a newer version
+         *                                  or is truncated.
+         */
+        @NonNull
+        public View wrap(@NonNull byte[] bytes) {
+            if (bytes.length == 0 || bytes[0] > VERSION) {
+                throw new IllegalArgumentException("Unsupported option encoding");
+            }
+            Arrays.fill(offsets, ABSENT);
+            int position = 1;
+            try {
+                int tag;
+                while ((tag = bytes[position++] & 0xff) != TAG_END) {
+                    int field = getField(tag);
+                    if (field != ABSENT) {
+                        offsets[field] = position;
+                    }
+                    switch (tag & TYPE_MASK) {
+                        case TYPE_INT:
+                            position += 4;
+                            break;
+                        case TYPE_LONG:
+                            position += 8;
+                            break;
+                        case TYPE_STRING:
+                            position += 2 + readUnsignedShort(bytes, position);
+                            break;
+                        case TYPE_BYTES:
+                            position += 4 + readInt(bytes, position);
+                            break;
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Truncated option encoding", e);
+            }
+            this.bytes = bytes;
+            return this;
+        }
+
+        public int getScheduleId() {
+            return getInt(FIELD_SCHEDULE_ID, -1);
+        }
+
+        public @SchedulerCompat.RecurringType int getRecurringType() {
+            return getInt(FIELD_RECURRING_TYPE, -1);
+        }
+
+        public long getScheduleFor() {
+            return getLong(FIELD_SCHEDULE_FOR, 0);
+        }
+
+        public long getToleranceMillis() {
+            return getLong(FIELD_TOLERANCE, 0);
+        }
+
+        public long getPayloadHandle() {
+            return getLong(FIELD_PAYLOAD_HANDLE, 0);
+        }
+
+        public @SchedulerCompat.MisfirePolicy int getMisfirePolicy() {
+            return getInt(FIELD_MISFIRE_POLICY, SchedulerCompat.MISFIRE_FIRE_ONCE);
+        }
+
+        public long getJitterWindowMillis() {
+            return getLong(FIELD_JITTER, 0);
+        }
+
+        public int getConstraints() {
+            return getInt(FIELD_CONSTRAINTS, 0);
+        }
+
+        @Nullable
+        public String getScheduleName() {
+            return getString(FIELD_SCHEDULE_NAME);
+        }
+
+        @Nullable
+        public String getActionName() {
+            return getString(FIELD_ACTION_NAME);
+        }
+
+        @Nullable
+        public String getCronExpression() {
+            return getString(FIELD_CRON_EXPRESSION);
+        }
+
+        @Nullable
+        public String getGroup() {
+            return getString(FIELD_GROUP);
+        }
+
+        /**
+         * Same as {@link SchedulerOption#getContentHash()} of the decoded option, without
+         * decoding it.
+         */
+        public long getContentHash() {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : bytes) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        @NonNull
+        public SchedulerOption toOption() {
+            SchedulerOption.Builder builder = new SchedulerOption.Builder()
+                    .scheduleId(getScheduleId())
+                    .recurringType(getRecurringType())
+                    .scheduleFor(getScheduleFor())
+                    .tolerance(getToleranceMillis())
+                    .payloadHandle(getPayloadHandle())
+                    .misfirePolicy(getMisfirePolicy())
+                    .jitter(getJitterWindowMillis())
+                    .constraints(getConstraints())
+                    .scheduleName(getScheduleName())
+                    .group(getGroup());
+            String actionName = getActionName();
+            if (actionName != null) {
+                builder.scheduleAction(actionName);
+            }
+            String cronExpression = getCronExpression();
+            if (cronExpression != null) {
+                cron(builder, cronExpression);
+            }
+            return builder.restore();
+        }
+
+        /**
+         * Returns the keyed extras handed to schedule receivers, see {@link ScheduleEvent}.
+         */
+        @NonNull
+        public Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putInt(SCHEDULE_ID_KEY, getScheduleId());
+            bundle.putString(SCHEDULE_NAME_KEY, getScheduleName());
+            bundle.putLong(SCHEDULE_FOR_KEY, getScheduleFor());
+            bundle.putInt(RECURRING_TYPE_KEY, getRecurringType());
+            bundle.putString(SCHEDULE_RECEIVER_ACTION_NAME_KEY, getActionName());
+            bundle.putString(CRON_EXPRESSION_KEY, getCronExpression());
+            bundle.putLong(TOLERANCE_KEY, getToleranceMillis());
+            bundle.putString(GROUP_KEY, getGroup());
+            bundle.putLong(PAYLOAD_HANDLE_KEY, getPayloadHandle());
+            bundle.putInt(MISFIRE_POLICY_KEY, getMisfirePolicy());
+            bundle.putLong(JITTER_KEY, getJitterWindowMillis());
+            bundle.putInt(CONSTRAINTS_KEY, getConstraints());
+            return bundle;
+        }
+
+        private int getInt(int field, int defaultValue) {
+            int offset = offsets[field];
+            return offset == ABSENT ? defaultValue : readInt(bytes, offset);
+        }
+
+        private long getLong(int field, long defaultValue) {
+            int offset = offsets[field];
+            if (offset == ABSENT) {
+                return defaultValue;
+            }
+            return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xffffffffL);
+        }
+
+        /**
+         * Decodes the modified UTF-8 written by {@link DataOutput#writeUTF(String)}.
+         */
+        private String getString(int field) {
+            int offset = offsets[field];
+            if (offset == ABSENT) {
+                return null;
+            }
+            int end = offset + 2 + readUnsignedShort(bytes, offset);
+            char[] chars = new char[end - offset - 2];
+            int length = 0;
+            for (int i = offset + 2; i < end; length++) {
+                int b = bytes[i] & 0xff;
+                if (b < 0x80) {
+                    chars[length] = (char) b;
+                    i++;
+                } else if ((b & 0xe0) == 0xc0) {
+                    chars[length] = (char) (((b & 0x1f) << 6) | (bytes[i + 1] & 0x3f));
+                    i += 2;
+                } else {
+                    chars[length] = (char) (((b & 0x0f) << 12)
+                            | ((bytes[i + 1] & 0x3f) << 6)
+                            | (bytes[i + 2] & 0x3f));
+                    i += 3;
+                }
+            }
+            return new String(chars, 0, length);
+        }
+
+        private static int getField(int tag) {
+            switch (tag) {
+                case TAG_SCHEDULE_ID:
+                    return FIELD_SCHEDULE_ID;
+                case TAG_RECURRING_TYPE:
+                    return FIELD_RECURRING_TYPE;
+                case TAG_SCHEDULE_FOR:
+                    return FIELD_SCHEDULE_FOR;
+                case TAG_TOLERANCE:
+                    return FIELD_TOLERANCE;
+                case TAG_SCHEDULE_NAME:
+                    return FIELD_SCHEDULE_NAME;
+                case TAG_ACTION_NAME:
+                    return FIELD_ACTION_NAME;
+                case TAG_CRON_EXPRESSION:
+                    return FIELD_CRON_EXPRESSION;
+                case TAG_GROUP:
+                    return FIELD_GROUP;
+                case TAG_PAYLOAD_HANDLE:
+                    return FIELD_PAYLOAD_HANDLE;
+                case TAG_MISFIRE_POLICY:
+                    return FIELD_MISFIRE_POLICY;
+                case TAG_JITTER:
+                    return FIELD_JITTER;
+                case TAG_CONSTRAINTS:
+                    return FIELD_CONSTRAINTS;
+                default:
+                    return ABSENT;
+            }
+        }
+
+        private static int readInt(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xff) << 24
+                    | (bytes[offset + 1] & 0xff) << 16
+                    | (bytes[offset + 2] & 0xff) << 8
+                    | (bytes[offset + 3] & 0xff);
+        }
+
+        private static int readUnsignedShort(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xff) << 8 | (bytes[offset + 1] & 0xff);
+        }
+    }
+}
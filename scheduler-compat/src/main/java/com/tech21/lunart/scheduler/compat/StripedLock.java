@@ -0,0 +1,53 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks indexed by schedule id. Work on the same schedule is serialised while
+ * work on different schedules mostly runs in parallel.
+ *
+ * Batch operations take every stripe with {@link #lockAll()}, always in the same order, so they
+ * can't deadlock with each other or with single stripe holders.
+ */
+public final class StripedLock {
+    private final Lock[] stripes;
+    private final int mask;
+
+    /**
+     * @param concurrencyLevel expected number of threads working at once, rounded up to a power
+     *                         of two.
+     */
+    public StripedLock(int concurrencyLevel) {
+        int size = 1;
+        while (size < concurrencyLevel) {
+            size <<= 1;
+        }
+        this.stripes = new Lock[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    @NonNull
+    public Lock get(int scheduleId) {
+        // Spread sequential ids over every stripe.
+        int hash = scheduleId * 0x9e3779b9;
+        return stripes[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    public void lockAll() {
+        for (Lock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    public void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.tech21.lunart.scheduler.compat;
+
+/**
+ * Manually advanced {@link Clock} used to simulate time in tests.
+ */
+public class VirtualClock implements Clock {
+    private volatile long currentTimeMillis;
+
+    public VirtualClock(long currentTimeMillis) {
+        this.currentTimeMillis = currentTimeMillis;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return currentTimeMillis;
+    }
+
+    public void setCurrentTimeMillis(long currentTimeMillis) {
+        if (currentTimeMillis < this.currentTimeMillis) {
+            throw new IllegalArgumentException("Virtual time can't go backwards.");
+        }
+        this.currentTimeMillis = currentTimeMillis;
+    }
+
+    public void advanceBy(long millis) {
+        setCurrentTimeMillis(currentTimeMillis + millis);
+    }
+}
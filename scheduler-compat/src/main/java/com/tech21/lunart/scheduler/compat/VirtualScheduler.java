@@ -0,0 +1,195 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic {@link IScheduler} backend driven by a {@link VirtualClock}.
+ *
+ * Schedules fire synchronously, in fire-time order, while the clock is advanced with
+ * {@link #advanceBy(long)} or {@link #advanceTo(long)}, using the same recurrence rules as the
+ * system backends. Like the single alarm engine, it wakes up at the earliest pending deadline and
+ * fires every schedule whose tolerance window has opened by then. Install the clock with
+ * {@link SchedulerCompat#setClock(Clock)} so option validation and recurrence see the same
+ * simulated time. {@link #sleepBy(long)} moves the clock on without firing, like a device that
+ * sleeps through its alarms, so the next advance delivers late fires according to each
+ * schedule's {@link SchedulerCompat.MisfirePolicy}.
+ */
+public class VirtualScheduler implements IScheduler<VirtualScheduler> {
+    private final VirtualClock clock;
+    private final ScheduleQueue scheduleQueue = new ScheduleQueue();
+    private final Map<Integer, SchedulerOption> options = new HashMap<>();
+    private final List<OnFireListener> listeners = new ArrayList<>();
+    private final ScheduleQueue.OnDueListener onDue = new ScheduleQueue.OnDueListener() {
+        @Override
+        public void onDue(int scheduleId, long triggerAtMillis) {
+            fire(scheduleId, triggerAtMillis);
+        }
+    };
+    private long fireCount;
+    private long missedCount;
+    private long wakeupCount;
+
+    public interface OnFireListener {
+        void onFire(@NonNull SchedulerOption option, long triggerAtMillis, long firedAtMillis);
+    }
+
+    public VirtualScheduler(@NonNull VirtualClock clock) {
+        this.clock = clock;
+    }
+
+    @NonNull
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    public VirtualScheduler addOnFireListener(@NonNull OnFireListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    public void removeOnFireListener(@NonNull OnFireListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public VirtualScheduler add(@NonNull SchedulerOption option) {
+        options.put(option.getScheduleId(), option);
+        long triggerAtMillis = Recurrence.getFirstTriggerAt(option);
+        scheduleQueue.offer(option.getScheduleId(), triggerAtMillis,
+                triggerAtMillis + option.getToleranceMillis());
+        return this;
+    }
+
+    @Override
+    public VirtualScheduler addAll(@NonNull Collection<SchedulerOption> options) {
+        for (SchedulerOption option : options) {
+            add(option);
+        }
+        return this;
+    }
+
+    @Override
+    public void cancel(int scheduleId) {
+        options.remove(scheduleId);
+        scheduleQueue.remove(scheduleId);
+    }
+
+    @Override
+    public void cancel(@NonNull int[] scheduleIds) {
+        for (int scheduleId : scheduleIds) {
+            cancel(scheduleId);
+        }
+    }
+
+    @Override
+    public void cancelGroup(@NonNull String group) {
+        List<Integer> scheduleIds = new ArrayList<>();
+        for (SchedulerOption option : options.values()) {
+            if (group.equals(option.getGroup())) {
+                scheduleIds.add(option.getScheduleId());
+            }
+        }
+        for (int scheduleId : scheduleIds) {
+            cancel(scheduleId);
+        }
+    }
+
+    @Override
+    public void cancelAll() {
+        options.clear();
+        scheduleQueue.clear();
+    }
+
+    public int size() {
+        return options.size();
+    }
+
+    @Nullable
+    public SchedulerOption get(int scheduleId) {
+        return options.get(scheduleId);
+    }
+
+    public long getNextTriggerAt(int scheduleId) {
+        return scheduleQueue.getTriggerAt(scheduleId);
+    }
+
+    public long getFireCount() {
+        return fireCount;
+    }
+
+    /**
+     * @return the number of due occurrences that have been skipped or coalesced.
+     */
+    public long getMissedCount() {
+        return missedCount;
+    }
+
+    public long getWakeupCount() {
+        return wakeupCount;
+    }
+
+    /**
+     * Advances the clock by {@code millis} without firing anything.
+     */
+    public void sleepBy(long millis) {
+        clock.setCurrentTimeMillis(clock.currentTimeMillis() + millis);
+    }
+
+    /**
+     * Advances the clock by {@code millis}, firing every schedule that falls due on the way.
+     *
+     * @return the number of fires.
+     */
+    public int advanceBy(long millis) {
+        return advanceTo(clock.currentTimeMillis() + millis);
+    }
+
+    /**
+     * Advances the clock to {@code timeMillis}, firing every schedule that falls due on the way.
+     *
+     * @return the number of fires.
+     */
+    public int advanceTo(long timeMillis) {
+        long firedBefore = fireCount;
+        while (scheduleQueue.peekDeadline() <= timeMillis) {
+            long wakeupAtMillis = Math.max(scheduleQueue.peekDeadline(), clock.currentTimeMillis());
+            clock.setCurrentTimeMillis(wakeupAtMillis);
+            scheduleQueue.pollDue(wakeupAtMillis, onDue);
+            wakeupCount++;
+        }
+        clock.setCurrentTimeMillis(Math.max(timeMillis, clock.currentTimeMillis()));
+        return (int) (fireCount - firedBefore);
+    }
+
+    private void fire(int scheduleId, long triggerAtMillis) {
+        SchedulerOption option = options.get(scheduleId);
+        if (option == null) {
+            return;
+        }
+
+        long now = clock.currentTimeMillis();
+        if (Recurrence.isRecurring(option)) {
+            long nextTriggerAtMillis = Recurrence.getNextTriggerAfter(option, triggerAtMillis, now);
+            scheduleQueue.offer(scheduleId, nextTriggerAtMillis,
+                    nextTriggerAtMillis + option.getToleranceMillis());
+        } else {
+            options.remove(scheduleId);
+        }
+
+        Misfire misfire = Misfire.resolve(option, triggerAtMillis, now);
+        fireCount += misfire.size();
+        missedCount += misfire.getMissedCount();
+        for (int j = 0; j < misfire.size(); j++) {
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).onFire(option, misfire.getTriggerAt(j), now);
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.tech21.lunart.scheduler.compat.metrics;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+
+import com.tech21.lunart.scheduler.compat.SchedulerCompat;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide scheduler metrics.
+ *
+ * <ul>
+ *     <li>fire drift: how late a schedule fired compared to its planned time, in millis. This
+ *     is mostly OS deferral (Doze, alarm batching, job batching).</li>
+ *     <li>dispatch latency: from the OS handing us the alarm or job until the receiver or
+ *     handler starts, in micros. This is our own overhead.</li>
+ *     <li>handler duration: how long receivers and handlers ran, in micros.</li>
+ *     <li>dispatch wait: how long handlers waited for a slot under the dispatch limits, in
+ *     micros, along with the deepest the queue got and how many fires it turned away.</li>
+ *     <li>wakeups per hour, for the last 24 hours.</li>
+ *     <li>system calls made to schedule and cancel alarms or jobs.</li>
+ * </ul>
+ *
+ * Values go into fixed size, lock-free {@link Histogram}s, and {@link #getSnapshot()} copies
+ * them out. Listeners see every recorded value, on the thread that recorded it.
+ */
+public class SchedulerMetrics {
+    @IntDef({
+        SYSTEM_CALL_ADD,
+        SYSTEM_CALL_CANCEL
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface SystemCall { }
+
+    public static final int SYSTEM_CALL_ADD = 0;
+    public static final int SYSTEM_CALL_CANCEL = 1;
+
+    private static final int HOURS_KEPT = 24;
+    private static final long HOUR_IN_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final SchedulerMetrics sInstance = new SchedulerMetrics();
+
+    private final Histogram fireDrift = new Histogram();
+    private final Histogram dispatchLatency = new Histogram();
+    private final Histogram handlerDuration = new Histogram();
+    private final Histogram dispatchWait = new Histogram();
+    private final AtomicLong peakQueueDepth = new AtomicLong();
+    private final AtomicLong rejectedDispatches = new AtomicLong();
+    private final AtomicLongArray systemCalls = new AtomicLongArray(2);
+    // Ring of hourly wakeup counters, tagged with the hour they count.
+    private final AtomicLongArray wakeupHours = new AtomicLongArray(HOURS_KEPT);
+    private final AtomicLongArray wakeupCounts = new AtomicLongArray(HOURS_KEPT);
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public interface Listener {
+        void onScheduleFired(int scheduleId, long plannedAtMillis, long firedAtMillis);
+
+        void onDispatched(@NonNull String actionName, long dispatchLatencyMicros, long handlerDurationMicros);
+
+        void onWakeup(long atMillis);
+
+        void onSystemCall(@SystemCall int call);
+    }
+
+    private SchedulerMetrics() {
+    }
+
+    public static SchedulerMetrics getInstance() {
+        return sInstance;
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void recordFire(int scheduleId, long plannedAtMillis, long firedAtMillis) {
+        fireDrift.record(firedAtMillis - plannedAtMillis);
+        for (Listener listener : listeners) {
+            listener.onScheduleFired(scheduleId, plannedAtMillis, firedAtMillis);
+        }
+    }
+
+    /**
+     * @param receivedAtNanos {@link System#nanoTime()} when the OS delivered the alarm or job.
+     * @param startedAtNanos {@link System#nanoTime()} when the receiver or handler started.
+     * @param finishedAtNanos {@link System#nanoTime()} when it returned.
+     */
+    public void recordDispatch(
+            @NonNull String actionName,
+            long receivedAtNanos,
+            long startedAtNanos,
+            long finishedAtNanos
+    ) {
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(startedAtNanos - receivedAtNanos);
+        long durationMicros = TimeUnit.NANOSECONDS.toMicros(finishedAtNanos - startedAtNanos);
+        dispatchLatency.record(latencyMicros);
+        handlerDuration.record(durationMicros);
+        for (Listener listener : listeners) {
+            listener.onDispatched(actionName, latencyMicros, durationMicros);
+        }
+    }
+
+    public void recordDispatchWait(long waitNanos) {
+        dispatchWait.record(TimeUnit.NANOSECONDS.toMicros(waitNanos));
+    }
+
+    public void recordDispatchQueued(int queueDepth) {
+        long peak;
+        while (queueDepth > (peak = peakQueueDepth.get())
+                && !peakQueueDepth.compareAndSet(peak, queueDepth)) {
+            // Lost to a concurrent update, look again.
+        }
+    }
+
+    public void recordDispatchRejected() {
+        rejectedDispatches.incrementAndGet();
+    }
+
+    public void recordWakeup(long atMillis) {
+        long hour = atMillis / HOUR_IN_MILLIS;
+        int slot = (int) (hour % HOURS_KEPT);
+        long slotHour = wakeupHours.get(slot);
+        if (slotHour != hour && wakeupHours.compareAndSet(slot, slotHour, hour)) {
+            // Only the thread that claimed the slot for the new hour clears it.
+            wakeupCounts.set(slot, 0);
+        }
+        wakeupCounts.incrementAndGet(slot);
+        for (Listener listener : listeners) {
+            listener.onWakeup(atMillis);
+        }
+    }
+
+    public void recordSystemCall(@SystemCall int call) {
+        systemCalls.incrementAndGet(call);
+        for (Listener listener : listeners) {
+            listener.onSystemCall(call);
+        }
+    }
+
+    public void reset() {
+        fireDrift.reset();
+        dispatchLatency.reset();
+        handlerDuration.reset();
+        dispatchWait.reset();
+        peakQueueDepth.set(0);
+        rejectedDispatches.set(0);
+        for (int i = 0; i < HOURS_KEPT; i++) {
+            wakeupHours.set(i, 0);
+            wakeupCounts.set(i, 0);
+        }
+        systemCalls.set(SYSTEM_CALL_ADD, 0);
+        systemCalls.set(SYSTEM_CALL_CANCEL, 0);
+    }
+
+    /**
+     * @param nowMillis wall clock time the hourly wakeup counts are relative to.
+     */
+    @NonNull
+    public Snapshot getSnapshot(long nowMillis) {
+        long hour = nowMillis / HOUR_IN_MILLIS;
+        long[] wakeupsPerHour = new long[HOURS_KEPT];
+        for (int i = 0; i < HOURS_KEPT; i++) {
+            int slot = (int) ((hour - i) % HOURS_KEPT);
+            if (wakeupHours.get(slot) == hour - i) {
+                wakeupsPerHour[i] = wakeupCounts.get(slot);
+            }
+        }
+        return new Snapshot(
+                fireDrift.snapshot(),
+                dispatchLatency.snapshot(),
+                handlerDuration.snapshot(),
+                dispatchWait.snapshot(),
+                peakQueueDepth.get(),
+                rejectedDispatches.get(),
+                wakeupsPerHour,
+                systemCalls.get(SYSTEM_CALL_ADD),
+                systemCalls.get(SYSTEM_CALL_CANCEL));
+    }
+
+    @NonNull
+    public Snapshot getSnapshot() {
+        return getSnapshot(SchedulerCompat.getClock().currentTimeMillis());
+    }
+
+    public static final class Snapshot {
+        private final Histogram.Snapshot fireDriftMillis;
+        private final Histogram.Snapshot dispatchLatencyMicros;
+        private final Histogram.Snapshot handlerDurationMicros;
+        private final Histogram.Snapshot dispatchWaitMicros;
+        private final long peakQueueDepth;
+        private final long rejectedDispatches;
+        private final long[] wakeupsPerHour;
+        private final long systemAddCalls;
+        private final long systemCancelCalls;
+
+        Snapshot(
+                Histogram.Snapshot fireDriftMillis,
+                Histogram.Snapshot dispatchLatencyMicros,
+                Histogram.Snapshot handlerDurationMicros,
+                Histogram.Snapshot dispatchWaitMicros,
+                long peakQueueDepth,
+                long rejectedDispatches,
+                long[] wakeupsPerHour,
+                long systemAddCalls,
+                long systemCancelCalls
+        ) {
+            this.fireDriftMillis = fireDriftMillis;
+            this.dispatchLatencyMicros = dispatchLatencyMicros;
+            this.handlerDurationMicros = handlerDurationMicros;
+            this.dispatchWaitMicros = dispatchWaitMicros;
+            this.peakQueueDepth = peakQueueDepth;
+            this.rejectedDispatches = rejectedDispatches;
+            this.wakeupsPerHour = wakeupsPerHour;
+            this.systemAddCalls = systemAddCalls;
+            this.systemCancelCalls = systemCancelCalls;
+        }
+
+        @NonNull
+        public Histogram.Snapshot getFireDriftMillis() {
+            return fireDriftMillis;
+        }
+
+        @NonNull
+        public Histogram.Snapshot getDispatchLatencyMicros() {
+            return dispatchLatencyMicros;
+        }
+
+        @NonNull
+        public Histogram.Snapshot getHandlerDurationMicros() {
+            return handlerDurationMicros;
+        }
+
+        @NonNull
+        public Histogram.Snapshot getDispatchWaitMicros() {
+            return dispatchWaitMicros;
+        }
+
+        public long getPeakQueueDepth() {
+            return peakQueueDepth;
+        }
+
+        /**
+         * @return how often a handler found the dispatch queue full and had to be retried.
+         */
+        public long getRejectedDispatches() {
+            return rejectedDispatches;
+        }
+
+        /**
+         * @return wakeups in the current hour at index 0, the hour before at 1, and so on.
+         */
+        @NonNull
+        public long[] getWakeupsPerHour() {
+            return wakeupsPerHour.clone();
+        }
+
+        public long getSystemAddCalls() {
+            return systemAddCalls;
+        }
+
+        public long getSystemCancelCalls() {
+            return systemCancelCalls;
+        }
+
+        @Override
+        public String toString() {
+            return "SchedulerMetrics{" +
+                    "fireDriftMillis=" + fireDriftMillis +
+                    ", dispatchLatencyMicros=" + dispatchLatencyMicros +
+                    ", handlerDurationMicros=" + handlerDurationMicros +
+                    ", dispatchWaitMicros=" + dispatchWaitMicros +
+                    ", peakQueueDepth=" + peakQueueDepth +
+                    ", rejectedDispatches=" + rejectedDispatches +
+                    ", wakeupsThisHour=" + wakeupsPerHour[0] +
+                    ", systemAddCalls=" + systemAddCalls +
+                    ", systemCancelCalls=" + systemCancelCalls +
+                    '}';
+        }
+    }
+}
@@ -6,32 +6,131 @@ import android.app.job.JobScheduler;
 import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PersistableBundle;
+import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
-import android.util.SparseArray;
+import android.support.annotation.VisibleForTesting;
 
+import com.tech21.lunart.scheduler.compat.ConditionMonitor;
 import com.tech21.lunart.scheduler.compat.IScheduler;
+import com.tech21.lunart.scheduler.compat.LocalTimeCalculator;
+import com.tech21.lunart.scheduler.compat.Recurrence;
+import com.tech21.lunart.scheduler.compat.ScheduleDispatcher;
+import com.tech21.lunart.scheduler.compat.ScheduleQueue;
+import com.tech21.lunart.scheduler.compat.ScheduleStore;
 import com.tech21.lunart.scheduler.compat.SchedulerCompat;
 import com.tech21.lunart.scheduler.compat.SchedulerCompat.RecurringType;
 import com.tech21.lunart.scheduler.compat.SchedulerOption;
+import com.tech21.lunart.scheduler.compat.SchedulerOptionCodec;
+import com.tech21.lunart.scheduler.compat.StripedLock;
+import com.tech21.lunart.scheduler.compat.metrics.SchedulerMetrics;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import static android.os.Build.VERSION.SDK_INT;
 
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class SchedulerService extends JobService implements IScheduler<SchedulerService> {
+    @IntDef({
+        ENGINE_JOB_PER_SCHEDULE,
+        ENGINE_MULTIPLEXED,
+        ENGINE_PERIODIC
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Engine { }
+
+    /**
+     * Every schedule owns its own {@link JobInfo}, with the schedule id as job id.
+     */
+    public static final int ENGINE_JOB_PER_SCHEDULE = 0;
+
+    /**
+     * Pending fire times are kept in a local {@link ScheduleQueue} and only the earliest
+     * {@link #MULTIPLEXED_JOB_COUNT} wakeups are armed, each on its own job. The number of
+     * schedules is no longer bounded by the job scheduler's per-app limit. Job ids from
+     * {@link #RELEASE_JOB_ID_BASE} up are reserved, so options with such schedule ids are
+     * rejected whatever the engine. Like every engine it is kept in the {@link ScheduleStore},
+     * so it only has to be set once.
+     */
+    public static final int ENGINE_MULTIPLEXED = 1;
+
+    /**
+     * Like {@link #ENGINE_JOB_PER_SCHEDULE}, but on N and later a daily schedule turns into a
+     * periodic job after its first fire instead of being scheduled again after every fire. The
+     * job runs in the narrowest flex window the job scheduler allows, 5% of a day, that closes
+     * one day after the previous run; runs may come that much before the wall time, whatever
+     * the schedule's tolerance. A run that is earlier still doesn't fire, and its occurrence is
+     * armed as a one-off job instead. Once a run is more than
+     * {@link #MAX_PERIODIC_DRIFT_MILLIS} late, e.g. after a DST transition, the next occurrence
+     * is armed as a one-off job again.
+     */
+    public static final int ENGINE_PERIODIC = 2;
+
+    public static final long MAX_PERIODIC_DRIFT_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    public static final int MULTIPLEXED_JOB_COUNT = 4;
+    public static final int MULTIPLEXED_JOB_ID_BASE = Integer.MAX_VALUE - MULTIPLEXED_JOB_COUNT + 1;
+    /**
+     * From O on, the fires {@link ConditionMonitor} holds are released by jobs carrying their
+     * constraints, one per combination of {@link SchedulerCompat.Constraint} flags, with ids
+     * from {@link #RELEASE_JOB_ID_BASE} plus the flags.
+     */
+    public static final int RELEASE_JOB_COUNT = 16;
+    public static final int RELEASE_JOB_ID_BASE = MULTIPLEXED_JOB_ID_BASE - RELEASE_JOB_COUNT;
+
     private static final String TAG = SchedulerService.class.getSimpleName();
+    private static final int CONCURRENCY_LEVEL = 16;
+    private static final long NOT_PLANNED = -1L;
+    private static final String EXTRA_PERIODIC = "periodic";
+
+    @IntDef({
+        REARM_NONE,
+        REARM_NEXT,
+        REARM_PERIODIC
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    private @interface Rearm { }
+
+    private static final int REARM_NONE = 0;
+    private static final int REARM_NEXT = 1;
+    private static final int REARM_PERIODIC = 2;
+
+    // Shared by the singleton and the instances the system binds, so that a job finishing never
+    // races with an add or cancel of the same schedule id.
+    private static final StripedLock sLocks = new StripedLock(CONCURRENCY_LEVEL);
+    // Jobs start on the main thread, so a single view is reused for every job.
+    private static final SchedulerOptionCodec.View sOption = new SchedulerOptionCodec.View();
+
+    private final ConcurrentHashMap<Integer, CancellationSignal> runningJobs = new ConcurrentHashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile WeakReference<Context> context;
+    private ScheduleStore scheduleStore;
+    private volatile JobScheduler jobScheduler;
+    private volatile @Engine int engine = ENGINE_JOB_PER_SCHEDULE;
+    private static volatile SchedulerService sInstance;
 
-    private WeakReference<Context> context;
-    private static final SparseArray<SchedulerOption> optHistory = new SparseArray<>();
-    private JobScheduler jobScheduler;
-    private static SchedulerService sInstance;
+    // Multiplexed engine state, guarded by the queue. Slot i is job MULTIPLEXED_JOB_ID_BASE + i.
+    private final ScheduleQueue scheduleQueue = new ScheduleQueue();
+    private final long[] plannedWindowStarts = new long[MULTIPLEXED_JOB_COUNT];
+    private final long[] plannedDeadlines = new long[MULTIPLEXED_JOB_COUNT];
+    private final boolean[] runningSlots = new boolean[MULTIPLEXED_JOB_COUNT];
+    // The fires a running slot polled and hasn't finished yet, put back in the queue if it stops.
+    private final List<List<DueFire>> inFlightFires = new ArrayList<>(MULTIPLEXED_JOB_COUNT);
 
     public SchedulerService() {
         // Default constructor, used by Android system service
@@ -41,16 +140,90 @@ public class SchedulerService extends JobService implements IScheduler<Scheduler
         this();
         this.context = new WeakReference<>(context);
         this.jobScheduler = getAndroidJobScheduler();
+        this.scheduleStore = ScheduleStore.with(context);
+        Arrays.fill(plannedWindowStarts, NOT_PLANNED);
+        Arrays.fill(plannedDeadlines, NOT_PLANNED);
+        for (int slot = 0; slot < MULTIPLEXED_JOB_COUNT; slot++) {
+            inFlightFires.add(new ArrayList<DueFire>());
+        }
+        this.engine = scheduleStore.getEngine();
+        if (engine == ENGINE_MULTIPLEXED) {
+            // The armed jobs outlive the process, but the queue behind them doesn't.
+            for (SchedulerOption option : scheduleStore.getAll()) {
+                offer(option);
+            }
+        }
     }
 
     public static SchedulerService with(@NonNull Context context) {
-        if (sInstance == null) {
-            sInstance = new SchedulerService(context);
+        SchedulerService instance = sInstance;
+        if (instance == null) {
+            synchronized (SchedulerService.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new SchedulerService(context);
+                    sInstance = instance;
+                }
+            }
+        }
+        if (instance.context == null || instance.context.get() == null) {
+            instance.context = new WeakReference<>(context);
+        }
+        return instance;
+    }
+
+    public @Engine int getEngine() {
+        return engine;
+    }
+
+    public SchedulerService setEngine(@Engine int engine) {
+        assert context != null && context.get() != null;
+        if (this.engine == engine) {
+            return this;
         }
-        if (sInstance.context == null || sInstance.context.get() == null) {
-            sInstance.context = new WeakReference<>(context);
+
+        JobScheduler jobScheduler = getAndroidJobScheduler();
+        ComponentName componentName = new ComponentName(context.get(), SchedulerService.class);
+        sLocks.lockAll();
+        try {
+            List<SchedulerOption> options = scheduleStore.getAll();
+            if (engine == ENGINE_MULTIPLEXED) {
+                for (SchedulerOption option : options) {
+                    jobScheduler.cancel(option.getScheduleId());
+                    SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_CANCEL);
+                }
+                this.engine = engine;
+                scheduleStore.setEngine(engine);
+                for (SchedulerOption option : options) {
+                    offer(option);
+                }
+            } else {
+                boolean wasMultiplexed = this.engine == ENGINE_MULTIPLEXED;
+                if (wasMultiplexed) {
+                    synchronized (scheduleQueue) {
+                        scheduleQueue.clear();
+                    }
+                    planJobs();
+                }
+                this.engine = engine;
+                scheduleStore.setEngine(engine);
+                for (SchedulerOption option : options) {
+                    // Daily jobs may have turned periodic, so they are made one-off again. Going
+                    // the other way they turn periodic as they fire.
+                    if (wasMultiplexed
+                            || (engine == ENGINE_JOB_PER_SCHEDULE && Recurrence.getInterval(option) > 0)) {
+                        SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+                        jobScheduler.schedule(getJobInfo(componentName, option));
+                    }
+                }
+            }
+        } finally {
+            sLocks.unlockAll();
+        }
+        if (engine == ENGINE_MULTIPLEXED) {
+            planJobs();
         }
-        return sInstance;
+        return this;
     }
 
     private JobScheduler getAndroidJobScheduler() {
@@ -67,26 +240,98 @@ public class SchedulerService extends JobService implements IScheduler<Scheduler
 
     private JobInfo getJobInfo(@NonNull ComponentName componentName,
                                @NonNull SchedulerOption option) {
-        PersistableBundle extra = new SchedulerOption.Builder().toPersistableBundle(option);
-        return new JobInfo.Builder(option.getScheduleId(), componentName)
-                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
-                .setRequiresDeviceIdle(false)
-                .setMinimumLatency(getMinimumLatency(
-                        option.getRecurringType(),
-                        option.getScheduleFor()))
-                .setExtras(extra)
-                .build();
+        long triggerAtMillis = option.getScheduleFor() + option.getJitterMillis();
+        long now = SchedulerCompat.getClock().currentTimeMillis();
+        if (option.getRecurringType() == SchedulerCompat.OCCUR_CRON && triggerAtMillis <= now) {
+            triggerAtMillis = Recurrence.getNextTriggerAfter(option, triggerAtMillis, now);
+        }
+        return getJobInfo(componentName, option, triggerAtMillis);
+    }
+
+    private JobInfo getJobInfo(@NonNull ComponentName componentName,
+                               @NonNull SchedulerOption option,
+                               long triggerAtMillis) {
+        long latencyMillis = getMinimumLatency(option.getRecurringType(), triggerAtMillis);
+        JobInfo.Builder builder = new JobInfo.Builder(option.getScheduleId(), componentName)
+                .setMinimumLatency(latencyMillis);
+        setConstraints(builder, option.getConstraints());
+        setExtras(builder, option, false);
+        if (option.getToleranceMillis() > 0 && option.getConstraints() == 0) {
+            // Lets the job scheduler batch it anywhere in the window, but no later. A deadline
+            // would run a constrained job whether or not its constraints are met.
+            builder.setOverrideDeadline(latencyMillis + option.getToleranceMillis());
+        }
+        return builder.build();
     }
 
     @Override
     public SchedulerService add(@NonNull SchedulerOption option) {
         assert context != null && context.get() != null;
 
+        if (engine == ENGINE_MULTIPLEXED) {
+            Lock lock = sLocks.get(option.getScheduleId());
+            lock.lock();
+            try {
+                scheduleStore.put(option);
+                offer(option);
+            } finally {
+                lock.unlock();
+            }
+            planJobs();
+            return this;
+        }
+
         ComponentName componentName = new ComponentName(context.get(), SchedulerService.class);
         JobInfo jobInfo = getJobInfo(componentName, option);
-        jobScheduler = getAndroidJobScheduler();
-        if (jobScheduler.schedule(jobInfo) == JobScheduler.RESULT_SUCCESS) {
-            optHistory.append(option.getScheduleId(), option);
+        JobScheduler jobScheduler = getAndroidJobScheduler();
+        Lock lock = sLocks.get(option.getScheduleId());
+        lock.lock();
+        try {
+            SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+            if (jobScheduler.schedule(jobInfo) == JobScheduler.RESULT_SUCCESS) {
+                scheduleStore.put(option);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    @Override
+    public SchedulerService addAll(@NonNull Collection<SchedulerOption> options) {
+        assert context != null && context.get() != null;
+
+        ComponentName componentName = new ComponentName(context.get(), SchedulerService.class);
+        JobScheduler jobScheduler = getAndroidJobScheduler();
+        sLocks.lockAll();
+        try {
+            List<SchedulerOption> scheduled = new ArrayList<>(options.size());
+            for (SchedulerOption option : options) {
+                SchedulerOption existing = scheduleStore.get(option.getScheduleId());
+                if (existing != null && existing.hasSameSchedule(option)
+                        && scheduleStore.isRegisteredSinceBoot()) {
+                    continue;
+                }
+                if (engine == ENGINE_MULTIPLEXED) {
+                    scheduled.add(option);
+                    continue;
+                }
+                SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+                if (jobScheduler.schedule(getJobInfo(componentName, option)) == JobScheduler.RESULT_SUCCESS) {
+                    scheduled.add(option);
+                }
+            }
+            scheduleStore.putAll(scheduled);
+            if (engine == ENGINE_MULTIPLEXED) {
+                for (SchedulerOption option : scheduled) {
+                    offer(option);
+                }
+            }
+        } finally {
+            sLocks.unlockAll();
+        }
+        if (engine == ENGINE_MULTIPLEXED) {
+            planJobs();
         }
         return this;
     }
@@ -95,75 +340,716 @@ public class SchedulerService extends JobService implements IScheduler<Scheduler
     public void cancel(int scheduleId) {
         assert context != null && context.get() != null;
 
-        jobScheduler = getAndroidJobScheduler();
-        jobScheduler.cancel(scheduleId);
-        optHistory.remove(scheduleId);
+        JobScheduler jobScheduler = getAndroidJobScheduler();
+        Lock lock = sLocks.get(scheduleId);
+        lock.lock();
+        try {
+            cancelJob(jobScheduler, scheduleId);
+            scheduleStore.remove(scheduleId);
+        } finally {
+            lock.unlock();
+        }
+        if (engine == ENGINE_MULTIPLEXED) {
+            planJobs();
+        }
     }
 
+    @Override
+    public void cancel(@NonNull int[] scheduleIds) {
+        assert context != null && context.get() != null;
+
+        JobScheduler jobScheduler = getAndroidJobScheduler();
+        sLocks.lockAll();
+        try {
+            for (int scheduleId : scheduleIds) {
+                cancelJob(jobScheduler, scheduleId);
+            }
+            scheduleStore.removeAll(scheduleIds);
+        } finally {
+            sLocks.unlockAll();
+        }
+        if (engine == ENGINE_MULTIPLEXED) {
+            planJobs();
+        }
+    }
+
+    @Override
+    public void cancelGroup(@NonNull String group) {
+        cancel(scheduleStore.getScheduleIds(group));
+    }
+
+    /**
+     * Cancels every job with one call to the job scheduler when all pending jobs of the app
+     * belong to this library, and one by one otherwise.
+     */
     @Override
     public void cancelAll() {
         assert context != null && context.get() != null;
 
-        for (int i = 0; i < optHistory.size(); i++) {
-            int scheduleId = optHistory.keyAt(i);
-            cancel(scheduleId);
+        JobScheduler jobScheduler = getAndroidJobScheduler();
+        sLocks.lockAll();
+        try {
+            if (engine == ENGINE_MULTIPLEXED) {
+                synchronized (scheduleQueue) {
+                    scheduleQueue.clear();
+                }
+            } else if (ownsAllPendingJobs(jobScheduler)) {
+                jobScheduler.cancelAll();
+                SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_CANCEL);
+            } else {
+                for (int scheduleId : scheduleStore.getScheduleIds()) {
+                    jobScheduler.cancel(scheduleId);
+                    SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_CANCEL);
+                }
+            }
+            scheduleStore.clear();
+        } finally {
+            sLocks.unlockAll();
+        }
+        if (engine == ENGINE_MULTIPLEXED) {
+            planJobs();
+        }
+    }
+
+    /**
+     * Schedules {@code options} again at the given fire times, e.g. after the wall clock or the
+     * time zone has changed, since job latencies are relative to when they were set. The
+     * multiplexed engine offers them all to its queue and arms its few jobs once; otherwise
+     * every schedule gets a one-off job again, which daily schedules turn periodic from as
+     * they fire.
+     */
+    public void rearm(@NonNull List<SchedulerOption> options, @NonNull long[] triggerAtMillis) {
+        assert context != null && context.get() != null;
+
+        ComponentName componentName = new ComponentName(context.get(), SchedulerService.class);
+        JobScheduler jobScheduler = getAndroidJobScheduler();
+        sLocks.lockAll();
+        try {
+            for (int i = 0; i < triggerAtMillis.length; i++) {
+                SchedulerOption option = options.get(i);
+                if (scheduleStore.get(option.getScheduleId()) != option) {
+                    continue;
+                }
+                if (engine == ENGINE_MULTIPLEXED) {
+                    synchronized (scheduleQueue) {
+                        scheduleQueue.offer(option.getScheduleId(), triggerAtMillis[i],
+                                triggerAtMillis[i] + option.getToleranceMillis());
+                    }
+                } else {
+                    SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+                    jobScheduler.schedule(getJobInfo(componentName, option, triggerAtMillis[i]));
+                }
+            }
+            if (engine == ENGINE_MULTIPLEXED) {
+                synchronized (scheduleQueue) {
+                    // Idle jobs were armed with latencies of the old clock, so they are all armed again.
+                    for (int slot = 0; slot < MULTIPLEXED_JOB_COUNT; slot++) {
+                        if (!runningSlots[slot]) {
+                            plannedWindowStarts[slot] = NOT_PLANNED;
+                            plannedDeadlines[slot] = NOT_PLANNED;
+                        }
+                    }
+                }
+            }
+        } finally {
+            sLocks.unlockAll();
+        }
+        if (engine == ENGINE_MULTIPLEXED) {
+            planJobs();
+        }
+    }
+
+    private void cancelJob(@NonNull JobScheduler jobScheduler, int scheduleId) {
+        if (engine == ENGINE_MULTIPLEXED) {
+            synchronized (scheduleQueue) {
+                scheduleQueue.remove(scheduleId);
+            }
+            return;
         }
+        jobScheduler.cancel(scheduleId);
+        SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_CANCEL);
+    }
+
+    private static boolean ownsAllPendingJobs(@NonNull JobScheduler jobScheduler) {
+        String serviceName = SchedulerService.class.getName();
+        for (JobInfo jobInfo : jobScheduler.getAllPendingJobs()) {
+            if (!serviceName.equals(jobInfo.getService().getClassName())) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
-    public boolean onStartJob(JobParameters jobInfo) {
-        PersistableBundle extra = jobInfo.getExtras();
+    public boolean onStartJob(final JobParameters jobInfo) {
+        long receivedAtNanos = System.nanoTime();
+        if (jobInfo.getJobId() >= MULTIPLEXED_JOB_ID_BASE) {
+            return onStartMultiplexedJob(jobInfo, receivedAtNanos);
+        } else if (jobInfo.getJobId() >= RELEASE_JOB_ID_BASE) {
+            return onStartReleaseJob(jobInfo);
+        }
 
-        sendBroadcast(extra);
-        jobFinished(jobInfo, false);
+        final long now = SchedulerCompat.getClock().currentTimeMillis();
+        final SchedulerOption option = getOption(jobInfo);
+        boolean periodic = jobInfo.getExtras().getInt(EXTRA_PERIODIC, 0) != 0;
+        long plannedAtMillis = periodic ? getNearestDailyTrigger(option, now) : getPlannedAt(option, now);
+        SchedulerMetrics.getInstance().recordWakeup(now);
 
-        if (isDailySchedule(extra.getInt(SchedulerOption.RECURRING_TYPE_KEY))) {
-            rescheduleForNext(new SchedulerOption.Builder().fromBundle(extra),
-                    TimeUnit.DAYS.toMillis(1));
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        runningJobs.put(jobInfo.getJobId(), cancellationSignal);
+        if (periodic && SDK_INT >= Build.VERSION_CODES.N && plannedAtMillis - now > getPeriodicFlex(option)) {
+            // Too early for the occurrence it stands for: nothing fires, and the occurrence gets
+            // a one-off job instead.
+            onJobFinished(jobInfo, cancellationSignal, option, REARM_NEXT, now);
+            return true;
         }
 
+        SchedulerMetrics.getInstance().recordFire(option.getScheduleId(), plannedAtMillis, now);
+        // A late job fires once however many occurrences the device slept through, so they are
+        // counted from the occurrence the store expected.
+        long triggerAtMillis = ScheduleStore.with(this).getNextTriggerAt(option, plannedAtMillis);
+        final @Rearm int rearm = onJobFired(option, periodic, plannedAtMillis, now);
+        sendBroadcast(option, triggerAtMillis, now, cancellationSignal, new ScheduleDispatcher.OnDispatchCompleteListener() {
+            @Override
+            public void onDispatchComplete() {
+                onJobFinished(jobInfo, cancellationSignal, option, rearm, now);
+            }
+        }, receivedAtNanos);
         return true;
     }
 
+    /**
+     * Records the fire of {@code option} in the store.
+     *
+     * @return how the schedule has to be armed again once this job has finished.
+     */
+    private @Rearm int onJobFired(
+            @NonNull SchedulerOption option,
+            boolean periodic,
+            long plannedAtMillis,
+            long firedAtMillis
+    ) {
+        Lock lock = sLocks.get(option.getScheduleId());
+        lock.lock();
+        try {
+            // A schedule re-added with another time since this job was armed keeps its own job.
+            SchedulerOption stored = ScheduleStore.with(this).get(option.getScheduleId());
+            if (stored == null || !stored.hasSameSchedule(option)) {
+                return REARM_NONE;
+            }
+            if (!Recurrence.isRecurring(option)) {
+                ScheduleStore.with(this).remove(option.getScheduleId());
+                return REARM_NONE;
+            }
+            ScheduleStore.with(this).markFired(option.getScheduleId(), firedAtMillis);
+            if (periodic) {
+                // The job repeats by itself; it only needs re-anchoring once it runs late.
+                return firedAtMillis - plannedAtMillis > MAX_PERIODIC_DRIFT_MILLIS
+                        ? REARM_NEXT : REARM_NONE;
+            } else if (with(this).getEngine() == ENGINE_PERIODIC && canRunPeriodic(option)) {
+                return REARM_PERIODIC;
+            }
+            return REARM_NEXT;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finishes the job and then arms the schedule again. Scheduling the id of a running job
+     * stops it, and jobFinished() reaches the job scheduler from the main thread, so the
+     * schedule is armed from there too.
+     */
+    private void onJobFinished(
+            @NonNull JobParameters jobInfo,
+            @NonNull CancellationSignal cancellationSignal,
+            @NonNull final SchedulerOption option,
+            final @Rearm int rearm,
+            final long firedAtMillis
+    ) {
+        if (!runningJobs.remove(jobInfo.getJobId(), cancellationSignal)) {
+            return;
+        }
+        jobFinished(jobInfo, false);
+        if (rearm == REARM_NONE) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (rearm == REARM_PERIODIC && SDK_INT >= Build.VERSION_CODES.N) {
+                    schedulePeriodic(option);
+                } else {
+                    rescheduleForNext(option, firedAtMillis);
+                }
+            }
+        });
+    }
+
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
+        CancellationSignal cancellationSignal = runningJobs.remove(jobParameters.getJobId());
+        if (cancellationSignal != null) {
+            cancellationSignal.cancel();
+        }
+        if (jobParameters.getJobId() >= MULTIPLEXED_JOB_ID_BASE) {
+            // The fires it hadn't finished are back in the queue, so the slot is simply planned again.
+            with(this).onMultiplexedJobStopped(jobParameters.getJobId() - MULTIPLEXED_JOB_ID_BASE);
+            return false;
+        } else if (jobParameters.getJobId() >= RELEASE_JOB_ID_BASE) {
+            // Released fires have been dispatched already, and have no job of their own.
+            return false;
+        }
         return true;
     }
 
-    private void sendBroadcast(PersistableBundle extra) {
-        String actionName = extra.getString(SchedulerOption.SCHEDULE_RECEIVER_ACTION_NAME_KEY, "");
-        Intent intent = new Intent();
-        intent.setAction(actionName);
-        intent.putExtras(new SchedulerOption.Builder().toBundle(extra));
-        sendBroadcast(intent);
+    private boolean onStartReleaseJob(final JobParameters jobInfo) {
+        ConditionMonitor.with(this).release(jobInfo.getJobId() - RELEASE_JOB_ID_BASE,
+                new ScheduleDispatcher.OnDispatchCompleteListener() {
+                    @Override
+                    public void onDispatchComplete() {
+                        jobFinished(jobInfo, false);
+                    }
+                });
+        return true;
+    }
+
+    /**
+     * Arms the job that releases the fires held for {@code constraints} once the job scheduler
+     * finds them met.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    public void armReleaseJob(@SchedulerCompat.Constraint int constraints) {
+        JobInfo.Builder builder = new JobInfo.Builder(RELEASE_JOB_ID_BASE + constraints,
+                new ComponentName(context.get(), SchedulerService.class));
+        setConstraints(builder, constraints);
+        SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+        getAndroidJobScheduler().schedule(builder.build());
+    }
+
+    public void cancelReleaseJob(@SchedulerCompat.Constraint int constraints) {
+        SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_CANCEL);
+        getAndroidJobScheduler().cancel(RELEASE_JOB_ID_BASE + constraints);
+    }
+
+    /**
+     * @return a bit set of the constraint combinations whose release job is pending.
+     */
+    public int getArmedReleaseJobs() {
+        int armed = 0;
+        for (JobInfo jobInfo : getAndroidJobScheduler().getAllPendingJobs()) {
+            int jobId = jobInfo.getId();
+            if (jobId >= RELEASE_JOB_ID_BASE && jobId < MULTIPLEXED_JOB_ID_BASE) {
+                armed |= 1 << (jobId - RELEASE_JOB_ID_BASE);
+            }
+        }
+        return armed;
+    }
+
+    private boolean onStartMultiplexedJob(final JobParameters jobInfo, long receivedAtNanos) {
+        final SchedulerService scheduler = with(this);
+        final int slot = jobInfo.getJobId() - MULTIPLEXED_JOB_ID_BASE;
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        runningJobs.put(jobInfo.getJobId(), cancellationSignal);
+        scheduler.dispatchDueSchedules(slot, cancellationSignal, new ScheduleDispatcher.OnDispatchCompleteListener() {
+            @Override
+            public void onDispatchComplete() {
+                if (runningJobs.remove(jobInfo.getJobId(), cancellationSignal)) {
+                    jobFinished(jobInfo, false);
+                    scheduler.onMultiplexedJobFinished(slot);
+                }
+            }
+        }, receivedAtNanos);
+        return true;
+    }
+
+    /**
+     * Dispatches every logical schedule whose window has opened, then plans the other jobs again.
+     */
+    private void dispatchDueSchedules(
+            int slot,
+            @NonNull final CancellationSignal cancellationSignal,
+            @NonNull ScheduleDispatcher.OnDispatchCompleteListener listener,
+            long receivedAtNanos
+    ) {
+        final long now = SchedulerCompat.getClock().currentTimeMillis();
+        SchedulerMetrics.getInstance().recordWakeup(now);
+        final List<DueFire> due = inFlightFires.get(slot);
+        final List<DueFire> polled = new ArrayList<>();
+        synchronized (scheduleQueue) {
+            // A running job can't be rescheduled without stopping it, so its slot stays empty
+            // until it has finished.
+            runningSlots[slot] = true;
+            plannedWindowStarts[slot] = NOT_PLANNED;
+            plannedDeadlines[slot] = NOT_PLANNED;
+            scheduleQueue.pollDue(now, new ScheduleQueue.OnDueListener() {
+                @Override
+                public void onDue(int scheduleId, long triggerAtMillis) {
+                    SchedulerOption option = scheduleStore.get(scheduleId);
+                    if (option == null) {
+                        return;
+                    }
+
+                    SchedulerMetrics.getInstance().recordFire(scheduleId, triggerAtMillis, now);
+                    polled.add(new DueFire(option, triggerAtMillis));
+                    if (Recurrence.isRecurring(option)) {
+                        long nextTriggerAtMillis = Recurrence.getNextTriggerAfter(option, triggerAtMillis, now);
+                        scheduleQueue.offer(scheduleId, nextTriggerAtMillis,
+                                nextTriggerAtMillis + option.getToleranceMillis());
+                    }
+                }
+            });
+            due.addAll(polled);
+        }
+        planJobs();
+
+        final ScheduleDispatcher.CompletionBarrier barrier = new ScheduleDispatcher.CompletionBarrier(listener);
+        ConditionMonitor conditionMonitor = ConditionMonitor.with(context.get());
+        for (final DueFire fire : polled) {
+            if (cancellationSignal.isCanceled()) {
+                break;
+            }
+            // Multiplexed jobs carry no constraints of their own.
+            if (conditionMonitor.holdIfUnmet(fire.option, fire.triggerAtMillis)) {
+                synchronized (scheduleQueue) {
+                    due.remove(fire);
+                }
+                onDueScheduleFired(fire.option, now, true);
+                continue;
+            }
+
+            barrier.expect();
+            ScheduleDispatcher.getInstance().dispatchDue(context.get(),
+                    fire.option,
+                    new SchedulerOption.Builder().toBundle(fire.option),
+                    fire.triggerAtMillis,
+                    now,
+                    cancellationSignal,
+                    new ScheduleDispatcher.OnDispatchCompleteListener() {
+                        @Override
+                        public void onDispatchComplete() {
+                            boolean fired;
+                            synchronized (scheduleQueue) {
+                                // A stopped job leaves its fire to onMultiplexedJobStopped().
+                                fired = !cancellationSignal.isCanceled() && due.remove(fire);
+                            }
+                            if (fired) {
+                                onDueScheduleFired(fire.option, now, false);
+                            }
+                            barrier.onDispatchComplete();
+                        }
+                    },
+                    receivedAtNanos);
+        }
+        barrier.arrive();
+    }
+
+    private void onMultiplexedJobFinished(int slot) {
+        synchronized (scheduleQueue) {
+            runningSlots[slot] = false;
+        }
+        planJobs();
     }
 
-    private void rescheduleForNext(@NonNull SchedulerOption options, long intervalInMillis) {
-        with(this).add(new SchedulerOption.Builder()
-                .scheduleId(options.getScheduleId())
-                .scheduleName(options.getScheduleName())
-                .recurringType(options.getRecurringType())
-                .scheduleFor(options.getScheduleFor() + intervalInMillis)
-                .build());
+    /**
+     * Puts the fires the slot hadn't finished back in the queue at their trigger times. Recurring
+     * schedules had their next occurrence queued when they were polled; it is queued again once
+     * the fire has been dispatched.
+     */
+    private void onMultiplexedJobStopped(int slot) {
+        synchronized (scheduleQueue) {
+            List<DueFire> due = inFlightFires.get(slot);
+            for (DueFire fire : due) {
+                int scheduleId = fire.option.getScheduleId();
+                if (scheduleStore.get(scheduleId) == fire.option) {
+                    scheduleQueue.offer(scheduleId, fire.triggerAtMillis,
+                            fire.triggerAtMillis + fire.option.getToleranceMillis());
+                }
+            }
+            due.clear();
+            runningSlots[slot] = false;
+        }
+        planJobs();
     }
 
-    private long getMinimumLatency(@RecurringType int type, long triggeredAtMillis) {
-        if (triggeredAtMillis > System.currentTimeMillis()) {
-            return triggeredAtMillis;
+    /**
+     * Leaves the store alone when the schedule has been replaced or cancelled since it was polled,
+     * and keeps a held one-off schedule in it until {@link ConditionMonitor} releases it.
+     */
+    private void onDueScheduleFired(@NonNull SchedulerOption option, long firedAtMillis, boolean held) {
+        int scheduleId = option.getScheduleId();
+        Lock lock = sLocks.get(scheduleId);
+        lock.lock();
+        try {
+            if (scheduleStore.get(scheduleId) != option) {
+                return;
+            }
+            if (Recurrence.isRecurring(option)) {
+                scheduleStore.markFired(scheduleId, firedAtMillis);
+            } else if (!held) {
+                scheduleStore.remove(scheduleId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void offer(@NonNull SchedulerOption option) {
+        long triggerAtMillis = Recurrence.getFirstTriggerAt(option);
+        long lastFiredAtMillis = scheduleStore.getLastFiredAt(option.getScheduleId());
+        if (Recurrence.isRecurring(option) && lastFiredAtMillis >= triggerAtMillis) {
+            triggerAtMillis = Recurrence.getNextTriggerAfter(option, triggerAtMillis, lastFiredAtMillis);
+        }
+        synchronized (scheduleQueue) {
+            scheduleQueue.offer(option.getScheduleId(), triggerAtMillis,
+                    triggerAtMillis + option.getToleranceMillis());
+        }
+    }
+
+    /**
+     * Arms the idle jobs for the earliest wakeups of the queue: slice i fires by the i-th
+     * earliest deadline, together with every schedule whose window has opened by then. Slices
+     * that are already armed keep their job, so adding or cancelling one schedule usually costs
+     * at most one job scheduler call.
+     */
+    private void planJobs() {
+        synchronized (scheduleQueue) {
+            long[] deadlines = new long[MULTIPLEXED_JOB_COUNT];
+            int slices = engine == ENGINE_MULTIPLEXED ? scheduleQueue.peekDeadlines(deadlines) : 0;
+            long[] windowStarts = new long[slices];
+            boolean[] kept = new boolean[MULTIPLEXED_JOB_COUNT];
+            boolean[] assigned = new boolean[slices];
+            for (int i = 0; i < slices; i++) {
+                windowStarts[i] = scheduleQueue.getLatestTriggerAtOrBefore(deadlines[i]);
+                for (int slot = 0; slot < MULTIPLEXED_JOB_COUNT; slot++) {
+                    if (!kept[slot] && !runningSlots[slot]
+                            && plannedWindowStarts[slot] == windowStarts[i]
+                            && plannedDeadlines[slot] == deadlines[i]) {
+                        kept[slot] = true;
+                        assigned[i] = true;
+                        break;
+                    }
+                }
+            }
+
+            int next = 0;
+            for (int slot = 0; slot < MULTIPLEXED_JOB_COUNT; slot++) {
+                if (kept[slot] || runningSlots[slot]) {
+                    continue;
+                }
+                while (next < slices && assigned[next]) {
+                    next++;
+                }
+                if (next < slices) {
+                    armJob(slot, windowStarts[next], deadlines[next]);
+                    assigned[next] = true;
+                } else if (plannedDeadlines[slot] != NOT_PLANNED) {
+                    getAndroidJobScheduler().cancel(MULTIPLEXED_JOB_ID_BASE + slot);
+                    SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_CANCEL);
+                    plannedWindowStarts[slot] = NOT_PLANNED;
+                    plannedDeadlines[slot] = NOT_PLANNED;
+                }
+            }
+        }
+    }
+
+    private void armJob(int slot, long windowStartMillis, long deadlineMillis) {
+        long now = SchedulerCompat.getClock().currentTimeMillis();
+        JobInfo jobInfo = new JobInfo.Builder(MULTIPLEXED_JOB_ID_BASE + slot,
+                new ComponentName(context.get(), SchedulerService.class))
+                .setMinimumLatency(Math.max(0, windowStartMillis - now))
+                .setOverrideDeadline(Math.max(0, deadlineMillis - now))
+                .build();
+        SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+        if (getAndroidJobScheduler().schedule(jobInfo) == JobScheduler.RESULT_SUCCESS) {
+            plannedWindowStarts[slot] = windowStartMillis;
+            plannedDeadlines[slot] = deadlineMillis;
+        }
+    }
+
+    private void sendBroadcast(
+            @NonNull SchedulerOption option,
+            long triggerAtMillis,
+            long now,
+            @NonNull CancellationSignal cancellationSignal,
+            @NonNull ScheduleDispatcher.OnDispatchCompleteListener listener,
+            long receivedAtNanos
+    ) {
+        ScheduleDispatcher.getInstance().dispatchDue(this, option,
+                new SchedulerOption.Builder().toBundle(option), triggerAtMillis, now,
+                cancellationSignal, listener, receivedAtNanos);
+    }
+
+    private static void setConstraints(
+            @NonNull JobInfo.Builder builder,
+            @SchedulerCompat.Constraint int constraints
+    ) {
+        builder.setRequiredNetworkType((constraints & SchedulerCompat.CONSTRAINT_UNMETERED_NETWORK) != 0
+                        ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging((constraints & SchedulerCompat.CONSTRAINT_CHARGING) != 0)
+                .setRequiresDeviceIdle((constraints & SchedulerCompat.CONSTRAINT_DEVICE_IDLE) != 0);
+        if (SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setRequiresBatteryNotLow((constraints & SchedulerCompat.CONSTRAINT_BATTERY_NOT_LOW) != 0);
+        }
+    }
+
+    /**
+     * From O the option travels as a single encoded transient extra. Transient extras don't
+     * survive a reboot, which schedule jobs never do since they aren't persisted.
+     */
+    private static void setExtras(
+            @NonNull JobInfo.Builder builder,
+            @NonNull SchedulerOption option,
+            boolean periodic
+    ) {
+        PersistableBundle extra;
+        if (SDK_INT >= Build.VERSION_CODES.O) {
+            Bundle transientExtras = new Bundle();
+            transientExtras.putByteArray(SchedulerOption.ENCODED_OPTION_KEY,
+                    SchedulerOptionCodec.encode(option));
+            builder.setTransientExtras(transientExtras);
+            extra = new PersistableBundle();
+        } else {
+            extra = new SchedulerOption.Builder().toPersistableBundle(option);
+        }
+        if (periodic) {
+            extra.putInt(EXTRA_PERIODIC, 1);
+        }
+        builder.setExtras(extra);
+    }
+
+    private SchedulerOption getOption(@NonNull JobParameters jobInfo) {
+        if (SDK_INT >= Build.VERSION_CODES.O) {
+            byte[] encoded = jobInfo.getTransientExtras()
+                    .getByteArray(SchedulerOption.ENCODED_OPTION_KEY);
+            if (encoded != null) {
+                return ScheduleStore.with(this).get(sOption.wrap(encoded));
+            }
+        }
+        // Scheduled before O, or by an earlier version with one extra per field.
+        return new SchedulerOption.Builder().fromBundle(jobInfo.getExtras());
+    }
+
+    /**
+     * A recurring schedule keeps the time it was added with in its job, so roll it forward to
+     * the occurrence this job stands for.
+     */
+    private long getPlannedAt(@NonNull SchedulerOption option, long now) {
+        long plannedAtMillis = option.getScheduleFor() + option.getJitterMillis();
+        long lastFiredAtMillis = ScheduleStore.with(this).getLastFiredAt(option.getScheduleId());
+        if (Recurrence.isRecurring(option) && lastFiredAtMillis >= plannedAtMillis) {
+            plannedAtMillis = Recurrence.getNextTriggerAfter(option, plannedAtMillis, lastFiredAtMillis);
+        }
+        long dayAgo = now - TimeUnit.DAYS.toMillis(1);
+        if (isDailySchedule(option.getRecurringType()) && plannedAtMillis <= dayAgo) {
+            plannedAtMillis = LocalTimeCalculator.getDefault().nextDailyTriggerAfter(plannedAtMillis, dayAgo);
+        }
+        return plannedAtMillis;
+    }
+
+    /**
+     * Returns the wall time occurrence of a daily schedule closest to {@code now}, which a
+     * periodic run may be early or late for.
+     */
+    private static long getNearestDailyTrigger(@NonNull SchedulerOption option, long now) {
+        return LocalTimeCalculator.getDefault().nextDailyTriggerAfter(
+                option.getScheduleFor() + option.getJitterMillis(), now - TimeUnit.DAYS.toMillis(1) / 2);
+    }
+
+    private static boolean canRunPeriodic(@NonNull SchedulerOption option) {
+        // Without a flex window a periodic job may run anywhere in its day.
+        return SDK_INT >= Build.VERSION_CODES.N && isDailySchedule(option.getRecurringType());
+    }
+
+    /**
+     * Replaces the one-off job that has just fired with a job repeating every day from now,
+     * unless the schedule has been cancelled or added again meanwhile.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private void schedulePeriodic(@NonNull SchedulerOption option) {
+        ComponentName componentName = new ComponentName(this, SchedulerService.class);
+        JobInfo.Builder builder = new JobInfo.Builder(option.getScheduleId(), componentName)
+                .setPeriodic(Recurrence.getInterval(option), getPeriodicFlex(option));
+        setConstraints(builder, option.getConstraints());
+        setExtras(builder, option, true);
+        JobInfo jobInfo = builder.build();
+        Lock lock = sLocks.get(option.getScheduleId());
+        lock.lock();
+        try {
+            SchedulerOption stored = ScheduleStore.with(this).get(option.getScheduleId());
+            if (stored == null || !stored.hasSameSchedule(option)) {
+                return;
+            }
+            SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+            with(this).getAndroidJobScheduler().schedule(jobInfo);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the narrowest flex window the job scheduler allows for the periodic job of
+     * {@code option}: at least {@link JobInfo#getMinFlexMillis()} and 5% of the interval. A
+     * periodic job is anchored to when it was scheduled, so the window opens before the wall
+     * time.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private static long getPeriodicFlex(@NonNull SchedulerOption option) {
+        long intervalMillis = Recurrence.getInterval(option);
+        return Math.min(intervalMillis, Math.max(JobInfo.getMinFlexMillis(), intervalMillis / 20));
+    }
+
+    /**
+     * Arms the occurrence of {@code option} after {@code firedAtMillis}, unless the schedule has
+     * been cancelled or added again meanwhile. The stored option keeps the time it was added
+     * with, so that adding it again unchanged is still recognised as such.
+     */
+    private void rescheduleForNext(@NonNull SchedulerOption option, long firedAtMillis) {
+        ComponentName componentName = new ComponentName(this, SchedulerService.class);
+        Lock lock = sLocks.get(option.getScheduleId());
+        lock.lock();
+        try {
+            SchedulerOption stored = ScheduleStore.with(this).get(option.getScheduleId());
+            if (stored == null || !stored.hasSameSchedule(option)) {
+                return;
+            }
+            long triggerAtMillis = Recurrence.getFirstTriggerAt(stored);
+            if (triggerAtMillis <= firedAtMillis) {
+                triggerAtMillis = Recurrence.getNextTriggerAfter(stored, triggerAtMillis, firedAtMillis);
+            }
+            SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+            with(this).getAndroidJobScheduler().schedule(getJobInfo(componentName, stored, triggerAtMillis));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    static long getMinimumLatency(@RecurringType int type, long triggeredAtMillis) {
+        long now = SchedulerCompat.getClock().currentTimeMillis();
+        if (triggeredAtMillis > now) {
+            return triggeredAtMillis - now;
         }
 
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(triggeredAtMillis);
         if (isDailySchedule(type)) {
-            cal.add(Calendar.DATE, 1);
-            return cal.getTimeInMillis();
+            return LocalTimeCalculator.getDefault().nextDailyTriggerAfter(triggeredAtMillis, now) - now;
         }
-        return triggeredAtMillis;
+        return 0;
     }
 
-    private boolean isDailySchedule(@RecurringType int type) {
+    private static boolean isDailySchedule(@RecurringType int type) {
         return type == SchedulerCompat.OCCUR_EVERY_MIDNIGHT
                 || type == SchedulerCompat.OCCUR_EVERY_DAYLIGHT
                 || type == SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME;
     }
+
+    private static final class DueFire {
+        final SchedulerOption option;
+        final long triggerAtMillis;
+
+        DueFire(@NonNull SchedulerOption option, long triggerAtMillis) {
+            this.option = option;
+            this.triggerAtMillis = triggerAtMillis;
+        }
+    }
 }
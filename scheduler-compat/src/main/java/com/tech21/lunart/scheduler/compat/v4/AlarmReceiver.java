@@ -4,21 +4,113 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 
+import com.tech21.lunart.scheduler.compat.ConditionMonitor;
+import com.tech21.lunart.scheduler.compat.LocalTimeCalculator;
+import com.tech21.lunart.scheduler.compat.ScheduleDispatcher;
+import com.tech21.lunart.scheduler.compat.ScheduleStore;
+import com.tech21.lunart.scheduler.compat.SchedulerCompat;
 import com.tech21.lunart.scheduler.compat.SchedulerOption;
+import com.tech21.lunart.scheduler.compat.SchedulerOptionCodec;
+import com.tech21.lunart.scheduler.compat.metrics.SchedulerMetrics;
+
+import java.util.concurrent.TimeUnit;
 
 public class AlarmReceiver extends BroadcastReceiver {
+    // Receivers run on the main thread, so a single view is reused for every alarm.
+    private static final SchedulerOptionCodec.View sOption = new SchedulerOptionCodec.View();
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        long receivedAtNanos = System.nanoTime();
+        long now = SchedulerCompat.getClock().currentTimeMillis();
+        SchedulerMetrics.getInstance().recordWakeup(now);
+
+        final PendingResult pendingResult = goAsync();
+        ScheduleDispatcher.OnDispatchCompleteListener onComplete =
+                new ScheduleDispatcher.OnDispatchCompleteListener() {
+                    @Override
+                    public void onDispatchComplete() {
+                        if (pendingResult != null) {
+                            pendingResult.finish();
+                        }
+                    }
+                };
+
+        if (AlarmService.ACTION_DISPATCH_DUE_SCHEDULES.equals(intent.getAction())) {
+            AlarmService.with(context).dispatchDueSchedules(onComplete, receivedAtNanos);
+            return;
+        }
+
         Bundle extra = intent.getExtras();
-        if (extra != null) {
-            String actionName = extra.getString(SchedulerOption.SCHEDULE_RECEIVER_ACTION_NAME_KEY, "");
+        if (extra == null) {
+            onComplete.onDispatchComplete();
+            return;
+        }
+
+        int scheduleId;
+        long scheduleFor;
+        int recurringType;
+        String actionName;
+        SchedulerOptionCodec.View option = null;
+        byte[] encoded = extra.getByteArray(SchedulerOption.ENCODED_OPTION_KEY);
+        if (encoded != null) {
+            option = sOption.wrap(encoded);
+            scheduleId = option.getScheduleId();
+            scheduleFor = option.getScheduleFor();
+            recurringType = option.getRecurringType();
+            actionName = option.getActionName();
+        } else {
+            // Armed by an earlier version, with one extra per field.
+            scheduleId = extra.getInt(SchedulerOption.SCHEDULE_ID_KEY, -1);
+            scheduleFor = extra.getLong(SchedulerOption.SCHEDULE_FOR_KEY, now);
+            recurringType = extra.getInt(SchedulerOption.RECURRING_TYPE_KEY, -1);
+            actionName = extra.getString(SchedulerOption.SCHEDULE_RECEIVER_ACTION_NAME_KEY, "");
+        }
+        long plannedAtMillis = getPlannedAt(
+                extra.getLong(AlarmService.EXTRA_TRIGGER_AT_MILLIS, scheduleFor), recurringType, now);
+        SchedulerMetrics.getInstance().recordFire(scheduleId, plannedAtMillis, now);
+
+        boolean held = false;
+        if (option != null) {
+            ScheduleStore store = ScheduleStore.with(context);
+            SchedulerOption scheduled = store.get(option);
+            // A repeating alarm fires once however many occurrences the device slept through,
+            // so they are counted from the occurrence the store expected.
+            long triggerAtMillis = store.getNextTriggerAt(scheduled, plannedAtMillis);
+            held = ConditionMonitor.with(context).holdIfUnmet(scheduled, triggerAtMillis);
+            if (held) {
+                onComplete.onDispatchComplete();
+            } else {
+                // Extras are only built for the receiver they are handed to.
+                ScheduleDispatcher.getInstance().dispatchDue(context, scheduled, option.toBundle(),
+                        triggerAtMillis, now, new CancellationSignal(), onComplete, receivedAtNanos);
+            }
+        } else {
+            ScheduleDispatcher.getInstance().dispatch(context, actionName, extra,
+                    new CancellationSignal(), onComplete, receivedAtNanos);
+        }
+
+        AlarmService.with(context).onScheduleFired(scheduleId, held);
+    }
 
-            Intent broadcastIntent = new Intent();
-            broadcastIntent.setAction(actionName);
-            broadcastIntent.putExtras(extra);
-            context.sendBroadcast(broadcastIntent);
+    /**
+     * Repeating alarms only carry their first fire time, so roll it forward to the occurrence
+     * this delivery belongs to.
+     */
+    private static long getPlannedAt(long plannedAtMillis, int recurringType, long now) {
+        switch (recurringType) {
+            case SchedulerCompat.OCCUR_EVERY_MIDNIGHT:
+            case SchedulerCompat.OCCUR_EVERY_DAYLIGHT:
+            case SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME:
+                long dayAgo = now - TimeUnit.DAYS.toMillis(1);
+                if (plannedAtMillis <= dayAgo) {
+                    plannedAtMillis = LocalTimeCalculator.getDefault()
+                            .nextDailyTriggerAfter(plannedAtMillis, dayAgo);
+                }
+                break;
         }
+        return plannedAtMillis;
     }
 }
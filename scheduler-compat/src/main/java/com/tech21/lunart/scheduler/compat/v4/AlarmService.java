@@ -5,16 +5,32 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
+import android.os.CancellationSignal;
+import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
-import android.util.SparseArray;
 
+import com.tech21.lunart.scheduler.compat.ConditionMonitor;
 import com.tech21.lunart.scheduler.compat.IScheduler;
+import com.tech21.lunart.scheduler.compat.Recurrence;
+import com.tech21.lunart.scheduler.compat.ScheduleDispatcher;
+import com.tech21.lunart.scheduler.compat.ScheduleQueue;
+import com.tech21.lunart.scheduler.compat.ScheduleStore;
 import com.tech21.lunart.scheduler.compat.SchedulerCompat;
 import com.tech21.lunart.scheduler.compat.SchedulerOption;
+import com.tech21.lunart.scheduler.compat.SchedulerOptionCodec;
+import com.tech21.lunart.scheduler.compat.StripedLock;
+import com.tech21.lunart.scheduler.compat.metrics.SchedulerMetrics;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
+import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_CRON;
 import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_EVERY_DAYLIGHT;
 import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_EVERY_MIDNIGHT;
 import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME;
@@ -22,93 +38,491 @@ import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_ONCE;
 import static com.tech21.lunart.scheduler.compat.SchedulerCompat.OCCUR_ONCE_IMMEDIATELY;
 
 public class AlarmService implements IScheduler<AlarmService> {
+    @IntDef({
+        ENGINE_ALARM_PER_SCHEDULE,
+        ENGINE_SINGLE_ALARM
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Engine { }
+
+    /**
+     * Every schedule owns its own {@link PendingIntent} and system alarm.
+     */
+    public static final int ENGINE_ALARM_PER_SCHEDULE = 0;
+
+    /**
+     * Pending fire times are kept in a local {@link ScheduleQueue} and only the earliest one is
+     * armed with {@link AlarmManager}, so there is exactly one outstanding system alarm. Like
+     * every engine it is kept in the {@link ScheduleStore}, so it only has to be set once.
+     */
+    public static final int ENGINE_SINGLE_ALARM = 1;
+
     public static final String ACTION_SCHEDULE_ALARM_SERVICE_INTENT
             = "ACTION_SCHEDULE_ALARM_SERVICE_INTENT";
+    public static final String ACTION_DISPATCH_DUE_SCHEDULES
+            = "ACTION_DISPATCH_DUE_SCHEDULES";
+    public static final String EXTRA_TRIGGER_AT_MILLIS = "EXTRA_TRIGGER_AT_MILLIS";
+
+    private static final int SINGLE_ALARM_REQUEST_CODE = 0;
+    private static final long NOT_ARMED = -1L;
+    private static final int CONCURRENCY_LEVEL = 16;
 
-    private final SparseArray<SchedulerOption> optHistory = new SparseArray<>();
-    private WeakReference<Context> context;
+    // Add, cancel and fire of one schedule id run under its stripe. The queue and the armed
+    // window below are guarded by the queue itself.
+    private final StripedLock locks = new StripedLock(CONCURRENCY_LEVEL);
+    private final ScheduleQueue scheduleQueue = new ScheduleQueue();
+    private final ScheduleStore scheduleStore;
+    private volatile WeakReference<Context> context;
     private AlarmManager alarmManager;
+    private volatile @Engine int engine = ENGINE_ALARM_PER_SCHEDULE;
+    private long armedTriggerAtMillis = NOT_ARMED;
+    private long armedDeadlineMillis = NOT_ARMED;
 
-    private static AlarmService sInstance;
+    private static volatile AlarmService sInstance;
 
     private AlarmService(Context context) {
         this.context = new WeakReference<>(context);
         this.alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        this.scheduleStore = ScheduleStore.with(context);
+        this.engine = scheduleStore.getEngine();
+        if (engine == ENGINE_SINGLE_ALARM) {
+            // The system alarm outlives the process, but the queue behind it doesn't.
+            for (SchedulerOption option : scheduleStore.getAll()) {
+                schedule(option);
+            }
+        }
     }
 
     public static AlarmService with(@NonNull Context context) {
-        if (sInstance == null) {
-            sInstance = new AlarmService(context);
+        AlarmService instance = sInstance;
+        if (instance == null) {
+            synchronized (AlarmService.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new AlarmService(context);
+                    sInstance = instance;
+                }
+            }
+        }
+        if (instance.context == null || instance.context.get() == null) {
+            instance.context = new WeakReference<>(context);
+        }
+        return instance;
+    }
+
+    public @Engine int getEngine() {
+        return engine;
+    }
+
+    public AlarmService setEngine(@Engine int engine) {
+        assert context != null && context.get() != null;
+        if (this.engine == engine) {
+            return this;
         }
-        if (sInstance.context == null || sInstance.context.get() == null) {
-            sInstance.context = new WeakReference<>(context);
+
+        locks.lockAll();
+        try {
+            List<SchedulerOption> options = scheduleStore.getAll();
+            for (SchedulerOption option : options) {
+                cancelSystemAlarm(option.getScheduleId());
+            }
+            if (this.engine == ENGINE_SINGLE_ALARM) {
+                armNextAlarm();
+            }
+            this.engine = engine;
+            scheduleStore.setEngine(engine);
+            for (SchedulerOption option : options) {
+                schedule(option);
+            }
+        } finally {
+            locks.unlockAll();
+        }
+        if (engine == ENGINE_SINGLE_ALARM) {
+            armNextAlarm();
         }
-        return sInstance;
+
+        return this;
     }
 
     @Override
     public AlarmService add(@NonNull SchedulerOption option) {
         assert context != null && context.get() != null;
-        optHistory.append(option.getScheduleId(), option);
+
+        Lock lock = locks.get(option.getScheduleId());
+        lock.lock();
+        try {
+            scheduleStore.put(option);
+            schedule(option);
+        } finally {
+            lock.unlock();
+        }
+        if (engine == ENGINE_SINGLE_ALARM) {
+            armNextAlarm();
+        }
+
+        return this;
+    }
+
+    @Override
+    public AlarmService addAll(@NonNull Collection<SchedulerOption> options) {
+        assert context != null && context.get() != null;
+
+        locks.lockAll();
+        try {
+            List<SchedulerOption> changed = new ArrayList<>(options.size());
+            for (SchedulerOption option : options) {
+                SchedulerOption existing = scheduleStore.get(option.getScheduleId());
+                if (existing == null || !existing.hasSameSchedule(option)
+                        || !scheduleStore.isRegisteredSinceBoot()) {
+                    changed.add(option);
+                }
+            }
+            if (changed.isEmpty()) {
+                return this;
+            }
+
+            scheduleStore.putAll(changed);
+            for (SchedulerOption option : changed) {
+                schedule(option);
+            }
+        } finally {
+            locks.unlockAll();
+        }
+        if (engine == ENGINE_SINGLE_ALARM) {
+            armNextAlarm();
+        }
+
+        return this;
+    }
+
+    @Override
+    public void cancel(int scheduleId) {
+        assert context != null && context.get() != null;
+
+        Lock lock = locks.get(scheduleId);
+        lock.lock();
+        try {
+            cancelSystemAlarm(scheduleId);
+            scheduleStore.remove(scheduleId);
+        } finally {
+            lock.unlock();
+        }
+        if (engine == ENGINE_SINGLE_ALARM) {
+            armNextAlarm();
+        }
+    }
+
+    @Override
+    public void cancel(@NonNull int[] scheduleIds) {
+        assert context != null && context.get() != null;
+
+        locks.lockAll();
+        try {
+            for (int scheduleId : scheduleIds) {
+                if (scheduleStore.contains(scheduleId)) {
+                    cancelSystemAlarm(scheduleId);
+                }
+            }
+            scheduleStore.removeAll(scheduleIds);
+        } finally {
+            locks.unlockAll();
+        }
+        if (engine == ENGINE_SINGLE_ALARM) {
+            armNextAlarm();
+        }
+    }
+
+    @Override
+    public void cancelGroup(@NonNull String group) {
+        cancel(scheduleStore.getScheduleIds(group));
+    }
+
+    @Override
+    public void cancelAll() {
+        assert context != null && context.get() != null;
+
+        locks.lockAll();
+        try {
+            if (engine == ENGINE_SINGLE_ALARM) {
+                synchronized (scheduleQueue) {
+                    scheduleQueue.clear();
+                }
+            } else {
+                for (int scheduleId : scheduleStore.getScheduleIds()) {
+                    cancelSystemAlarm(scheduleId);
+                }
+            }
+            scheduleStore.clear();
+        } finally {
+            locks.unlockAll();
+        }
+        if (engine == ENGINE_SINGLE_ALARM) {
+            armNextAlarm();
+        }
+    }
+
+    /**
+     * Arms {@code options} again at the given fire times, e.g. after a reboot has dropped every
+     * alarm or the wall clock has moved under them. The single alarm engine offers them all to
+     * its queue and sets one alarm; otherwise every schedule gets its own alarm again.
+     */
+    public void rearm(@NonNull List<SchedulerOption> options, @NonNull long[] triggerAtMillis) {
+        assert context != null && context.get() != null;
+
+        locks.lockAll();
+        try {
+            for (int i = 0; i < triggerAtMillis.length; i++) {
+                SchedulerOption option = options.get(i);
+                if (scheduleStore.get(option.getScheduleId()) != option) {
+                    continue;
+                }
+                if (engine == ENGINE_SINGLE_ALARM) {
+                    synchronized (scheduleQueue) {
+                        scheduleQueue.offer(option.getScheduleId(), triggerAtMillis[i],
+                                triggerAtMillis[i] + option.getToleranceMillis());
+                    }
+                } else if (Recurrence.getInterval(option) > 0) {
+                    setRepeatingSchedule(option.getScheduleId(), triggerAtMillis[i],
+                            Recurrence.getInterval(option), constructIntent(option.getScheduleId()));
+                } else {
+                    setSchedule(triggerAtMillis[i], option.getToleranceMillis(), option.getScheduleId());
+                }
+            }
+            if (engine == ENGINE_SINGLE_ALARM) {
+                synchronized (scheduleQueue) {
+                    // The alarm armed before may be gone, so it is set again even if unchanged.
+                    armedTriggerAtMillis = NOT_ARMED;
+                    armedDeadlineMillis = NOT_ARMED;
+                }
+            }
+        } finally {
+            locks.unlockAll();
+        }
+        if (engine == ENGINE_SINGLE_ALARM) {
+            armNextAlarm();
+        }
+    }
+
+    /**
+     * @param held whether {@link ConditionMonitor} has held the fire, which keeps a one-off
+     *             schedule in the store until it is released.
+     */
+    void onScheduleFired(int scheduleId, boolean held) {
+        Lock lock = locks.get(scheduleId);
+        lock.lock();
+        try {
+            SchedulerOption option = scheduleStore.get(scheduleId);
+            if (option == null) {
+                return;
+            }
+
+            if (Recurrence.isRecurring(option)) {
+                long now = SchedulerCompat.getClock().currentTimeMillis();
+                scheduleStore.markFired(scheduleId, now);
+                if (option.getRecurringType() == OCCUR_CRON && engine != ENGINE_SINGLE_ALARM) {
+                    // Cron fires aren't evenly spaced, so each one is armed as a one-shot alarm.
+                    setSchedule(Recurrence.getNextTriggerAfter(option, option.getScheduleFor(), now),
+                            option.getToleranceMillis(), scheduleId);
+                }
+            } else if (!held) {
+                scheduleStore.remove(scheduleId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void dispatchDueSchedules(
+            @NonNull ScheduleDispatcher.OnDispatchCompleteListener listener,
+            final long receivedAtNanos
+    ) {
+        assert context != null && context.get() != null;
+
+        final long now = SchedulerCompat.getClock().currentTimeMillis();
+        final List<SchedulerOption> due = new ArrayList<>();
+        final List<Long> dueAt = new ArrayList<>();
+        synchronized (scheduleQueue) {
+            // The single system alarm has been consumed by this delivery.
+            armedTriggerAtMillis = NOT_ARMED;
+            armedDeadlineMillis = NOT_ARMED;
+            scheduleQueue.pollDue(now, new ScheduleQueue.OnDueListener() {
+                @Override
+                public void onDue(int scheduleId, long triggerAtMillis) {
+                    SchedulerOption option = scheduleStore.get(scheduleId);
+                    if (option == null) {
+                        return;
+                    }
+
+                    SchedulerMetrics.getInstance().recordFire(scheduleId, triggerAtMillis, now);
+                    due.add(option);
+                    dueAt.add(triggerAtMillis);
+                    if (Recurrence.isRecurring(option)) {
+                        long nextTriggerAtMillis = Recurrence.getNextTriggerAfter(option, triggerAtMillis, now);
+                        scheduleQueue.offer(scheduleId, nextTriggerAtMillis,
+                                nextTriggerAtMillis + option.getToleranceMillis());
+                    }
+                }
+            });
+            armNextAlarm();
+        }
+
+        // Receivers run outside the queue lock so they may add and cancel schedules themselves.
+        ScheduleDispatcher.CompletionBarrier barrier = new ScheduleDispatcher.CompletionBarrier(listener);
+        ConditionMonitor conditionMonitor = ConditionMonitor.with(context.get());
+        for (int i = 0; i < due.size(); i++) {
+            SchedulerOption option = due.get(i);
+            boolean held = conditionMonitor.holdIfUnmet(option, dueAt.get(i));
+            if (!held) {
+                barrier.expect();
+                sendScheduleBroadcast(option, dueAt.get(i), now, barrier, receivedAtNanos);
+            }
+            onDueScheduleFired(option, now, held);
+        }
+        barrier.arrive();
+    }
+
+    /**
+     * Leaves the store alone when the schedule has been replaced or cancelled since it was polled,
+     * and keeps a held one-off schedule in it until {@link ConditionMonitor} releases it.
+     */
+    private void onDueScheduleFired(@NonNull SchedulerOption option, long firedAtMillis, boolean held) {
+        int scheduleId = option.getScheduleId();
+        Lock lock = locks.get(scheduleId);
+        lock.lock();
+        try {
+            if (scheduleStore.get(scheduleId) != option) {
+                return;
+            }
+            if (Recurrence.isRecurring(option)) {
+                scheduleStore.markFired(scheduleId, firedAtMillis);
+            } else if (!held) {
+                scheduleStore.remove(scheduleId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void schedule(@NonNull SchedulerOption option) {
+        if (engine == ENGINE_SINGLE_ALARM) {
+            long triggerAtMillis = Recurrence.getFirstTriggerAt(option);
+            long lastFiredAtMillis = scheduleStore.getLastFiredAt(option.getScheduleId());
+            if (Recurrence.isRecurring(option) && lastFiredAtMillis >= triggerAtMillis) {
+                triggerAtMillis = Recurrence.getNextTriggerAfter(
+                        option, triggerAtMillis, lastFiredAtMillis);
+            }
+            synchronized (scheduleQueue) {
+                scheduleQueue.offer(option.getScheduleId(), triggerAtMillis,
+                        triggerAtMillis + option.getToleranceMillis());
+            }
+            return;
+        }
 
         switch (option.getRecurringType()) {
             case OCCUR_EVERY_MIDNIGHT:
-                setRepeatingSchedule(option.getScheduleId(), 0, 0);
-                break;
             case OCCUR_EVERY_DAYLIGHT:
-                setRepeatingSchedule(option.getScheduleId(), 12, 0);
+            case OCCUR_EVERY_SPECIFIC_TIME:
+                setRepeatingSchedule(option.getScheduleId(), Recurrence.getFirstTriggerAt(option));
                 break;
             case OCCUR_ONCE:
-                setSchedule(option.getScheduleFor(), option.getScheduleId());
+                setSchedule(Recurrence.getFirstTriggerAt(option), option.getToleranceMillis(),
+                        option.getScheduleId());
                 break;
             case OCCUR_ONCE_IMMEDIATELY:
                 setUrgentSchedule(option.getScheduleId());
                 break;
-            case OCCUR_EVERY_SPECIFIC_TIME:
-                setRepeatingSchedule(option.getScheduleId(), option.getScheduleFor());
+            case OCCUR_CRON:
+                long triggerAtMillis = option.getScheduleFor();
+                long afterMillis = Math.max(SchedulerCompat.getClock().currentTimeMillis(),
+                        scheduleStore.getLastFiredAt(option.getScheduleId()));
+                if (triggerAtMillis <= afterMillis) {
+                    triggerAtMillis = Recurrence.getNextTriggerAfter(option, triggerAtMillis, afterMillis);
+                }
+                setSchedule(triggerAtMillis, option.getToleranceMillis(), option.getScheduleId());
                 break;
         }
 
-        return this;
     }
 
-    @Override
-    public void cancel(int scheduleId) {
-        assert context != null && context.get() != null;
-        Intent alarmIntent = constructIntent(scheduleId);
+    private void cancelSystemAlarm(int scheduleId) {
+        if (engine == ENGINE_SINGLE_ALARM) {
+            synchronized (scheduleQueue) {
+                scheduleQueue.remove(scheduleId);
+            }
+            return;
+        }
+
+        // Extras don't take part in matching, and without an existing PendingIntent there's no
+        // alarm to cancel.
         PendingIntent pendingIntent = PendingIntent.getBroadcast(
                 context.get(),
                 scheduleId,
-                alarmIntent,
-                PendingIntent.FLAG_UPDATE_CURRENT);
+                new Intent(context.get(), AlarmReceiver.class),
+                PendingIntent.FLAG_NO_CREATE);
+        if (pendingIntent == null) {
+            return;
+        }
 
         alarmManager.cancel(pendingIntent);
-        optHistory.remove(scheduleId);
+        pendingIntent.cancel();
+        SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_CANCEL);
     }
 
-    @Override
-    public void cancelAll() {
-        assert context != null && context.get() != null;
+    /**
+     * Arms the single alarm for the next group of schedules: every schedule whose window has
+     * opened by the earliest pending deadline fires in the same delivery.
+     */
+    private void armNextAlarm() {
+        synchronized (scheduleQueue) {
+            long deadlineMillis = scheduleQueue.peekDeadline();
+            long windowStartMillis = scheduleQueue.getLatestTriggerAtOrBefore(deadlineMillis);
+            if (windowStartMillis == armedTriggerAtMillis && deadlineMillis == armedDeadlineMillis) {
+                return;
+            }
+
+            Intent dispatchIntent = constructDispatchIntent();
+            if (deadlineMillis == ScheduleQueue.EMPTY) {
+                alarmManager.cancel(PendingIntent.getBroadcast(
+                        context.get(),
+                        SINGLE_ALARM_REQUEST_CODE,
+                        dispatchIntent,
+                        PendingIntent.FLAG_UPDATE_CURRENT));
+                SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_CANCEL);
+                armedTriggerAtMillis = NOT_ARMED;
+                armedDeadlineMillis = NOT_ARMED;
+                return;
+            }
 
-        for (int i = 0; i < optHistory.size(); i++) {
-            int scheduleId = optHistory.keyAt(i);
-            cancel(scheduleId);
+            setSchedule(windowStartMillis, deadlineMillis - windowStartMillis,
+                    SINGLE_ALARM_REQUEST_CODE, dispatchIntent);
+            armedTriggerAtMillis = windowStartMillis;
+            armedDeadlineMillis = deadlineMillis;
         }
     }
 
+    private void sendScheduleBroadcast(
+            @NonNull SchedulerOption option,
+            long triggerAtMillis,
+            long now,
+            @NonNull ScheduleDispatcher.OnDispatchCompleteListener listener,
+            long receivedAtNanos
+    ) {
+        ScheduleDispatcher.getInstance().dispatchDue(context.get(),
+                option,
+                new SchedulerOption.Builder().toBundle(option),
+                triggerAtMillis,
+                now,
+                new CancellationSignal(),
+                listener,
+                receivedAtNanos);
+    }
+
     private void setUrgentSchedule(int scheduleId) {
-        final long fewMinutesFromNow = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        final long fewMinutesFromNow = SchedulerCompat.getClock().currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
         Intent exactIntent = constructIntent(scheduleId);
         setSchedule(fewMinutesFromNow, scheduleId, exactIntent);
     }
 
-    private void setRepeatingSchedule(int scheduleId, int hourOfDay, int minutes) {
-        final long oneDayInMillis = TimeUnit.DAYS.toMillis(1);
-        Intent alarmIntent = constructIntent(scheduleId);
-        setRepeatingSchedule(scheduleId, SchedulerCompat.scheduleFor(hourOfDay, minutes),
-                oneDayInMillis, alarmIntent);
-    }
-
     private void setRepeatingSchedule(int scheduleId, long triggeredAtMillis) {
         final long oneDayInMillis = TimeUnit.DAYS.toMillis(1);
         Intent alarmIntent = constructIntent(scheduleId);
@@ -122,6 +536,7 @@ public class AlarmService implements IScheduler<AlarmService> {
             long intervalInMillis,
             @NonNull Intent repeatingHandlerIntent
     ) {
+        repeatingHandlerIntent.putExtra(EXTRA_TRIGGER_AT_MILLIS, triggeredAtMillis);
         PendingIntent pendingIntent = PendingIntent.getBroadcast(
                 context.get(),
                 scheduleId,
@@ -134,14 +549,46 @@ public class AlarmService implements IScheduler<AlarmService> {
                 intervalInMillis,
                 pendingIntent
         );
+        SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
     }
 
-    private void setSchedule(long triggeredAtMillis, int scheduleId) {
-        Intent exactIntent = constructIntent(scheduleId);
-        setSchedule(triggeredAtMillis, scheduleId, exactIntent);
+    private void setSchedule(long triggeredAtMillis, long toleranceMillis, int scheduleId) {
+        Intent intent = constructIntent(scheduleId);
+        setSchedule(triggeredAtMillis, toleranceMillis, scheduleId, intent);
+    }
+
+    /**
+     * Arms an exact alarm when there is no tolerance, and a window alarm the system may batch
+     * with other wakeups otherwise.
+     */
+    private void setSchedule(
+            long triggeredAtMillis,
+            long toleranceMillis,
+            int alarmId,
+            @NonNull Intent handlerIntent
+    ) {
+        if (toleranceMillis <= 0) {
+            setSchedule(triggeredAtMillis, alarmId, handlerIntent);
+            return;
+        }
+
+        handlerIntent.putExtra(EXTRA_TRIGGER_AT_MILLIS, triggeredAtMillis);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(
+                context.get(),
+                alarmId,
+                handlerIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        alarmManager.setWindow(
+                AlarmManager.RTC_WAKEUP,
+                triggeredAtMillis,
+                toleranceMillis,
+                pendingIntent
+        );
+        SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
     }
 
     private void setSchedule(long triggeredAtMillis, int alarmId, @NonNull Intent exactHandlerIntent) {
+        exactHandlerIntent.putExtra(EXTRA_TRIGGER_AT_MILLIS, triggeredAtMillis);
         PendingIntent pendingIntent = PendingIntent.getBroadcast(
                 context.get(),
                 alarmId,
@@ -161,12 +608,19 @@ public class AlarmService implements IScheduler<AlarmService> {
                     pendingIntent
             );
         }
+        SchedulerMetrics.getInstance().recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+    }
+
+    private Intent constructDispatchIntent() {
+        Intent intent = new Intent(context.get(), AlarmReceiver.class);
+        intent.setAction(ACTION_DISPATCH_DUE_SCHEDULES);
+        return intent;
     }
 
     private Intent constructIntent(int scheduleId) {
         Intent intent = new Intent(context.get(), AlarmReceiver.class);
-        SchedulerOption option = optHistory.get(scheduleId);
-        intent.putExtras(new SchedulerOption.Builder().toBundle(option));
+        SchedulerOption option = scheduleStore.get(scheduleId);
+        intent.putExtra(SchedulerOption.ENCODED_OPTION_KEY, SchedulerOptionCodec.encode(option));
         return intent;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,306 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.BatteryManager;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
+
+import com.tech21.lunart.scheduler.compat.v21.SchedulerService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConditionMonitorTest {
+    private static final long START = 1541376000000L; // 2018-11-05T00:00:00Z
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final String ACTION = "ACTION_CONDITION_MONITOR_TEST";
+
+    private final List<ScheduleEvent> handled = new ArrayList<>();
+    private final ScheduleDispatcher.OnDispatchCompleteListener onComplete =
+            new ScheduleDispatcher.OnDispatchCompleteListener() {
+                @Override
+                public void onDispatchComplete() {
+                    completions++;
+                }
+            };
+    private int completions;
+    private Context context;
+    private ScheduleStore store;
+    private long scheduleFor;
+    private TimeZone defaultZone;
+
+    @Before
+    public void setUp() {
+        defaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        LocalTimeCalculator.getDefault().invalidate();
+        resetSingletons();
+        context = RuntimeEnvironment.application;
+        store = ScheduleStore.with(context);
+        scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        setCharging(false);
+
+        ScheduleDispatcher dispatcher = ScheduleDispatcher.getInstance();
+        dispatcher.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        dispatcher.registerHandler(ACTION, new ScheduleHandler() {
+            @Override
+            public void onSchedule(
+                    @NonNull Context context,
+                    @NonNull ScheduleEvent event,
+                    @NonNull CancellationSignal cancellationSignal
+            ) {
+                handled.add(event);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        ScheduleDispatcher dispatcher = ScheduleDispatcher.getInstance();
+        dispatcher.unregisterHandler(ACTION);
+        ReflectionHelpers.setField(dispatcher, "executor", null);
+        resetSingletons();
+        SchedulerCompat.setClock(Clock.SYSTEM);
+        TimeZone.setDefault(defaultZone);
+        LocalTimeCalculator.getDefault().invalidate();
+    }
+
+    @Test
+    public void heldFireIsReleasedOnceItsConstraintsAreMet() {
+        SchedulerOption option = whileCharging(1, scheduleFor);
+        store.put(option);
+
+        assertTrue(ConditionMonitor.with(context).holdIfUnmet(option, scheduleFor));
+        assertEquals(1, ConditionMonitor.with(context).getPendingCount());
+        // From O on the job scheduler watches the constraints, not the manifest receiver.
+        JobInfo releaseJob = getReleaseJob(SchedulerCompat.CONSTRAINT_CHARGING);
+        assertTrue(releaseJob.isRequireCharging());
+        assertEquals(PackageManager.COMPONENT_ENABLED_STATE_DEFAULT, getReceiverState());
+
+        ConditionMonitor.with(context).release(onComplete);
+        assertEquals(1, completions);
+        assertTrue(handled.isEmpty());
+
+        // Held fires outlive the process, and their release job is left as it is.
+        ReflectionHelpers.setStaticField(ConditionMonitor.class, "sInstance", null);
+        assertEquals(1, ConditionMonitor.with(context).getPendingCount());
+        assertSame(releaseJob, getReleaseJob(SchedulerCompat.CONSTRAINT_CHARGING));
+
+        setCharging(true);
+        ConditionMonitor.with(context).release(onComplete);
+
+        assertEquals(2, completions);
+        assertEquals(1, handled.size());
+        assertEquals(1, handled.get(0).getScheduleId());
+        assertEquals(scheduleFor, handled.get(0).getTriggerAt());
+        assertEquals(0, ConditionMonitor.with(context).getPendingCount());
+        assertNull(store.get(1));
+        assertNull(getReleaseJob(SchedulerCompat.CONSTRAINT_CHARGING));
+    }
+
+    @Test
+    public void releaseJobReleasesTheFiresItsConstraintsCover() {
+        SchedulerOption charging = whileCharging(1, scheduleFor);
+        SchedulerOption unmetered = new SchedulerOption.Builder()
+                .scheduleId(2)
+                .scheduleFor(scheduleFor)
+                .recurringType(SchedulerCompat.OCCUR_ONCE)
+                .constraints(SchedulerCompat.CONSTRAINT_CHARGING | SchedulerCompat.CONSTRAINT_UNMETERED_NETWORK)
+                .scheduleAction(ACTION)
+                .build();
+        store.put(charging);
+        store.put(unmetered);
+        ConditionMonitor monitor = ConditionMonitor.with(context);
+        assertTrue(monitor.holdIfUnmet(charging, scheduleFor));
+        assertTrue(monitor.holdIfUnmet(unmetered, scheduleFor));
+        JobInfo chargingJob = getReleaseJob(SchedulerCompat.CONSTRAINT_CHARGING);
+        JobInfo both = getReleaseJob(unmetered.getConstraints());
+        assertTrue(both.isRequireCharging());
+        assertEquals(JobInfo.NETWORK_TYPE_UNMETERED, both.getNetworkType());
+
+        // The job scheduler has found the device charging, whatever the battery broadcast says.
+        monitor.release(SchedulerCompat.CONSTRAINT_CHARGING, onComplete);
+
+        assertEquals(1, completions);
+        assertEquals(1, handled.size());
+        assertEquals(1, handled.get(0).getScheduleId());
+        assertEquals(1, monitor.getPendingCount());
+        assertSame(both, getReleaseJob(unmetered.getConstraints()));
+
+        // The job that has run is armed again for the next fire that needs it.
+        SchedulerOption next = whileCharging(3, scheduleFor);
+        store.put(next);
+        assertTrue(monitor.holdIfUnmet(next, scheduleFor));
+        assertNotSame(chargingJob, getReleaseJob(SchedulerCompat.CONSTRAINT_CHARGING));
+    }
+
+    @Test
+    public void metConstraintsAreNotHeld() {
+        setCharging(true);
+        SchedulerOption option = whileCharging(1, scheduleFor);
+        store.put(option);
+
+        assertFalse(ConditionMonitor.with(context).holdIfUnmet(option, scheduleFor));
+        assertEquals(0, ConditionMonitor.with(context).getPendingCount());
+    }
+
+    @Test
+    public void heldFireOfACancelledOrReplacedScheduleIsDropped() {
+        SchedulerOption cancelled = whileCharging(1, scheduleFor);
+        SchedulerOption replaced = whileCharging(2, scheduleFor);
+        store.put(cancelled);
+        store.put(replaced);
+        ConditionMonitor monitor = ConditionMonitor.with(context);
+        assertTrue(monitor.holdIfUnmet(cancelled, scheduleFor));
+        assertTrue(monitor.holdIfUnmet(replaced, scheduleFor));
+
+        store.remove(1);
+        store.put(whileCharging(2, scheduleFor + TimeUnit.HOURS.toMillis(1)));
+        setCharging(true);
+        monitor.release(onComplete);
+
+        assertEquals(1, completions);
+        assertTrue(handled.isEmpty());
+        assertEquals(0, monitor.getPendingCount());
+        assertNull(getReleaseJob(SchedulerCompat.CONSTRAINT_CHARGING));
+    }
+
+    @Test
+    public void heldFiresAreReadBackWhateverAnInterruptedWriteLeft() throws Exception {
+        SchedulerOption option = whileCharging(1, scheduleFor);
+        store.put(option);
+        assertTrue(ConditionMonitor.with(context).holdIfUnmet(option, scheduleFor));
+
+        // A write cut short by a crash only ever leaves the file aside.
+        File temp = new File(context.getFilesDir(), "scheduler-compat-held.tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(new byte[]{0, 0, 0, 9, 1});
+        } finally {
+            out.close();
+        }
+
+        ReflectionHelpers.setStaticField(ConditionMonitor.class, "sInstance", null);
+        assertEquals(1, ConditionMonitor.with(context).getPendingCount());
+    }
+
+    @Test
+    public void releasedFireIsDeliveredOnceForAMissedStretch() {
+        releaseAfterMissedStretch(SchedulerCompat.MISFIRE_FIRE_ONCE);
+
+        assertEquals(1, handled.size());
+        assertEquals(START + 3 * DAY + 11 * HOUR, handled.get(0).getTriggerAt());
+        assertEquals(3, handled.get(0).getMissedCount());
+    }
+
+    @Test
+    public void releasedFireIsDeliveredForEveryOccurrenceOfAMissedStretch() {
+        releaseAfterMissedStretch(SchedulerCompat.MISFIRE_FIRE_ALL);
+
+        assertEquals(4, handled.size());
+        for (int i = 0; i < handled.size(); i++) {
+            assertEquals(START + i * DAY + 11 * HOUR, handled.get(i).getTriggerAt());
+            assertEquals(0, handled.get(i).getMissedCount());
+        }
+    }
+
+    @Test
+    public void releasedFireSkipsAMissedStretch() {
+        releaseAfterMissedStretch(SchedulerCompat.MISFIRE_SKIP_TO_NEXT);
+
+        assertTrue(handled.isEmpty());
+        assertEquals(0, ConditionMonitor.with(context).getPendingCount());
+    }
+
+    /**
+     * Releases the fire of a daily schedule held while the device stayed off the charger for
+     * three days.
+     */
+    private void releaseAfterMissedStretch(@SchedulerCompat.MisfirePolicy int misfirePolicy) {
+        VirtualClock clock = new VirtualClock(START + 11 * HOUR);
+        SchedulerCompat.setClock(clock);
+        SchedulerOption option = new SchedulerOption.Builder()
+                .scheduleId(1)
+                .scheduleFor(START + 11 * HOUR)
+                .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                .constraints(SchedulerCompat.CONSTRAINT_CHARGING)
+                .misfirePolicy(misfirePolicy)
+                .scheduleAction(ACTION)
+                .build();
+        store.put(option);
+        assertTrue(ConditionMonitor.with(context).holdIfUnmet(option, START + 11 * HOUR));
+
+        clock.setCurrentTimeMillis(START + 3 * DAY + 11 * HOUR + 30 * MINUTE);
+        setCharging(true);
+        ConditionMonitor.with(context).release(onComplete);
+
+        assertEquals(1, completions);
+    }
+
+    private JobInfo getReleaseJob(int constraints) {
+        return context.getSystemService(JobScheduler.class)
+                .getPendingJob(SchedulerService.RELEASE_JOB_ID_BASE + constraints);
+    }
+
+    private int getReceiverState() {
+        return context.getPackageManager().getComponentEnabledSetting(
+                new ComponentName(context, ConditionReceiver.class));
+    }
+
+    private void setCharging(boolean charging) {
+        context.sendStickyBroadcast(new Intent(Intent.ACTION_BATTERY_CHANGED)
+                .putExtra(BatteryManager.EXTRA_LEVEL, 50)
+                .putExtra(BatteryManager.EXTRA_SCALE, 100)
+                .putExtra(BatteryManager.EXTRA_PLUGGED, charging ? BatteryManager.BATTERY_PLUGGED_AC : 0));
+    }
+
+    private static SchedulerOption whileCharging(int scheduleId, long scheduleFor) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleFor(scheduleFor)
+                .recurringType(SchedulerCompat.OCCUR_ONCE)
+                .constraints(SchedulerCompat.CONSTRAINT_CHARGING)
+                .scheduleAction(ACTION)
+                .build();
+    }
+
+    private static void resetSingletons() {
+        ReflectionHelpers.setStaticField(ConditionMonitor.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(SchedulerService.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(ScheduleStore.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(PayloadStore.class, "sInstance", null);
+    }
+}
@@ -0,0 +1,134 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class CronExpressionTest {
+    private static final long START = 1514764800000L; // 2018-01-01T00:00:00Z
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final String[] DAYS = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+    private static final String[] MONTHS = {
+        null, "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"
+    };
+    private static final String[] EXPRESSIONS = {
+        "* * * * *",
+        "*/15 8-18 * * MON-FRI",
+        "0 0 * * *",
+        "30 2 * * *",
+        "0 12 1,15 * *",
+        "0 9 13 * 5",
+        "5-10/2 */6 * JAN,jul *",
+        "0 0 29 2 *",
+        "0 0 * * 7"
+    };
+
+    @Test
+    public void nextAfterMatchesMinuteByMinuteSearch() {
+        TimeZone zone = TimeZone.getTimeZone("America/New_York");
+        LocalTimeCalculator calculator = new LocalTimeCalculator(zone);
+        Random random = new Random(42);
+        for (String expression : EXPRESSIONS) {
+            CronExpression cron = CronExpression.parse(expression);
+            for (int i = 0; i < 10; i++) {
+                long after = START + (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(1500));
+                assertEquals(expression + " after " + after,
+                        bruteForceNextAfter(cron, zone, after), cron.nextAfter(after, calculator));
+            }
+        }
+    }
+
+    @Test
+    public void everyQuarterHourOnWeekdayWorkingHours() {
+        TimeZone zone = TimeZone.getTimeZone("UTC");
+        LocalTimeCalculator calculator = new LocalTimeCalculator(zone);
+        CronExpression cron = CronExpression.parse("*/15 8-18 * * MON-FRI");
+        long friday = 1515110400000L + 18 * TimeUnit.HOURS.toMillis(1) + 45 * MINUTE; // 2018-01-05 18:45
+        long monday = 1515369600000L + 8 * TimeUnit.HOURS.toMillis(1); // 2018-01-08 08:00
+
+        assertEquals(monday, cron.nextAfter(friday, calculator));
+        assertEquals(monday + 15 * MINUTE, cron.nextAfter(monday, calculator));
+    }
+
+    @Test
+    public void neverMatchingExpressionHasNoNextFire() {
+        CronExpression cron = CronExpression.parse("0 0 30 2 *");
+
+        assertEquals(Long.MAX_VALUE, cron.nextAfter(START));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOutOfRangeValues() {
+        CronExpression.parse("60 * * * *");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingFields() {
+        CronExpression.parse("* * * *");
+    }
+
+    private static long bruteForceNextAfter(CronExpression cron, TimeZone zone, long after) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.setTimeInMillis(after);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        String[] fields = cron.getExpression().split(" ");
+        for (int i = 0; i < 60 * 24 * 366 * 8; i++) {
+            calendar.add(Calendar.MINUTE, 1);
+            if (calendar.getTimeInMillis() > after && matches(fields, calendar)) {
+                return calendar.getTimeInMillis();
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static boolean matches(String[] fields, Calendar calendar) {
+        int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK) - 1;
+        boolean dayOfMonth = field(fields[2], 1, 31, null).get(calendar.get(Calendar.DAY_OF_MONTH));
+        boolean weekday = field(fields[4], 0, 7, DAYS).get(dayOfWeek)
+                || (dayOfWeek == 0 && field(fields[4], 0, 7, DAYS).get(7));
+        boolean day = fields[2].startsWith("*") || fields[4].startsWith("*")
+                ? dayOfMonth && weekday
+                : dayOfMonth || weekday;
+        return field(fields[0], 0, 59, null).get(calendar.get(Calendar.MINUTE))
+                && field(fields[1], 0, 23, null).get(calendar.get(Calendar.HOUR_OF_DAY))
+                && field(fields[3], 1, 12, MONTHS).get(calendar.get(Calendar.MONTH) + 1)
+                && day;
+    }
+
+    private static BitSet field(String field, int min, int max, String[] names) {
+        BitSet bits = new BitSet();
+        for (String part : field.split(",")) {
+            String[] stepped = part.split("/");
+            int step = stepped.length > 1 ? Integer.parseInt(stepped[1]) : 1;
+            String[] range = stepped[0].split("-");
+            int from = range[0].equals("*") ? min : value(range[0], names);
+            int to = range[0].equals("*") || (range.length == 1 && stepped.length > 1) ? max
+                    : value(range[range.length - 1], names);
+            for (int v = from; v <= to; v += step) {
+                bits.set(v);
+            }
+        }
+        return bits;
+    }
+
+    private static int value(String value, String[] names) {
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (value.equalsIgnoreCase(names[i])) {
+                    return i;
+                }
+            }
+        }
+        return Integer.parseInt(value);
+    }
+}
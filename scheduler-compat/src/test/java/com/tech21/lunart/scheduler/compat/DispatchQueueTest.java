@@ -0,0 +1,102 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class DispatchQueueTest {
+
+    @Test
+    public void runsUpToTheLimitAndQueuesUpToTheCapacity() {
+        ManualExecutor executor = new ManualExecutor();
+        DispatchQueue queue = new DispatchQueue(2, 3);
+        List<Integer> ran = new ArrayList<>();
+        List<Integer> rejected = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            queue.submit(executor, task(i, ran, rejected));
+        }
+
+        assertEquals(2, executor.size());
+        assertEquals(2, queue.getRunning());
+        assertEquals(3, queue.getDepth());
+        assertEquals(1, rejected.size());
+        assertEquals(5, (int) rejected.get(0));
+
+        // Each finished task hands its slot to the oldest queued one.
+        while (executor.runNext()) {
+            assertTrue(queue.getRunning() <= 2);
+        }
+
+        assertEquals(0, queue.getRunning());
+        assertEquals(0, queue.getDepth());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, (int) ran.get(i));
+        }
+    }
+
+    @Test
+    public void raisingTheLimitStartsQueuedTasks() {
+        ManualExecutor executor = new ManualExecutor();
+        DispatchQueue queue = new DispatchQueue(1, 10);
+        List<Integer> ran = new ArrayList<>();
+        List<Integer> rejected = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            queue.submit(executor, task(i, ran, rejected));
+        }
+        assertEquals(1, executor.size());
+
+        queue.setLimits(3, 10);
+
+        assertEquals(3, executor.size());
+        assertEquals(1, queue.getDepth());
+    }
+
+    private static DispatchQueue.Task task(
+            final int index,
+            final List<Integer> ran,
+            final List<Integer> rejected
+    ) {
+        return new DispatchQueue.Task() {
+            @Override
+            public void run() {
+                ran.add(index);
+            }
+
+            @Override
+            public void onRejected() {
+                rejected.add(index);
+            }
+        };
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> runnables = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        int size() {
+            return runnables.size();
+        }
+
+        boolean runNext() {
+            Runnable runnable = runnables.poll();
+            if (runnable == null) {
+                return false;
+            }
+            runnable.run();
+            return true;
+        }
+    }
+}
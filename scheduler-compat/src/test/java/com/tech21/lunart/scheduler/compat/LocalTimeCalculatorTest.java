@@ -0,0 +1,107 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class LocalTimeCalculatorTest {
+    private static final long START = 1514764800000L; // 2018-01-01T00:00:00Z
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final String[] ZONES = {
+        "UTC", "America/New_York", "Europe/London", "Australia/Lord_Howe", "Asia/Kolkata"
+    };
+
+    @Test
+    public void atTimeOfDayMatchesCalendar() {
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            LocalTimeCalculator calculator = new LocalTimeCalculator(zone);
+            for (long now = START; now < START + TimeUnit.DAYS.toMillis(730); now += 7 * HOUR + 13 * MINUTE) {
+                assertEquals(id + " @" + now, calendarAt(zone, now, 9, 30),
+                        calculator.atTimeOfDay(now, 9, 30));
+            }
+        }
+    }
+
+    @Test
+    public void nextDailyTriggerKeepsWallTimeAcrossTransitions() {
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            LocalTimeCalculator calculator = new LocalTimeCalculator(zone);
+            long triggerAtMillis = calendarAt(zone, START, 9, 30);
+            for (int day = 1; day < 730; day++) {
+                long expected = calendarAddDays(zone, calendarAt(zone, START, 9, 30), day);
+                triggerAtMillis = calculator.nextDailyTriggerAfter(triggerAtMillis, triggerAtMillis);
+                assertEquals(id + " day " + day, expected, triggerAtMillis);
+            }
+        }
+    }
+
+    @Test
+    public void nextDailyTriggerSkipsMissedDays() {
+        TimeZone zone = TimeZone.getTimeZone("America/New_York");
+        LocalTimeCalculator calculator = new LocalTimeCalculator(zone);
+        long triggerAtMillis = calendarAt(zone, START, 9, 30);
+        long now = triggerAtMillis + TimeUnit.DAYS.toMillis(100) + HOUR;
+
+        assertEquals(calendarAddDays(zone, triggerAtMillis, 101),
+                calculator.nextDailyTriggerAfter(triggerAtMillis, now));
+    }
+
+    @Test
+    public void wallTimeInGapMovesForward() {
+        TimeZone zone = TimeZone.getTimeZone("America/New_York");
+        LocalTimeCalculator calculator = new LocalTimeCalculator(zone);
+        long springForward = 1520751600000L; // 2018-03-11T07:00:00Z, 02:00 EST becomes 03:00 EDT
+
+        // 02:30 doesn't exist that day; it resolves to 03:30 EDT.
+        assertEquals(springForward + 30 * MINUTE, calculator.atTimeOfDay(springForward, 2, 30));
+        assertEquals(springForward + 30 * MINUTE,
+                calculator.nextOccurrence(springForward - 2 * HOUR, 2, 30));
+    }
+
+    @Test
+    public void wallTimeInOverlapResolvesToEarlierInstant() {
+        TimeZone zone = TimeZone.getTimeZone("America/New_York");
+        LocalTimeCalculator calculator = new LocalTimeCalculator(zone);
+        long fallBack = 1541311200000L; // 2018-11-04T06:00:00Z, 02:00 EDT becomes 01:00 EST
+
+        // 01:30 happens twice that day; the EDT one comes first.
+        assertEquals(fallBack - 30 * MINUTE, calculator.atTimeOfDay(fallBack, 1, 30));
+    }
+
+    @Test
+    public void nextOccurrenceIsStrictlyAfter() {
+        TimeZone zone = TimeZone.getTimeZone("Asia/Kolkata");
+        LocalTimeCalculator calculator = new LocalTimeCalculator(zone);
+        long today = calendarAt(zone, START, 12, 0);
+
+        assertEquals(calendarAddDays(zone, today, 1), calculator.nextOccurrence(today, 12, 0));
+        assertEquals(today, calculator.nextOccurrence(today - 1, 12, 0));
+    }
+
+    private static long calendarAt(TimeZone zone, long millis, int hourOfDay, int minutes) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.setTimeInMillis(millis);
+        calendar.set(Calendar.HOUR_OF_DAY, hourOfDay);
+        calendar.set(Calendar.MINUTE, minutes);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long calendarAddDays(TimeZone zone, long millis, int days) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.setTimeInMillis(millis);
+        calendar.add(Calendar.DATE, days);
+        return calendar.getTimeInMillis();
+    }
+}
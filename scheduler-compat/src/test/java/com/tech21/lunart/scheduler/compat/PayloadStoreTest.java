@@ -0,0 +1,87 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class PayloadStoreTest {
+    private static final String ACTION = "ACTION_PAYLOAD_STORE_TEST";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writtenPayloadIsMappedByHandle() throws Exception {
+        PayloadStore payloads = new PayloadStore(folder.newFolder());
+        SchedulerOption option = option(1, new byte[]{1, 2, 3});
+        payloads.write(option);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, read(payloads.map(1, option.getPayloadHandle())));
+        assertNull(payloads.map(2, option.getPayloadHandle()));
+        assertNull(payloads.map(1, 0));
+        assertEquals(option.getPayloadHandle(), SchedulerOptionCodec.decode(
+                SchedulerOptionCodec.encode(option)).getPayloadHandle());
+    }
+
+    @Test
+    public void replacingOrDeletingDropsTheOldPayload() throws Exception {
+        PayloadStore payloads = new PayloadStore(folder.newFolder());
+        SchedulerOption first = option(1, new byte[]{1});
+        SchedulerOption second = option(1, new byte[]{2});
+        payloads.write(first);
+        payloads.write(second);
+
+        assertNull(payloads.map(1, first.getPayloadHandle()));
+        assertArrayEquals(new byte[]{2}, read(payloads.map(1, second.getPayloadHandle())));
+
+        payloads.delete(1, second.getPayloadHandle());
+
+        assertNull(payloads.map(1, second.getPayloadHandle()));
+    }
+
+    @Test
+    public void sweepKeepsOnlyStoredPayloads() throws Exception {
+        File dir = folder.newFolder();
+        PayloadStore payloads = new PayloadStore(dir);
+        ScheduleStore store = new ScheduleStore(folder.newFolder());
+        SchedulerOption kept = option(1, new byte[]{1});
+        SchedulerOption fired = option(2, new byte[]{2});
+        payloads.write(kept);
+        payloads.write(fired);
+        store.put(kept);
+        new File(dir, "3-abc.tmp").createNewFile();
+
+        payloads.sweep(store);
+
+        assertArrayEquals(new byte[]{1}, read(payloads.map(1, kept.getPayloadHandle())));
+        assertNull(payloads.map(2, fired.getPayloadHandle()));
+        assertEquals(1, dir.list().length);
+    }
+
+    private static byte[] read(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static SchedulerOption option(int scheduleId, byte[] payload) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleFor(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1))
+                .recurringType(SchedulerCompat.OCCUR_ONCE)
+                .scheduleAction(ACTION)
+                .payload(payload)
+                .build();
+    }
+}
@@ -0,0 +1,76 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class RearmReceiverTest {
+    private static final long START = 1541376000000L; // 2018-11-05T00:00:00Z
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final String ACTION = "ACTION_REARM_RECEIVER_TEST";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TimeZone defaultZone;
+
+    @Before
+    public void setUp() {
+        defaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        LocalTimeCalculator.getDefault().invalidate();
+        SchedulerCompat.setClock(new VirtualClock(START + 10 * HOUR));
+    }
+
+    @After
+    public void tearDown() {
+        SchedulerCompat.setClock(Clock.SYSTEM);
+        TimeZone.setDefault(defaultZone);
+        LocalTimeCalculator.getDefault().invalidate();
+    }
+
+    @Test
+    public void nextTriggersFollowTimeZoneChange() throws Exception {
+        ScheduleStore store = new ScheduleStore(folder.newFolder());
+        List<SchedulerOption> options = new ArrayList<>();
+        // Enough options for several chunks.
+        for (int scheduleId = 0; scheduleId < 2500; scheduleId++) {
+            options.add(new SchedulerOption.Builder()
+                    .scheduleId(scheduleId)
+                    .scheduleFor(START + 11 * HOUR)
+                    .recurringType(scheduleId % 2 == 0
+                            ? SchedulerCompat.OCCUR_EVERY_MIDNIGHT : SchedulerCompat.OCCUR_ONCE)
+                    .scheduleAction(ACTION)
+                    .build());
+        }
+        store.putAll(options);
+
+        long[] triggerAtMillis = RearmReceiver.getNextTriggers(store, options, START + 10 * HOUR);
+        assertEquals(START + DAY, triggerAtMillis[0]);
+        assertEquals(START + 11 * HOUR, triggerAtMillis[1]);
+
+        // Midnight in Tokyo is 15:00 UTC.
+        TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+        LocalTimeCalculator.getDefault().invalidate();
+        triggerAtMillis = RearmReceiver.getNextTriggers(store, options, START + 10 * HOUR);
+        store.setNextTriggers(options, triggerAtMillis);
+
+        for (int scheduleId = 0; scheduleId < options.size(); scheduleId++) {
+            assertEquals(scheduleId % 2 == 0 ? START + 15 * HOUR : START + 11 * HOUR,
+                    store.getNextTriggerAt(scheduleId));
+        }
+    }
+}
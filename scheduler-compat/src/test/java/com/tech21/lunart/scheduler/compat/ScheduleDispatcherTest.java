@@ -0,0 +1,272 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
+
+import com.tech21.lunart.scheduler.compat.metrics.SchedulerMetrics;
+import com.tech21.lunart.scheduler.compat.v21.SchedulerService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScheduleDispatcherTest {
+    private static final String ACTION = "ACTION_SCHEDULE_DISPATCHER_TEST";
+
+    private final ScheduleDispatcher dispatcher = ScheduleDispatcher.getInstance();
+    private final List<Integer> received = new ArrayList<>();
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            received.add(intent.getIntExtra(SchedulerOption.SCHEDULE_ID_KEY, -1));
+        }
+    };
+    private final ManualExecutor executor = new ManualExecutor();
+    private final List<Integer> handled = new ArrayList<>();
+    private final List<Integer> completed = new ArrayList<>();
+    private final ScheduleHandler handler = new ScheduleHandler() {
+        @Override
+        public void onSchedule(
+                @NonNull Context context,
+                @NonNull ScheduleEvent event,
+                @NonNull CancellationSignal cancellationSignal
+        ) {
+            handled.add(event.getScheduleId());
+        }
+    };
+    private Application context;
+    private int maxConcurrent;
+    private int capacity;
+
+    @Before
+    public void setUp() {
+        resetSingletons();
+        context = RuntimeEnvironment.application;
+        Object queue = ReflectionHelpers.getField(dispatcher, "dispatchQueue");
+        maxConcurrent = ReflectionHelpers.getField(queue, "maxConcurrent");
+        capacity = ReflectionHelpers.getField(queue, "capacity");
+        SchedulerMetrics.getInstance().reset();
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.setMode(ScheduleDispatcher.DISPATCH_SYSTEM_BROADCAST);
+        ReflectionHelpers.<Map<?, ?>>getField(dispatcher, "routes").clear();
+        ReflectionHelpers.<Map<?, ?>>getField(dispatcher, "handlers").clear();
+        dispatcher.setLimits(maxConcurrent, capacity);
+        ReflectionHelpers.setField(dispatcher, "executor", null);
+        SchedulerMetrics.getInstance().reset();
+        resetSingletons();
+    }
+
+    @Test
+    public void inProcessFiresSkipTheSystemBroadcast() {
+        SchedulerCompat.with(context)
+                .setDispatchMode(ScheduleDispatcher.DISPATCH_IN_PROCESS)
+                .add(option(1));
+        assertTrue(getSystemReceivers().isEmpty());
+
+        dispatcher.dispatch(context, ACTION, extras(1));
+
+        assertEquals(1, received.size());
+        assertEquals(1, (int) received.get(0));
+        assertTrue(shadowOf(context).getBroadcastIntents().isEmpty());
+    }
+
+    @Test
+    public void systemBroadcastModeRegistersReceiversWithTheSystem() {
+        SchedulerCompat.with(context).add(option(1));
+        assertEquals(1, getSystemReceivers().size());
+
+        dispatcher.dispatch(context, ACTION, extras(1));
+
+        assertEquals(1, received.size());
+        assertEquals(ACTION, shadowOf(context).getBroadcastIntents().get(0).getAction());
+    }
+
+    @Test
+    public void unroutedFireFallsBackToASystemBroadcast() {
+        dispatcher.setMode(ScheduleDispatcher.DISPATCH_IN_PROCESS);
+
+        dispatcher.dispatch(context, ACTION, extras(1));
+
+        List<Intent> broadcasts = shadowOf(context).getBroadcastIntents();
+        assertEquals(1, broadcasts.size());
+        assertEquals(ACTION, broadcasts.get(0).getAction());
+        assertEquals(1, broadcasts.get(0).getIntExtra(SchedulerOption.SCHEDULE_ID_KEY, -1));
+    }
+
+    @Test
+    public void switchingModesMovesKnownReceivers() {
+        SchedulerCompat scheduler = SchedulerCompat.with(context).add(option(1));
+
+        scheduler.setDispatchMode(ScheduleDispatcher.DISPATCH_IN_PROCESS);
+        assertTrue(getSystemReceivers().isEmpty());
+        dispatcher.dispatch(context, ACTION, extras(1));
+        assertEquals(1, received.size());
+        assertTrue(shadowOf(context).getBroadcastIntents().isEmpty());
+
+        scheduler.setDispatchMode(ScheduleDispatcher.DISPATCH_SYSTEM_BROADCAST);
+        assertEquals(1, getSystemReceivers().size());
+    }
+
+    @Test
+    public void handlerRunsOnTheExecutorBeforeCompleting() {
+        SchedulerCompat.with(context)
+                .setHandlerExecutor(executor)
+                .registerHandler(ACTION, handler);
+
+        dispatch(1, new CancellationSignal());
+        assertTrue(handled.isEmpty());
+        assertTrue(completed.isEmpty());
+
+        executor.runAll();
+
+        assertEquals(1, handled.size());
+        assertEquals(handled, completed);
+        assertTrue(shadowOf(context).getBroadcastIntents().isEmpty());
+    }
+
+    @Test
+    public void cancelledFireSkipsTheHandlerButStillCompletes() {
+        SchedulerCompat.with(context)
+                .setHandlerExecutor(executor)
+                .registerHandler(ACTION, handler);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+
+        dispatch(1, cancellationSignal);
+        cancellationSignal.cancel();
+        executor.runAll();
+
+        assertTrue(handled.isEmpty());
+        assertEquals(1, completed.size());
+    }
+
+    @Test
+    public void firesOverTheQueueCapacityAreRetriedInsteadOfDropped() {
+        useSingleHandlerSlot();
+        for (int scheduleId = 0; scheduleId < 3; scheduleId++) {
+            dispatch(scheduleId, new CancellationSignal());
+        }
+        assertEquals(1, executor.size());
+        assertEquals(0, completed.size());
+        assertEquals(2, SchedulerMetrics.getInstance().getSnapshot().getRejectedDispatches());
+
+        for (int i = 0; i < 10 && completed.size() < 3; i++) {
+            executor.runAll();
+            ShadowLooper.idleMainLooper(ScheduleDispatcher.OVERFLOW_RETRY_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        assertEquals(3, handled.size());
+        assertTrue(handled.contains(1));
+        assertTrue(handled.contains(2));
+        // The delivering receiver or job is only released once the handler has run.
+        assertEquals(handled, completed);
+    }
+
+    @Test
+    public void retriedFireIsDroppedOnceCancelled() {
+        useSingleHandlerSlot();
+        dispatch(0, new CancellationSignal());
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        dispatch(1, cancellationSignal);
+        cancellationSignal.cancel();
+
+        for (int i = 0; i < 10 && completed.size() < 2; i++) {
+            executor.runAll();
+            ShadowLooper.idleMainLooper(ScheduleDispatcher.OVERFLOW_RETRY_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        assertEquals(1, handled.size());
+        assertEquals(2, completed.size());
+    }
+
+    /**
+     * Lets a single handler run at a time, with no room to queue another.
+     */
+    private void useSingleHandlerSlot() {
+        dispatcher.setExecutor(executor);
+        dispatcher.setLimits(1, 0);
+        dispatcher.registerHandler(ACTION, handler);
+    }
+
+    private void dispatch(final int scheduleId, @NonNull CancellationSignal cancellationSignal) {
+        dispatcher.dispatch(context, ACTION, extras(scheduleId), cancellationSignal,
+                new ScheduleDispatcher.OnDispatchCompleteListener() {
+                    @Override
+                    public void onDispatchComplete() {
+                        completed.add(scheduleId);
+                    }
+                });
+    }
+
+    private List<BroadcastReceiver> getSystemReceivers() {
+        ShadowApplication application = shadowOf(context);
+        return application.getReceiversForIntent(new Intent(ACTION));
+    }
+
+    private SchedulerOption option(int scheduleId) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleFor(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1))
+                .recurringType(SchedulerCompat.OCCUR_ONCE)
+                .scheduleReceiver(ACTION, receiver)
+                .build();
+    }
+
+    private static Bundle extras(int scheduleId) {
+        Bundle extras = new Bundle();
+        extras.putInt(SchedulerOption.SCHEDULE_ID_KEY, scheduleId);
+        extras.putString(SchedulerOption.SCHEDULE_RECEIVER_ACTION_NAME_KEY, ACTION);
+        return extras;
+    }
+
+    private static void resetSingletons() {
+        ReflectionHelpers.setStaticField(SchedulerCompat.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(SchedulerService.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(ScheduleStore.class, "sInstance", null);
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> runnables = new ArrayDeque<>();
+
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        int size() {
+            return runnables.size();
+        }
+
+        void runAll() {
+            Runnable runnable;
+            while ((runnable = runnables.poll()) != null) {
+                runnable.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScheduleQueueTest {
+
+    @Test
+    public void peekDeadlinesReturnsSmallestDistinctDeadlines() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            ScheduleQueue queue = new ScheduleQueue();
+            TreeSet<Long> expected = new TreeSet<>();
+            int size = random.nextInt(50);
+            for (int scheduleId = 0; scheduleId < size; scheduleId++) {
+                // Few distinct values so that deadlines collide.
+                long triggerAtMillis = random.nextInt(20) * 1000L;
+                long deadlineMillis = triggerAtMillis + random.nextInt(3) * 1000L;
+                queue.offer(scheduleId, triggerAtMillis, deadlineMillis);
+                if (scheduleId % 3 == 0) {
+                    queue.remove(scheduleId);
+                } else {
+                    expected.add(deadlineMillis);
+                }
+            }
+
+            long[] deadlines = new long[4];
+            int count = queue.peekDeadlines(deadlines);
+
+            long[] smallest = new long[Math.min(4, expected.size())];
+            int i = 0;
+            for (Long deadline : expected) {
+                if (i == smallest.length) {
+                    break;
+                }
+                smallest[i++] = deadline;
+            }
+            assertEquals(smallest.length, count);
+            assertArrayEquals(smallest, Arrays.copyOf(deadlines, count));
+        }
+    }
+}
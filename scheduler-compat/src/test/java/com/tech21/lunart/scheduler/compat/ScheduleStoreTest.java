@@ -0,0 +1,350 @@
+package com.tech21.lunart.scheduler.compat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScheduleStoreTest {
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 64;
+    private static final int OPERATIONS_PER_THREAD = 3000;
+    private static final String ACTION = "ACTION_SCHEDULE_STORE_TEST";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void concurrentAddAndCancelKeepEveryLastWrite() throws Exception {
+        final File dir = folder.newFolder();
+        final ScheduleStore store = new ScheduleStore(dir);
+        final long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+
+        List<Map<Integer, SchedulerOption>> expected = runConcurrently(
+                new ThreadBody<Map<Integer, SchedulerOption>>() {
+                    @Override
+                    public Map<Integer, SchedulerOption> run(int thread, Random random) {
+                        // Every thread owns its own ids, so the last write it made must win.
+                        Map<Integer, SchedulerOption> live = new HashMap<>();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            int scheduleId = thread * IDS_PER_THREAD + random.nextInt(IDS_PER_THREAD);
+                            if (random.nextInt(3) == 0) {
+                                store.remove(scheduleId);
+                                live.remove(scheduleId);
+                            } else {
+                                SchedulerOption option = option(scheduleId, scheduleFor + i);
+                                store.put(option);
+                                live.put(scheduleId, option);
+                            }
+                        }
+                        return live;
+                    }
+                });
+
+        int size = 0;
+        for (Map<Integer, SchedulerOption> live : expected) {
+            for (SchedulerOption option : live.values()) {
+                assertEquals(option, store.get(option.getScheduleId()));
+            }
+            size += live.size();
+        }
+        assertEquals(size, store.size());
+        assertSameState(store, new ScheduleStore(dir));
+    }
+
+    @Test
+    public void batchesInterleaveWithSingleOperationsOnSharedIds() throws Exception {
+        final File dir = folder.newFolder();
+        final ScheduleStore store = new ScheduleStore(dir);
+        final long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+
+        runConcurrently(new ThreadBody<Void>() {
+            @Override
+            public Void run(int thread, Random random) {
+                for (int i = 0; i < OPERATIONS_PER_THREAD / 10; i++) {
+                    int scheduleId = random.nextInt(IDS_PER_THREAD);
+                    switch (random.nextInt(5)) {
+                        case 0:
+                            List<SchedulerOption> batch = new ArrayList<>();
+                            for (int j = 0; j < 8; j++) {
+                                batch.add(option((scheduleId + j) % IDS_PER_THREAD, scheduleFor + i));
+                            }
+                            store.putAll(batch);
+                            break;
+                        case 1:
+                            store.removeAll(new int[]{scheduleId, (scheduleId + 1) % IDS_PER_THREAD});
+                            break;
+                        case 2:
+                            store.markFired(scheduleId, scheduleFor + i);
+                            break;
+                        case 3:
+                            store.remove(scheduleId);
+                            break;
+                        default:
+                            store.put(option(scheduleId, scheduleFor + i));
+                            break;
+                    }
+                }
+                return null;
+            }
+        });
+
+        assertSameState(store, new ScheduleStore(dir));
+    }
+
+    @Test
+    public void groupIndexFollowsAddsMovesAndCancels() throws Exception {
+        File dir = folder.newFolder();
+        ScheduleStore store = new ScheduleStore(dir);
+        long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        for (int scheduleId = 0; scheduleId < 10; scheduleId++) {
+            store.put(option(scheduleId, scheduleFor, scheduleId % 2 == 0 ? "even" : "odd"));
+        }
+        store.put(option(0, scheduleFor, "odd"));
+        store.remove(1);
+
+        assertGroup(store, "even", 2, 4, 6, 8);
+        assertGroup(store, "odd", 0, 3, 5, 7, 9);
+        assertGroup(new ScheduleStore(dir), "odd", 0, 3, 5, 7, 9);
+
+        store.removeAll(store.getScheduleIds("even"));
+
+        assertEquals(5, store.size());
+        assertGroup(store, "even");
+        Map<String, ?> groups = ReflectionHelpers.getField(store, "groups");
+        assertFalse(groups.containsKey("even"));
+    }
+
+    @Test
+    public void concurrentJoinsAndLeavesKeepTheGroupIndexExact() throws Exception {
+        final ScheduleStore store = new ScheduleStore(folder.newFolder());
+        final long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+
+        List<Integer> kept = runConcurrently(new ThreadBody<Integer>() {
+            @Override
+            public Integer run(int thread, Random random) {
+                // Every thread keeps emptying and refilling the one shared group.
+                int scheduleId = thread;
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    store.put(option(scheduleId, scheduleFor, "shared"));
+                    store.remove(scheduleId);
+                }
+                store.put(option(scheduleId, scheduleFor, "shared"));
+                return scheduleId;
+            }
+        });
+
+        int[] expected = new int[kept.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = kept.get(i);
+        }
+        assertGroup(store, "shared", expected);
+    }
+
+    @Test
+    public void queriesFollowNextFireTimes() throws Exception {
+        File dir = folder.newFolder();
+        ScheduleStore store = new ScheduleStore(dir);
+        long start = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        long hour = TimeUnit.HOURS.toMillis(1);
+        for (int scheduleId = 0; scheduleId < 10; scheduleId++) {
+            store.put(new SchedulerOption.Builder()
+                    .scheduleId(scheduleId)
+                    .scheduleName(scheduleId < 3 ? "sync" : "reminder-" + scheduleId)
+                    .scheduleFor(start + (10 - scheduleId) * hour)
+                    .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                    .scheduleAction(ACTION)
+                    .build());
+        }
+        // Schedule 9 is the earliest; once fired it moves to the same time tomorrow.
+        store.markFired(9, start + hour);
+
+        assertIds(store.nextDue(3), 8, 7, 6);
+        assertIds(store.dueBetween(start + 2 * hour, start + 5 * hour), 8, 7, 6);
+        int[] synced = ids(store.findByName("sync"));
+        Arrays.sort(synced);
+        assertArrayEquals(new int[]{0, 1, 2}, synced);
+        assertEquals(start + 25 * hour, store.getNextTriggerAt(9));
+
+        ScheduleStore replayed = new ScheduleStore(dir);
+        assertIds(replayed.nextDue(3), 8, 7, 6);
+        assertEquals(start + 25 * hour, replayed.getNextTriggerAt(9));
+    }
+
+    @Test
+    public void encodedOptionResolvesToTheStoredOne() throws Exception {
+        ScheduleStore store = new ScheduleStore(folder.newFolder());
+        long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        SchedulerOption option = option(1, scheduleFor);
+        store.put(option);
+        SchedulerOptionCodec.View view = new SchedulerOptionCodec.View();
+
+        assertSame(option, store.get(view.wrap(SchedulerOptionCodec.encode(option))));
+
+        // Armed before the schedule was added again with another time.
+        SchedulerOption armed = option(1, scheduleFor + 1);
+        SchedulerOption decoded = store.get(view.wrap(SchedulerOptionCodec.encode(armed)));
+        assertEquals(armed, decoded);
+        assertSame(option, store.get(1));
+    }
+
+    @Test
+    public void failedWriteDoesNotHideLaterRecords() throws Exception {
+        File dir = folder.newFolder();
+        ScheduleStore store = new ScheduleStore(dir);
+        long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        store.put(option(1, scheduleFor));
+
+        // The disk fills up two bytes into the next record.
+        File journal = new File(dir, "schedules.journal");
+        ReflectionHelpers.setField(store, "appendedFrom", journal.length());
+        ReflectionHelpers.setField(store, "out", new DataOutputStream(
+                new FailingOutputStream(new FileOutputStream(journal, true), 2)));
+        store.put(option(2, scheduleFor));
+        store.put(option(3, scheduleFor));
+
+        ScheduleStore replayed = new ScheduleStore(dir);
+        assertEquals(scheduleFor, replayed.get(1).getScheduleFor());
+        assertNull(replayed.get(2));
+        assertEquals(scheduleFor, replayed.get(3).getScheduleFor());
+    }
+
+    @Test
+    public void engineOutlivesClearAndCompaction() throws Exception {
+        File dir = folder.newFolder();
+        ScheduleStore store = new ScheduleStore(dir);
+        assertEquals(0, store.getEngine());
+        store.setEngine(1);
+        store.clear();
+        assertEquals(1, new ScheduleStore(dir).getEngine());
+
+        ReflectionHelpers.callInstanceMethod(store, "compact");
+        assertEquals(1, new ScheduleStore(dir).getEngine());
+    }
+
+    private static <T> List<T> runConcurrently(final ThreadBody<T> body) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                final int index = thread;
+                futures.add(executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        start.await();
+                        return body.run(index, new Random(index));
+                    }
+                }));
+            }
+            start.countDown();
+
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get(30, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertSameState(ScheduleStore expected, ScheduleStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int scheduleId = 0; scheduleId < THREADS * IDS_PER_THREAD; scheduleId++) {
+            SchedulerOption option = expected.get(scheduleId);
+            if (option == null) {
+                assertNull(actual.get(scheduleId));
+                continue;
+            }
+            assertEquals(option.getScheduleFor(), actual.get(scheduleId).getScheduleFor());
+            assertEquals(expected.getLastFiredAt(scheduleId), actual.getLastFiredAt(scheduleId));
+        }
+    }
+
+    private static void assertIds(List<SchedulerOption> options, int... expected) {
+        assertArrayEquals(expected, ids(options));
+    }
+
+    private static int[] ids(List<SchedulerOption> options) {
+        int[] scheduleIds = new int[options.size()];
+        for (int i = 0; i < scheduleIds.length; i++) {
+            scheduleIds[i] = options.get(i).getScheduleId();
+        }
+        return scheduleIds;
+    }
+
+    private static void assertGroup(ScheduleStore store, String group, int... expected) {
+        int[] scheduleIds = store.getScheduleIds(group);
+        Arrays.sort(scheduleIds);
+        Arrays.sort(expected);
+        assertArrayEquals(expected, scheduleIds);
+    }
+
+    private static SchedulerOption option(int scheduleId, long scheduleFor) {
+        return option(scheduleId, scheduleFor, null);
+    }
+
+    private static SchedulerOption option(int scheduleId, long scheduleFor, String group) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleFor(scheduleFor)
+                .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                .group(group)
+                .scheduleAction(ACTION)
+                .build();
+    }
+
+    /**
+     * Writes through the first {@code limit} bytes, then fails as a full disk would.
+     */
+    private static class FailingOutputStream extends FilterOutputStream {
+        private int remaining;
+
+        FailingOutputStream(OutputStream out, int limit) {
+            super(out);
+            this.remaining = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (remaining == 0) {
+                throw new IOException("No space left on device");
+            }
+            out.write(b);
+            remaining--;
+        }
+    }
+
+    private interface ThreadBody<T> {
+        T run(int thread, Random random);
+    }
+}
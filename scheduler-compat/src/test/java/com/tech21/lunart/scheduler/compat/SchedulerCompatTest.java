@@ -0,0 +1,373 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.content.ClipData;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Network;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.IBinder;
+import android.os.PersistableBundle;
+import android.provider.Settings;
+import android.support.annotation.NonNull;
+
+import com.tech21.lunart.scheduler.compat.metrics.SchedulerMetrics;
+import com.tech21.lunart.scheduler.compat.v21.SchedulerService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+import org.robolectric.util.ReflectionHelpers.ClassParameter;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class SchedulerCompatTest {
+    private static final long START = 1541376000000L; // 2018-11-05T00:00:00Z
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final String ACTION = "ACTION_SCHEDULER_COMPAT_TEST";
+
+    private final ScheduleHandler handler = new ScheduleHandler() {
+        @Override
+        public void onSchedule(
+                @NonNull Context context,
+                @NonNull ScheduleEvent event,
+                @NonNull CancellationSignal cancellationSignal
+        ) {
+        }
+    };
+    private Context context;
+    private JobScheduler jobScheduler;
+    private VirtualClock clock;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock(START + 10 * HOUR);
+        SchedulerCompat.setClock(clock);
+        resetSingletons();
+        SchedulerMetrics.getInstance().reset();
+
+        context = RuntimeEnvironment.application;
+        jobScheduler = context.getSystemService(JobScheduler.class);
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionHelpers.setField(ScheduleDispatcher.getInstance(), "executor", null);
+        resetSingletons();
+        SchedulerMetrics.getInstance().reset();
+        SchedulerCompat.setClock(Clock.SYSTEM);
+    }
+
+    @Test
+    public void addIfChangedCountsAddedUpdatedAndUnchangedOptions() {
+        SchedulerCompat scheduler = SchedulerCompat.with(context);
+        AddResult first = scheduler.addIfChanged(Arrays.asList(once(1, 11 * HOUR), once(2, 11 * HOUR)));
+        assertResult(first, 2, 0, 0);
+        assertEquals(2, getSystemAddCalls());
+
+        SchedulerMetrics.getInstance().reset();
+        AddResult second = scheduler.addIfChanged(Arrays.asList(
+                once(1, 11 * HOUR), once(2, 12 * HOUR), once(3, 11 * HOUR)));
+        assertResult(second, 1, 1, 1);
+        assertEquals(2, getSystemAddCalls());
+        assertEquals(2 * HOUR, jobScheduler.getPendingJob(2).getMinLatencyMillis());
+    }
+
+    @Test
+    public void unchangedOptionsAreLeftToTheSystem() {
+        SchedulerCompat scheduler = SchedulerCompat.with(context);
+        scheduler.addIfChanged(Arrays.asList(once(1, 11 * HOUR), once(2, 11 * HOUR)));
+        JobInfo armed = jobScheduler.getPendingJob(1);
+
+        SchedulerMetrics.getInstance().reset();
+        AddResult result = scheduler.addIfChanged(Arrays.asList(once(1, 11 * HOUR), once(2, 11 * HOUR)));
+
+        assertResult(result, 0, 0, 2);
+        SchedulerMetrics.Snapshot snapshot = SchedulerMetrics.getInstance().getSnapshot();
+        assertEquals(0, snapshot.getSystemAddCalls());
+        assertEquals(0, snapshot.getSystemCancelCalls());
+        assertSame(armed, jobScheduler.getPendingJob(1));
+    }
+
+    @Test
+    public void dailyScheduleThatHasFiredIsStillUnchanged() {
+        SchedulerCompat scheduler = SchedulerCompat.with(context).setHandlerExecutor(new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                command.run();
+            }
+        });
+        scheduler.addIfChanged(Collections.singletonList(daily(1, 11 * HOUR)));
+
+        advanceUptimeBy(HOUR);
+        SchedulerService service = Robolectric.setupService(SchedulerService.class);
+        assertTrue(service.onStartJob(getParameters(jobScheduler.getPendingJob(1))));
+        JobInfo next = jobScheduler.getPendingJob(1);
+        assertEquals(DAY, next.getMinLatencyMillis());
+        assertEquals(START + 11 * HOUR, ScheduleStore.with(context).getLastFiredAt(1));
+        assertEquals(START + 11 * HOUR, ScheduleStore.with(context).get(1).getScheduleFor());
+
+        SchedulerMetrics.getInstance().reset();
+        AddResult result = scheduler.addIfChanged(Collections.singletonList(daily(1, 11 * HOUR)));
+
+        assertResult(result, 0, 0, 1);
+        assertEquals(0, getSystemAddCalls());
+        assertSame(next, jobScheduler.getPendingJob(1));
+    }
+
+    @Test
+    public void everyScheduleIsRegisteredAgainAfterAReboot() {
+        SchedulerCompat scheduler = SchedulerCompat.with(context);
+        scheduler.addIfChanged(Arrays.asList(once(1, 11 * HOUR), once(2, 11 * HOUR)));
+        scheduler.add(once(3, 11 * HOUR));
+        assertTrue(ScheduleStore.with(context).isRegisteredSinceBoot());
+
+        // The wall clock moves on while the uptime doesn't, as it does across a reboot, and
+        // the system has dropped every job.
+        clock.advanceBy(30 * MINUTE);
+        jobScheduler.cancelAll();
+        assertFalse(ScheduleStore.with(context).isRegisteredSinceBoot());
+
+        SchedulerMetrics.getInstance().reset();
+        AddResult result = scheduler.addIfChanged(Arrays.asList(once(1, 11 * HOUR), once(2, 11 * HOUR)));
+
+        assertResult(result, 0, 0, 2);
+        // Schedule 3 isn't in the set, but is registered again too.
+        assertEquals(3, getSystemAddCalls());
+        assertEquals(3, jobScheduler.getAllPendingJobs().size());
+        assertTrue(ScheduleStore.with(context).isRegisteredSinceBoot());
+
+        SchedulerMetrics.getInstance().reset();
+        scheduler.addIfChanged(Arrays.asList(once(1, 11 * HOUR), once(2, 11 * HOUR)));
+        assertEquals(0, getSystemAddCalls());
+    }
+
+    @Test
+    public void operationsQueuedDuringDeferredInitApplyInOrder() {
+        ManualExecutor executor = new ManualExecutor();
+        SchedulerCompat scheduler = new SchedulerCompat(context, true, executor);
+        List<SchedulerOption> batch = new ArrayList<>(Arrays.asList(once(2, 11 * HOUR), once(3, 11 * HOUR)));
+        int[] cancelled = {1};
+        scheduler.add(once(1, 11 * HOUR));
+        scheduler.addAll(batch);
+        scheduler.cancel(cancelled);
+        scheduler.add(once(2, 12 * HOUR));
+        // Callers may reuse what they passed in right away.
+        batch.clear();
+        cancelled[0] = 3;
+        assertEquals(0, jobScheduler.getAllPendingJobs().size());
+
+        executor.runAll();
+
+        List<SchedulerOption> due = scheduler.nextDue(10);
+        assertEquals(2, due.size());
+        assertEquals(3, due.get(0).getScheduleId());
+        assertEquals(2, due.get(1).getScheduleId());
+        assertEquals(START + 12 * HOUR, due.get(1).getScheduleFor());
+        assertEquals(2, jobScheduler.getAllPendingJobs().size());
+    }
+
+    @Test
+    public void deferredInitWithoutExecutorRunsOnFirstUse() {
+        SchedulerCompat scheduler = SchedulerCompat.withDeferredInit(context);
+        assertFalse(((AtomicBoolean) ReflectionHelpers.getField(scheduler, "initStarted")).get());
+
+        scheduler.add(once(1, 11 * HOUR));
+
+        assertEquals(START + 11 * HOUR, scheduler.getNextTriggerAt(1));
+        assertEquals(1, jobScheduler.getAllPendingJobs().size());
+    }
+
+    @Test
+    public void failedDeferredInitReleasesWaitersWithTheCause() {
+        ManualExecutor executor = new ManualExecutor();
+        SchedulerCompat scheduler = new SchedulerCompat(context, true, executor);
+        scheduler.add(once(1, 11 * HOUR));
+        // The setup can't open the store without a context.
+        ReflectionHelpers.setField(scheduler, "context", new WeakReference<Context>(null));
+        try {
+            executor.runAll();
+            fail("The setup should have failed");
+        } catch (NullPointerException expected) {
+        }
+
+        try {
+            scheduler.getNextTriggerAt(1);
+            fail("A query should fail once the setup has");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getCause() instanceof NullPointerException);
+        }
+    }
+
+    @Test
+    public void queryRacingDeferredInitWaitsForQueuedOperations() throws Exception {
+        final SchedulerCompat scheduler;
+        FutureTask<Long> query = new FutureTask<>(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return SchedulerCompat.with(context).getNextTriggerAt(1);
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // The setup can't open the store while its class is locked.
+        synchronized (ScheduleStore.class) {
+            scheduler = SchedulerCompat.withDeferredInit(context, executor);
+            scheduler.add(once(1, 11 * HOUR));
+            new Thread(query).start();
+            try {
+                query.get(100, TimeUnit.MILLISECONDS);
+                fail("Query returned before the store was opened");
+            } catch (TimeoutException expected) {
+            }
+            scheduler.add(once(1, 12 * HOUR));
+        }
+
+        assertEquals(START + 12 * HOUR, (long) query.get(10, TimeUnit.SECONDS));
+        assertSame(scheduler, SchedulerCompat.with(context));
+        executor.shutdown();
+    }
+
+    @Test
+    public void jitterSeedIsReadOnceOnFirstUse() {
+        ContentResolver resolver = context.getContentResolver();
+        Settings.Secure.putString(resolver, Settings.Secure.ANDROID_ID, "a");
+        try {
+            SchedulerCompat.getJitterSeed();
+            fail("The seed was read before any context was known");
+        } catch (IllegalStateException expected) {
+        }
+
+        SchedulerCompat.withDeferredInit(context);
+        assertFalse((Boolean) ReflectionHelpers.getStaticField(SchedulerCompat.class, "sJitterSeedSet"));
+
+        assertEquals('a', SchedulerCompat.getJitterSeed());
+        Settings.Secure.putString(resolver, Settings.Secure.ANDROID_ID, "b");
+        assertEquals('a', SchedulerCompat.getJitterSeed());
+    }
+
+    @Test
+    public void jitterOffsetIsDerivedWhenTheScheduleIsArmed() {
+        Settings.Secure.putString(context.getContentResolver(), Settings.Secure.ANDROID_ID, "a");
+        long window = TimeUnit.MINUTES.toMillis(30);
+        SchedulerOption option = new SchedulerOption.Builder()
+                .scheduleId(1)
+                .scheduleFor(START + 12 * HOUR)
+                .recurringType(SchedulerCompat.OCCUR_ONCE)
+                .jitter(window)
+                .scheduleHandler(ACTION, handler)
+                .build();
+
+        SchedulerCompat.with(context).add(option);
+
+        long jitterMillis = Recurrence.getJitterOffset(1, window, 'a');
+        assertEquals(jitterMillis, option.getJitterMillis());
+        assertEquals(START + 12 * HOUR + jitterMillis,
+                ScheduleStore.with(context).getNextTriggerAt(1));
+    }
+
+    private SchedulerOption once(int scheduleId, long timeOfDayMillis) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleFor(START + timeOfDayMillis)
+                .recurringType(SchedulerCompat.OCCUR_ONCE)
+                .scheduleHandler(ACTION, handler)
+                .build();
+    }
+
+    private SchedulerOption daily(int scheduleId, long timeOfDayMillis) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleFor(START + timeOfDayMillis)
+                .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                .scheduleHandler(ACTION, handler)
+                .build();
+    }
+
+    /**
+     * Moves the wall clock and the uptime on together, as they do while the device stays up.
+     */
+    private void advanceUptimeBy(long millis) {
+        clock.advanceBy(millis);
+        ShadowLooper.idleMainLooper(millis, TimeUnit.MILLISECONDS);
+    }
+
+    private static JobParameters getParameters(@NonNull JobInfo jobInfo) {
+        return ReflectionHelpers.callConstructor(JobParameters.class,
+                ClassParameter.from(IBinder.class, null),
+                ClassParameter.from(int.class, jobInfo.getId()),
+                ClassParameter.from(PersistableBundle.class, jobInfo.getExtras()),
+                ClassParameter.from(Bundle.class, jobInfo.getTransientExtras()),
+                ClassParameter.from(ClipData.class, null),
+                ClassParameter.from(int.class, 0),
+                ClassParameter.from(boolean.class, false),
+                ClassParameter.from(Uri[].class, null),
+                ClassParameter.from(String[].class, null),
+                ClassParameter.from(Network.class, null));
+    }
+
+    private static long getSystemAddCalls() {
+        return SchedulerMetrics.getInstance().getSnapshot().getSystemAddCalls();
+    }
+
+    private static void assertResult(AddResult result, int added, int updated, int unchanged) {
+        assertEquals(added, result.getAdded());
+        assertEquals(updated, result.getUpdated());
+        assertEquals(unchanged, result.getUnchanged());
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> runnables = new ArrayList<>();
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            runnables.add(command);
+        }
+
+        void runAll() {
+            while (!runnables.isEmpty()) {
+                runnables.remove(0).run();
+            }
+        }
+    }
+
+    private static void resetSingletons() {
+        ReflectionHelpers.setStaticField(SchedulerCompat.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(SchedulerCompat.class, "sSeedContext", null);
+        ReflectionHelpers.setStaticField(SchedulerCompat.class, "sJitterSeedSet", false);
+        ReflectionHelpers.setStaticField(SchedulerService.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(ScheduleStore.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(PayloadStore.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(ConditionMonitor.class, "sInstance", null);
+    }
+}
@@ -0,0 +1,126 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class SchedulerOptionCodecTest {
+    private static final String ACTION = "ACTION_SCHEDULER_OPTION_CODEC_TEST";
+
+    @Test
+    public void decodesWhatItEncodes() {
+        long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        SchedulerOption[] options = {
+                new SchedulerOption.Builder()
+                        .scheduleId(42)
+                        .scheduleName("N\u00e4chste Erinnerung \u2713")
+                        .scheduleFor(scheduleFor)
+                        .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                        .tolerance(TimeUnit.MINUTES.toMillis(5))
+                        .group("reminders")
+                        .misfirePolicy(SchedulerCompat.MISFIRE_FIRE_ALL)
+                        .jitter(TimeUnit.MINUTES.toMillis(30))
+                        .constraints(SchedulerCompat.CONSTRAINT_CHARGING
+                                | SchedulerCompat.CONSTRAINT_UNMETERED_NETWORK)
+                        .scheduleAction(ACTION)
+                        .build(),
+                new SchedulerOption.Builder()
+                        .scheduleId(-7)
+                        .cron("*/15 9-17 * * 1-5")
+                        .scheduleAction(ACTION)
+                        .build()
+        };
+
+        SchedulerOptionCodec.View view = new SchedulerOptionCodec.View();
+        for (SchedulerOption option : options) {
+            byte[] encoded = SchedulerOptionCodec.encode(option);
+            assertEquals(option, SchedulerOptionCodec.decode(encoded));
+
+            view.wrap(encoded);
+            assertEquals(option.getScheduleId(), view.getScheduleId());
+            assertEquals(option.getScheduleFor(), view.getScheduleFor());
+            assertEquals(option.getScheduleName(), view.getScheduleName());
+            assertEquals(option.getGroup(), view.getGroup());
+            assertEquals(option.getMisfirePolicy(), view.getMisfirePolicy());
+            assertEquals(option.getJitterWindowMillis(), view.getJitterWindowMillis());
+            assertEquals(option.getConstraints(), view.getConstraints());
+            assertBundleEquals(new SchedulerOption.Builder().toBundle(option), view.toBundle());
+        }
+    }
+
+    @Test
+    public void skipsFieldsItDoesNotKnow() {
+        SchedulerOption option = new SchedulerOption.Builder()
+                .scheduleId(1)
+                .scheduleFor(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1))
+                .scheduleAction(ACTION)
+                .build();
+        byte[] encoded = SchedulerOptionCodec.encode(option);
+        // Splice a bytes field with an unused tag in front of the end tag.
+        byte[] extended = Arrays.copyOf(encoded, encoded.length + 7);
+        System.arraycopy(new byte[]{(byte) 0xff, 0, 0, 0, 2, 9, 9, 0}, 0,
+                extended, encoded.length - 1, 8);
+
+        SchedulerOptionCodec.View view = new SchedulerOptionCodec.View().wrap(extended);
+        assertEquals(option, view.toOption());
+        assertNull(view.getGroup());
+    }
+
+    @Test
+    public void contentHashFollowsScheduledFieldsOnly() {
+        long scheduleFor = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        SchedulerOption option = new SchedulerOption.Builder()
+                .scheduleId(3)
+                .scheduleFor(scheduleFor)
+                .group("sync")
+                .scheduleReceiver(ACTION, new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                    }
+                })
+                .build();
+        SchedulerOption sameContent = new SchedulerOption.Builder()
+                .from(option)
+                .scheduleAction(ACTION)
+                .build();
+        SchedulerOption otherGroup = new SchedulerOption.Builder()
+                .from(option)
+                .group("backup")
+                .build();
+
+        assertNotEquals(option, sameContent);
+        assertEquals(option.getContentHash(), sameContent.getContentHash());
+        assertNotEquals(option.getContentHash(), otherGroup.getContentHash());
+
+        SchedulerOptionCodec.View view = new SchedulerOptionCodec.View();
+        assertEquals(option.getContentHash(),
+                view.wrap(SchedulerOptionCodec.encode(option)).getContentHash());
+        assertNotEquals(option.getContentHash(),
+                view.wrap(SchedulerOptionCodec.encode(otherGroup)).getContentHash());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNewerVersions() {
+        new SchedulerOptionCodec.View().wrap(new byte[]{SchedulerOptionCodec.VERSION + 1, 0});
+    }
+
+    private static void assertBundleEquals(Bundle expected, Bundle actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            assertEquals(key, expected.get(key), actual.get(key));
+        }
+    }
+}
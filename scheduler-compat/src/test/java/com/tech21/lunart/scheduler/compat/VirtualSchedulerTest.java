@@ -0,0 +1,262 @@
+package com.tech21.lunart.scheduler.compat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class VirtualSchedulerTest {
+    private static final long START = 1541376000000L; // 2018-11-05T00:00:00Z
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final String ACTION = "ACTION_VIRTUAL_SCHEDULER_TEST";
+
+    private VirtualClock clock;
+    private VirtualScheduler scheduler;
+    private BroadcastReceiver receiver;
+    private List<Long> fireTimes;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock(START);
+        SchedulerCompat.setClock(clock);
+        scheduler = new VirtualScheduler(clock);
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // no-op
+            }
+        };
+        fireTimes = new ArrayList<>();
+        scheduler.addOnFireListener(new VirtualScheduler.OnFireListener() {
+            @Override
+            public void onFire(SchedulerOption option, long triggerAtMillis, long firedAtMillis) {
+                fireTimes.add(firedAtMillis);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        SchedulerCompat.setClock(Clock.SYSTEM);
+        ReflectionHelpers.setStaticField(SchedulerCompat.class, "sJitterSeedSet", false);
+    }
+
+    @Test
+    public void oneShotScheduleFiresOnceAtItsTime() {
+        scheduler.add(option(1, START + HOUR, SchedulerCompat.OCCUR_ONCE));
+
+        assertEquals(0, scheduler.advanceBy(HOUR - 1));
+        assertEquals(1, scheduler.advanceBy(1));
+        assertEquals(0, scheduler.advanceBy(DAY));
+
+        assertEquals(START + HOUR, (long) fireTimes.get(0));
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void dailyScheduleFiresOncePerDayForAWeek() {
+        scheduler.add(option(1, START + 9 * HOUR, SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME));
+
+        assertEquals(7, scheduler.advanceBy(7 * DAY));
+
+        for (int day = 0; day < 7; day++) {
+            assertEquals(START + 9 * HOUR + day * DAY, (long) fireTimes.get(day));
+        }
+        assertEquals(START + 7 * DAY + 9 * HOUR, scheduler.getNextTriggerAt(1));
+        assertEquals(START + 7 * DAY, clock.currentTimeMillis());
+    }
+
+    @Test
+    public void cancelledScheduleNeverFires() {
+        scheduler.add(option(1, START + HOUR, SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME));
+        scheduler.add(option(2, START + 2 * HOUR, SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME));
+        scheduler.cancel(1);
+
+        assertEquals(3, scheduler.advanceBy(3 * DAY));
+        assertEquals(1, scheduler.size());
+    }
+
+    @Test
+    public void schedulesFireInTimeOrder() {
+        for (int i = 0; i < 50; i++) {
+            scheduler.add(option(i, START + ((i * 7919) % 50 + 1) * MINUTE,
+                    SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME));
+        }
+
+        scheduler.advanceBy(2 * DAY);
+
+        assertEquals(100, fireTimes.size());
+        for (int i = 1; i < fireTimes.size(); i++) {
+            assertTrue(fireTimes.get(i - 1) <= fireTimes.get(i));
+        }
+    }
+
+    @Test
+    public void cronScheduleFiresOnEveryMatch() {
+        scheduler.add(new SchedulerOption.Builder()
+                .scheduleId(1)
+                .scheduleName("cron")
+                .cron("*/15 8-18 * * MON-FRI")
+                .scheduleReceiver(ACTION, receiver)
+                .build());
+
+        // 44 fires a day, 5 days a week.
+        assertEquals(220, scheduler.advanceBy(7 * DAY));
+        assertEquals(1, scheduler.size());
+    }
+
+    @Test
+    public void tolerantSchedulesShareWakeups() {
+        for (int i = 0; i < 60; i++) {
+            scheduler.add(new SchedulerOption.Builder()
+                    .scheduleId(i)
+                    .scheduleName("schedule-" + i)
+                    .scheduleFor(START + (i + 1) * MINUTE)
+                    .recurringType(SchedulerCompat.OCCUR_ONCE)
+                    .tolerance(10 * MINUTE)
+                    .scheduleReceiver(ACTION, receiver)
+                    .build());
+        }
+
+        assertEquals(60, scheduler.advanceBy(2 * HOUR));
+        // Each wakeup serves the 11 windows open at the earliest deadline.
+        assertEquals(6, scheduler.getWakeupCount());
+        for (int i = 0; i < fireTimes.size(); i++) {
+            assertTrue(fireTimes.get(i) <= START + (i + 1) * MINUTE + 10 * MINUTE);
+        }
+    }
+
+    @Test
+    public void exactSchedulesKeepTheirOwnWakeups() {
+        for (int i = 0; i < 60; i++) {
+            scheduler.add(option(i, START + (i + 1) * MINUTE, SchedulerCompat.OCCUR_ONCE));
+        }
+
+        assertEquals(60, scheduler.advanceBy(2 * HOUR));
+        assertEquals(60, scheduler.getWakeupCount());
+        for (int i = 0; i < fireTimes.size(); i++) {
+            assertEquals(START + (i + 1) * MINUTE, (long) fireTimes.get(i));
+        }
+    }
+
+    @Test
+    public void misfirePolicyDecidesWhatASleptThroughScheduleDelivers() {
+        scheduler.add(misfireOption(1, SchedulerCompat.MISFIRE_FIRE_ONCE));
+        scheduler.add(misfireOption(2, SchedulerCompat.MISFIRE_FIRE_ALL));
+        scheduler.add(misfireOption(3, SchedulerCompat.MISFIRE_SKIP_TO_NEXT));
+        final List<Long> onceTimes = new ArrayList<>();
+        final List<Long> allTimes = new ArrayList<>();
+        scheduler.addOnFireListener(new VirtualScheduler.OnFireListener() {
+            @Override
+            public void onFire(SchedulerOption option, long triggerAtMillis, long firedAtMillis) {
+                if (option.getScheduleId() == 1) {
+                    onceTimes.add(triggerAtMillis);
+                } else if (option.getScheduleId() == 2) {
+                    allTimes.add(triggerAtMillis);
+                }
+            }
+        });
+
+        // Sleeps through four occurrences of each.
+        scheduler.sleepBy(3 * DAY + 10 * HOUR);
+
+        assertEquals(5, scheduler.advanceBy(0));
+        assertEquals(3 + 0 + 4, scheduler.getMissedCount());
+        assertEquals(1, onceTimes.size());
+        assertEquals(START + 3 * DAY + 9 * HOUR, (long) onceTimes.get(0));
+        assertEquals(4, allTimes.size());
+        for (int day = 0; day < 4; day++) {
+            assertEquals(START + day * DAY + 9 * HOUR, (long) allTimes.get(day));
+        }
+
+        // Every schedule is back on its daily time.
+        assertEquals(3, scheduler.advanceBy(DAY));
+        for (int scheduleId = 1; scheduleId <= 3; scheduleId++) {
+            assertEquals(START + 5 * DAY + 9 * HOUR, scheduler.getNextTriggerAt(scheduleId));
+        }
+    }
+
+    @Test
+    public void jitterSpreadsSchedulesSharingATime() {
+        int schedules = 100;
+        long window = HOUR;
+        SchedulerCompat.setJitterSeed(42);
+        for (int i = 0; i < schedules; i++) {
+            scheduler.add(new SchedulerOption.Builder()
+                    .scheduleId(i)
+                    .scheduleName("schedule-" + i)
+                    .scheduleFor(START + 9 * HOUR)
+                    .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                    .jitter(window)
+                    .scheduleReceiver(ACTION, receiver)
+                    .build());
+        }
+
+        assertEquals(2 * schedules, scheduler.advanceBy(2 * DAY));
+
+        Set<Long> distinct = new HashSet<>();
+        for (int i = 0; i < schedules; i++) {
+            long fireTime = fireTimes.get(i);
+            assertTrue(fireTime >= START + 9 * HOUR && fireTime < START + 9 * HOUR + window);
+            // Each schedule keeps its offset on the following days.
+            assertTrue(fireTimes.contains(fireTime + DAY));
+            distinct.add(fireTime);
+        }
+        assertEquals(schedules, distinct.size());
+    }
+
+    @Test
+    public void simulatesOneHundredThousandFires() {
+        int schedules = 1000;
+        int days = 100;
+        List<SchedulerOption> options = new ArrayList<>(schedules);
+        for (int i = 0; i < schedules; i++) {
+            options.add(option(i, START + i * MINUTE + 1, SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME));
+        }
+        scheduler.addAll(options);
+
+        scheduler.advanceBy(days * DAY);
+
+        assertEquals(schedules * days, scheduler.getFireCount());
+        assertEquals(schedules, scheduler.size());
+    }
+
+    private SchedulerOption misfireOption(int scheduleId, int misfirePolicy) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleName("schedule-" + scheduleId)
+                .scheduleFor(START + 9 * HOUR)
+                .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                .misfirePolicy(misfirePolicy)
+                .scheduleReceiver(ACTION, receiver)
+                .build();
+    }
+
+    private SchedulerOption option(int scheduleId, long scheduleFor, int recurringType) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleName("schedule-" + scheduleId)
+                .scheduleFor(scheduleFor)
+                .recurringType(recurringType)
+                .scheduleReceiver(ACTION, receiver)
+                .build();
+    }
+}
@@ -0,0 +1,79 @@
+package com.tech21.lunart.scheduler.compat.metrics;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class HistogramTest {
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(100000, snapshot.getMax());
+        assertEquals(50000.5, snapshot.getMean(), 0.001);
+        assertWithin(50000, snapshot.getValueAtPercentile(50));
+        assertWithin(99000, snapshot.getValueAtPercentile(99));
+        assertEquals(100000, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (long value = 0; value < 16; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(7, histogram.snapshot().getValueAtPercentile(50));
+    }
+
+    @Test
+    public void clampsOutOfRangeValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+        assertEquals(Histogram.MAX_VALUE, snapshot.getMax());
+    }
+
+    @Test
+    public void concurrentRecordsAreNotLost() throws InterruptedException {
+        final Histogram histogram = new Histogram();
+        final int threads = 4;
+        final int recordsPerThread = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < recordsPerThread; i++) {
+                        histogram.record(i % 1000);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        assertEquals(threads * recordsPerThread, histogram.snapshot().getCount());
+        assertEquals(999, histogram.snapshot().getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " isn't within 1/16th of " + expected,
+                actual >= expected && actual <= expected + expected / 16);
+    }
+}
@@ -0,0 +1,60 @@
+package com.tech21.lunart.scheduler.compat.metrics;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class SchedulerMetricsTest {
+    private static final long NOW = 1541376000000L; // 2018-11-05T00:00:00Z
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final SchedulerMetrics metrics = SchedulerMetrics.getInstance();
+
+    @After
+    public void tearDown() {
+        metrics.reset();
+    }
+
+    @Test
+    public void wakeupsAreCountedPerHour() {
+        metrics.recordWakeup(NOW - 2 * HOUR);
+        metrics.recordWakeup(NOW);
+        metrics.recordWakeup(NOW + 1);
+
+        long[] wakeupsPerHour = metrics.getSnapshot(NOW).getWakeupsPerHour();
+        assertEquals(2, wakeupsPerHour[0]);
+        assertEquals(0, wakeupsPerHour[1]);
+        assertEquals(1, wakeupsPerHour[2]);
+    }
+
+    @Test
+    public void wakeupsOlderThanADayAreDropped() {
+        metrics.recordWakeup(NOW - 24 * HOUR);
+        metrics.recordWakeup(NOW);
+
+        assertEquals(1, metrics.getSnapshot(NOW).getWakeupsPerHour()[0]);
+    }
+
+    @Test
+    public void recordsDriftLatencyAndSystemCalls() {
+        metrics.recordFire(1, NOW, NOW + 1500);
+        metrics.recordDispatch("ACTION", 0, TimeUnit.MILLISECONDS.toNanos(2),
+                TimeUnit.MILLISECONDS.toNanos(12));
+        metrics.recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+        metrics.recordSystemCall(SchedulerMetrics.SYSTEM_CALL_ADD);
+        metrics.recordSystemCall(SchedulerMetrics.SYSTEM_CALL_CANCEL);
+
+        SchedulerMetrics.Snapshot snapshot = metrics.getSnapshot(NOW);
+        assertEquals(1500, snapshot.getFireDriftMillis().getMax());
+        assertEquals(2000, snapshot.getDispatchLatencyMicros().getMax());
+        assertEquals(10000, snapshot.getHandlerDurationMicros().getMax());
+        assertEquals(2, snapshot.getSystemAddCalls());
+        assertEquals(1, snapshot.getSystemCancelCalls());
+    }
+}
@@ -0,0 +1,428 @@
+package com.tech21.lunart.scheduler.compat.v21;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.content.ClipData;
+import android.content.Context;
+import android.net.Network;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.IBinder;
+import android.os.PersistableBundle;
+import android.support.annotation.NonNull;
+
+import com.tech21.lunart.scheduler.compat.Clock;
+import com.tech21.lunart.scheduler.compat.ConditionMonitor;
+import com.tech21.lunart.scheduler.compat.LocalTimeCalculator;
+import com.tech21.lunart.scheduler.compat.PayloadStore;
+import com.tech21.lunart.scheduler.compat.ScheduleEvent;
+import com.tech21.lunart.scheduler.compat.ScheduleHandler;
+import com.tech21.lunart.scheduler.compat.ScheduleStore;
+import com.tech21.lunart.scheduler.compat.SchedulerCompat;
+import com.tech21.lunart.scheduler.compat.SchedulerOption;
+import com.tech21.lunart.scheduler.compat.VirtualClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.util.ReflectionHelpers;
+import org.robolectric.util.ReflectionHelpers.ClassParameter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class SchedulerServiceTest {
+    private static final long START = 1541376000000L; // 2018-11-05T00:00:00Z
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final String ACTION = "ACTION_SCHEDULER_SERVICE_TEST";
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final List<Boolean> cancelled = new ArrayList<>();
+    private final List<ScheduleEvent> events = new ArrayList<>();
+    private final ScheduleHandler handler = new ScheduleHandler() {
+        @Override
+        public void onSchedule(
+                @NonNull Context context,
+                @NonNull ScheduleEvent event,
+                @NonNull CancellationSignal cancellationSignal
+        ) {
+            cancelled.add(cancellationSignal.isCanceled());
+            events.add(event);
+        }
+    };
+    private Context context;
+    private JobScheduler jobScheduler;
+    private VirtualClock clock;
+    private TimeZone defaultZone;
+
+    @Before
+    public void setUp() {
+        defaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        LocalTimeCalculator.getDefault().invalidate();
+        clock = new VirtualClock(START + 10 * HOUR);
+        SchedulerCompat.setClock(clock);
+        resetSingletons();
+
+        context = RuntimeEnvironment.application;
+        jobScheduler = context.getSystemService(JobScheduler.class);
+        SchedulerCompat.with(context)
+                .setHandlerExecutor(executor)
+                .registerHandler(ACTION, handler);
+    }
+
+    @After
+    public void tearDown() {
+        SchedulerCompat.with(context).unregisterHandler(ACTION);
+        resetSingletons();
+        SchedulerCompat.setClock(Clock.SYSTEM);
+        TimeZone.setDefault(defaultZone);
+        LocalTimeCalculator.getDefault().invalidate();
+    }
+
+    @Test
+    public void dailyJobIsArmedAgainOnlyOnceItsHandlerHasFinished() {
+        SchedulerService.with(context).add(daily(1));
+        JobInfo armed = jobScheduler.getPendingJob(1);
+
+        clock.setCurrentTimeMillis(START + 11 * HOUR);
+        SchedulerService service = Robolectric.setupService(SchedulerService.class);
+        assertTrue(service.onStartJob(getParameters(armed)));
+
+        // The job scheduler stops a running job, and so cancels its handler, once its id is
+        // scheduled again.
+        assertSame(armed, jobScheduler.getPendingJob(1));
+        assertFalse(shadowOf(service).getIsJobFinished());
+
+        executor.runAll();
+
+        assertEquals(1, cancelled.size());
+        assertFalse(cancelled.get(0));
+        assertTrue(shadowOf(service).getIsJobFinished());
+        JobInfo next = jobScheduler.getPendingJob(1);
+        assertNotSame(armed, next);
+        assertEquals(DAY, next.getMinLatencyMillis());
+    }
+
+    @Test
+    public void dailyJobTurnsPeriodicOnceItsFirstRunHasFinished() {
+        SchedulerService.with(context).setEngine(SchedulerService.ENGINE_PERIODIC).add(daily(1));
+        JobInfo armed = jobScheduler.getPendingJob(1);
+
+        clock.setCurrentTimeMillis(START + 11 * HOUR);
+        SchedulerService service = Robolectric.setupService(SchedulerService.class);
+        service.onStartJob(getParameters(armed));
+        assertSame(armed, jobScheduler.getPendingJob(1));
+        executor.runAll();
+
+        assertEquals(1, cancelled.size());
+        assertFalse(cancelled.get(0));
+        JobInfo periodic = jobScheduler.getPendingJob(1);
+        assertTrue(periodic.isPeriodic());
+        assertEquals(DAY, periodic.getIntervalMillis());
+        // The window opens before the wall time, so it isn't widened to the tolerance.
+        assertEquals(DAY / 20, periodic.getFlexMillis());
+    }
+
+    @Test
+    public void periodicJobIsAnchoredAgainOnceItHasDrifted() {
+        JobInfo periodic = armPeriodic();
+
+        // Within the bound the job keeps repeating by itself.
+        clock.setCurrentTimeMillis(START + DAY + 11 * HOUR + 10 * MINUTE);
+        runJob(periodic);
+        assertEquals(2, cancelled.size());
+        assertSame(periodic, jobScheduler.getPendingJob(1));
+
+        clock.setCurrentTimeMillis(START + 2 * DAY + 11 * HOUR + 40 * MINUTE);
+        runJob(periodic);
+        assertEquals(3, cancelled.size());
+        JobInfo oneOff = jobScheduler.getPendingJob(1);
+        assertFalse(oneOff.isPeriodic());
+        assertEquals(DAY - 40 * MINUTE, oneOff.getMinLatencyMillis());
+    }
+
+    @Test
+    public void periodicRunTooEarlyFiresAtTheWallTimeInstead() {
+        JobInfo periodic = armPeriodic();
+
+        // Within the flex window the run fires.
+        clock.setCurrentTimeMillis(START + DAY + 11 * HOUR - HOUR);
+        runJob(periodic);
+        assertEquals(2, cancelled.size());
+        assertSame(periodic, jobScheduler.getPendingJob(1));
+
+        clock.setCurrentTimeMillis(START + 2 * DAY + 11 * HOUR - 90 * MINUTE);
+        SchedulerService service = runJob(periodic);
+        assertEquals(2, cancelled.size());
+        assertTrue(shadowOf(service).getIsJobFinished());
+        JobInfo oneOff = jobScheduler.getPendingJob(1);
+        assertFalse(oneOff.isPeriodic());
+        assertEquals(90 * MINUTE, oneOff.getMinLatencyMillis());
+    }
+
+    @Test
+    public void multiplexedJobDispatchesTheDueSchedulesAndPlansTheNextWakeup() {
+        SchedulerService.with(context).setEngine(SchedulerService.ENGINE_MULTIPLEXED)
+                .add(daily(1))
+                .add(oneOff(2, START + 11 * HOUR, 3 * HOUR));
+        assertNull(jobScheduler.getPendingJob(1));
+        List<JobInfo> armed = getMultiplexedJobs();
+        assertEquals(1, armed.size());
+        assertEquals(HOUR, armed.get(0).getMinLatencyMillis());
+
+        clock.setCurrentTimeMillis(START + 11 * HOUR);
+        SchedulerService service = runJob(armed.get(0));
+        dropFinishedJob(armed.get(0));
+
+        assertEquals(2, cancelled.size());
+        assertTrue(shadowOf(service).getIsJobFinished());
+        assertNull(ScheduleStore.with(context).get(2));
+        assertEquals(START + 11 * HOUR, ScheduleStore.with(context).getLastFiredAt(1));
+        List<JobInfo> next = getMultiplexedJobs();
+        assertEquals(1, next.size());
+        assertEquals(DAY, next.get(0).getMinLatencyMillis());
+    }
+
+    @Test
+    public void multiplexedWakeupsArePlannedAgainAsSchedulesComeAndGo() {
+        SchedulerService scheduler = SchedulerService.with(context)
+                .setEngine(SchedulerService.ENGINE_MULTIPLEXED)
+                .add(daily(1));
+        JobInfo daily = getMultiplexedJobs().get(0);
+
+        scheduler.add(oneOff(2, START + 10 * HOUR + 30 * MINUTE, 10 * MINUTE));
+        List<JobInfo> armed = getMultiplexedJobs();
+        assertEquals(2, armed.size());
+        // The wakeup that was planned already is left alone.
+        assertTrue(armed.contains(daily));
+        armed.remove(daily);
+        assertEquals(30 * MINUTE, armed.get(0).getMinLatencyMillis());
+
+        scheduler.cancel(2);
+        armed = getMultiplexedJobs();
+        assertEquals(1, armed.size());
+        assertSame(daily, armed.get(0));
+    }
+
+    @Test
+    public void multiplexedEngineIsRestoredInAFreshProcess() {
+        SchedulerService.with(context).setEngine(SchedulerService.ENGINE_MULTIPLEXED).add(daily(1));
+        JobInfo armed = getMultiplexedJobs().get(0);
+        resetSingletons();
+
+        SchedulerService scheduler = SchedulerService.with(context);
+        assertEquals(SchedulerService.ENGINE_MULTIPLEXED, scheduler.getEngine());
+        scheduler.add(oneOff(2, START + 11 * HOUR, 3 * HOUR));
+        assertNull(jobScheduler.getPendingJob(2));
+
+        clock.setCurrentTimeMillis(START + 11 * HOUR);
+        runJob(armed);
+        assertEquals(2, cancelled.size());
+        assertNull(ScheduleStore.with(context).get(2));
+        assertEquals(START + 11 * HOUR, ScheduleStore.with(context).getLastFiredAt(1));
+    }
+
+    @Test
+    public void stoppedMultiplexedJobLeavesItsFiresToTheNextWakeup() {
+        SchedulerService.with(context).setEngine(SchedulerService.ENGINE_MULTIPLEXED)
+                .add(daily(1))
+                .add(oneOff(2, START + 11 * HOUR, 3 * HOUR));
+        JobInfo armed = getMultiplexedJobs().get(0);
+
+        clock.setCurrentTimeMillis(START + 11 * HOUR);
+        SchedulerService service = Robolectric.setupService(SchedulerService.class);
+        assertTrue(service.onStartJob(getParameters(armed)));
+        assertFalse(service.onStopJob(getParameters(armed)));
+        dropFinishedJob(armed);
+        executor.runAll();
+
+        assertTrue(cancelled.isEmpty());
+        assertFalse(shadowOf(service).getIsJobFinished());
+        assertNotNull(ScheduleStore.with(context).get(2));
+        assertTrue(ScheduleStore.with(context).getLastFiredAt(1) < START);
+        List<JobInfo> retry = getMultiplexedJobs();
+        assertEquals(1, retry.size());
+        assertEquals(0, retry.get(0).getMinLatencyMillis());
+
+        clock.setCurrentTimeMillis(START + 11 * HOUR + MINUTE);
+        runJob(retry.get(0));
+        dropFinishedJob(retry.get(0));
+
+        assertEquals(2, cancelled.size());
+        assertFalse(cancelled.get(0));
+        assertFalse(cancelled.get(1));
+        assertNull(ScheduleStore.with(context).get(2));
+        assertEquals(START + 11 * HOUR + MINUTE, ScheduleStore.with(context).getLastFiredAt(1));
+        List<JobInfo> next = getMultiplexedJobs();
+        assertEquals(1, next.size());
+        assertEquals(DAY - MINUTE, next.get(0).getMinLatencyMillis());
+    }
+
+    @Test
+    public void multiplexedJobFiresOnceForAMissedStretch() {
+        runMultiplexedAfterMissedStretch(SchedulerCompat.MISFIRE_FIRE_ONCE);
+
+        assertEquals(1, events.size());
+        assertEquals(START + 3 * DAY + 11 * HOUR, events.get(0).getTriggerAt());
+        assertEquals(3, events.get(0).getMissedCount());
+        assertEquals(DAY - 30 * MINUTE, getMultiplexedJobs().get(0).getMinLatencyMillis());
+    }
+
+    @Test
+    public void multiplexedJobFiresEveryOccurrenceOfAMissedStretch() {
+        runMultiplexedAfterMissedStretch(SchedulerCompat.MISFIRE_FIRE_ALL);
+
+        assertEquals(4, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(START + i * DAY + 11 * HOUR, events.get(i).getTriggerAt());
+            assertEquals(0, events.get(i).getMissedCount());
+        }
+    }
+
+    @Test
+    public void multiplexedJobSkipsAMissedStretch() {
+        runMultiplexedAfterMissedStretch(SchedulerCompat.MISFIRE_SKIP_TO_NEXT);
+
+        assertTrue(events.isEmpty());
+        assertEquals(START + 3 * DAY + 11 * HOUR + 30 * MINUTE,
+                ScheduleStore.with(context).getLastFiredAt(1));
+        assertEquals(DAY - 30 * MINUTE, getMultiplexedJobs().get(0).getMinLatencyMillis());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void multiplexedJobIdsCantBeScheduled() {
+        daily(SchedulerService.MULTIPLEXED_JOB_ID_BASE);
+    }
+
+    /**
+     * Runs the first fire of a daily schedule on the periodic engine.
+     */
+    private JobInfo armPeriodic() {
+        SchedulerService.with(context).setEngine(SchedulerService.ENGINE_PERIODIC).add(daily(1));
+        clock.setCurrentTimeMillis(START + 11 * HOUR);
+        runJob(jobScheduler.getPendingJob(1));
+        JobInfo periodic = jobScheduler.getPendingJob(1);
+        assertTrue(periodic.isPeriodic());
+        return periodic;
+    }
+
+    /**
+     * Runs the wakeup of a daily schedule that the device has slept through for three days.
+     */
+    private void runMultiplexedAfterMissedStretch(@SchedulerCompat.MisfirePolicy int misfirePolicy) {
+        SchedulerService.with(context).setEngine(SchedulerService.ENGINE_MULTIPLEXED)
+                .add(new SchedulerOption.Builder().from(daily(1)).misfirePolicy(misfirePolicy).build());
+        JobInfo armed = getMultiplexedJobs().get(0);
+
+        clock.setCurrentTimeMillis(START + 3 * DAY + 11 * HOUR + 30 * MINUTE);
+        runJob(armed);
+        dropFinishedJob(armed);
+    }
+
+    private SchedulerService runJob(@NonNull JobInfo jobInfo) {
+        SchedulerService service = Robolectric.setupService(SchedulerService.class);
+        assertTrue(service.onStartJob(getParameters(jobInfo)));
+        executor.runAll();
+        return service;
+    }
+
+    private SchedulerOption daily(int scheduleId) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleFor(START + 11 * HOUR)
+                .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                .tolerance(3 * HOUR)
+                .scheduleHandler(ACTION, handler)
+                .build();
+    }
+
+    private SchedulerOption oneOff(int scheduleId, long scheduleFor, long toleranceMillis) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleFor(scheduleFor)
+                .recurringType(SchedulerCompat.OCCUR_ONCE)
+                .tolerance(toleranceMillis)
+                .scheduleHandler(ACTION, handler)
+                .build();
+    }
+
+    /**
+     * Drops a one-off job that has run, as the job scheduler does, unless it was armed again.
+     */
+    private void dropFinishedJob(@NonNull JobInfo jobInfo) {
+        if (jobScheduler.getPendingJob(jobInfo.getId()) == jobInfo) {
+            jobScheduler.cancel(jobInfo.getId());
+        }
+    }
+
+    private List<JobInfo> getMultiplexedJobs() {
+        List<JobInfo> jobs = new ArrayList<>();
+        for (JobInfo jobInfo : jobScheduler.getAllPendingJobs()) {
+            if (jobInfo.getId() >= SchedulerService.MULTIPLEXED_JOB_ID_BASE) {
+                jobs.add(jobInfo);
+            }
+        }
+        return jobs;
+    }
+
+    private static JobParameters getParameters(@NonNull JobInfo jobInfo) {
+        return ReflectionHelpers.callConstructor(JobParameters.class,
+                ClassParameter.from(IBinder.class, null),
+                ClassParameter.from(int.class, jobInfo.getId()),
+                ClassParameter.from(PersistableBundle.class, jobInfo.getExtras()),
+                ClassParameter.from(Bundle.class, jobInfo.getTransientExtras()),
+                ClassParameter.from(ClipData.class, null),
+                ClassParameter.from(int.class, 0),
+                ClassParameter.from(boolean.class, false),
+                ClassParameter.from(Uri[].class, null),
+                ClassParameter.from(String[].class, null),
+                ClassParameter.from(Network.class, null));
+    }
+
+    private static void resetSingletons() {
+        ReflectionHelpers.setStaticField(SchedulerCompat.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(SchedulerService.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(ScheduleStore.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(PayloadStore.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(ConditionMonitor.class, "sInstance", null);
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> runnables = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        void runAll() {
+            Runnable runnable;
+            while ((runnable = runnables.poll()) != null) {
+                runnable.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.tech21.lunart.scheduler.compat.v4;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+
+import com.tech21.lunart.scheduler.compat.Clock;
+import com.tech21.lunart.scheduler.compat.ConditionMonitor;
+import com.tech21.lunart.scheduler.compat.LocalTimeCalculator;
+import com.tech21.lunart.scheduler.compat.PayloadStore;
+import com.tech21.lunart.scheduler.compat.ScheduleStore;
+import com.tech21.lunart.scheduler.compat.SchedulerCompat;
+import com.tech21.lunart.scheduler.compat.SchedulerOption;
+import com.tech21.lunart.scheduler.compat.VirtualClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class AlarmReceiverTest {
+    private static final long START = 1541376000000L; // 2018-11-05T00:00:00Z
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final String ACTION = "ACTION_ALARM_RECEIVER_TEST";
+
+    private final List<Intent> received = new ArrayList<>();
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            received.add(intent);
+        }
+    };
+    private Context context;
+    private AlarmManager alarmManager;
+    private VirtualClock clock;
+    private TimeZone defaultZone;
+
+    @Before
+    public void setUp() {
+        defaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        LocalTimeCalculator.getDefault().invalidate();
+        clock = new VirtualClock(START + 10 * HOUR);
+        SchedulerCompat.setClock(clock);
+        resetSingletons();
+
+        context = RuntimeEnvironment.application;
+        alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // Stands in for a receiver the app declares in its own manifest.
+        context.registerReceiver(receiver, new IntentFilter(ACTION));
+    }
+
+    @After
+    public void tearDown() {
+        context.unregisterReceiver(receiver);
+        resetSingletons();
+        SchedulerCompat.setClock(Clock.SYSTEM);
+        TimeZone.setDefault(defaultZone);
+        LocalTimeCalculator.getDefault().invalidate();
+    }
+
+    @Test
+    public void scheduleAlarmIsDispatchedWithoutSchedulerCompat() throws Exception {
+        AlarmService.with(context).add(once(1));
+        PendingIntent alarm = shadowOf(alarmManager).getNextScheduledAlarm().operation;
+        killProcess();
+
+        clock.setCurrentTimeMillis(START + 11 * HOUR);
+        deliver(alarm);
+
+        assertEquals(1, received.size());
+        assertEquals(1, received.get(0).getIntExtra(SchedulerOption.SCHEDULE_ID_KEY, -1));
+        assertNull(ScheduleStore.with(context).get(1));
+        assertNoSchedulerCompat();
+    }
+
+    @Test
+    public void dueSchedulesAlarmIsDispatchedWithoutSchedulerCompat() throws Exception {
+        AlarmService.with(context).setEngine(AlarmService.ENGINE_SINGLE_ALARM).add(once(1));
+        PendingIntent alarm = shadowOf(alarmManager).getNextScheduledAlarm().operation;
+        assertEquals(AlarmService.ACTION_DISPATCH_DUE_SCHEDULES,
+                shadowOf(alarm).getSavedIntent().getAction());
+        killProcess();
+
+        clock.setCurrentTimeMillis(START + 11 * HOUR);
+        deliver(alarm);
+
+        assertEquals(1, received.size());
+        assertEquals(1, received.get(0).getIntExtra(SchedulerOption.SCHEDULE_ID_KEY, -1));
+        assertNull(ScheduleStore.with(context).get(1));
+        assertEquals(AlarmService.ENGINE_SINGLE_ALARM, AlarmService.with(context).getEngine());
+        assertNoSchedulerCompat();
+    }
+
+    @Test
+    public void repeatingAlarmFiresOnceForAMissedStretch() throws Exception {
+        deliverAfterMissedStretch(SchedulerCompat.MISFIRE_FIRE_ONCE);
+
+        assertEquals(1, received.size());
+        assertEquals(START + 3 * DAY + 11 * HOUR, getTriggerAt(received.get(0)));
+        assertEquals(3, getMissedCount(received.get(0)));
+    }
+
+    @Test
+    public void repeatingAlarmFiresEveryOccurrenceOfAMissedStretch() throws Exception {
+        deliverAfterMissedStretch(SchedulerCompat.MISFIRE_FIRE_ALL);
+
+        assertEquals(4, received.size());
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(START + i * DAY + 11 * HOUR, getTriggerAt(received.get(i)));
+            assertEquals(0, getMissedCount(received.get(i)));
+        }
+    }
+
+    @Test
+    public void repeatingAlarmSkipsAMissedStretch() throws Exception {
+        deliverAfterMissedStretch(SchedulerCompat.MISFIRE_SKIP_TO_NEXT);
+
+        assertTrue(received.isEmpty());
+        assertEquals(START + 3 * DAY + 11 * HOUR + 30 * MINUTE,
+                ScheduleStore.with(context).getLastFiredAt(1));
+    }
+
+    /**
+     * Delivers the repeating alarm of a daily schedule that the device has slept through for
+     * three days to a process that isn't running.
+     */
+    private void deliverAfterMissedStretch(@SchedulerCompat.MisfirePolicy int misfirePolicy)
+            throws Exception {
+        AlarmService.with(context).add(new SchedulerOption.Builder()
+                .scheduleId(1)
+                .scheduleFor(START + 11 * HOUR)
+                .recurringType(SchedulerCompat.OCCUR_EVERY_SPECIFIC_TIME)
+                .misfirePolicy(misfirePolicy)
+                .scheduleReceiver(ACTION, receiver)
+                .build());
+        PendingIntent alarm = shadowOf(alarmManager).getNextScheduledAlarm().operation;
+        killProcess();
+
+        clock.setCurrentTimeMillis(START + 3 * DAY + 11 * HOUR + 30 * MINUTE);
+        deliver(alarm);
+    }
+
+    private static long getTriggerAt(Intent intent) {
+        return intent.getLongExtra(SchedulerOption.TRIGGER_AT_KEY, -1);
+    }
+
+    private static int getMissedCount(Intent intent) {
+        return intent.getIntExtra(SchedulerOption.MISSED_COUNT_KEY, -1);
+    }
+
+    /**
+     * Delivers an alarm the way the system does to a process that isn't running: through the
+     * receiver its explicit intent names in the manifest.
+     */
+    private void deliver(PendingIntent alarm) throws Exception {
+        Intent intent = shadowOf(alarm).getSavedIntent();
+        ActivityInfo info = context.getPackageManager().getReceiverInfo(intent.getComponent(), 0);
+        BroadcastReceiver alarmReceiver = (BroadcastReceiver) Class.forName(info.name).newInstance();
+        alarmReceiver.onReceive(context, intent);
+    }
+
+    private SchedulerOption once(int scheduleId) {
+        return new SchedulerOption.Builder()
+                .scheduleId(scheduleId)
+                .scheduleFor(START + 11 * HOUR)
+                .recurringType(SchedulerCompat.OCCUR_ONCE)
+                .scheduleReceiver(ACTION, receiver)
+                .build();
+    }
+
+    /**
+     * Drops everything the process held in memory, leaving the schedules on disk.
+     */
+    private static void killProcess() {
+        resetSingletons();
+    }
+
+    private static void assertNoSchedulerCompat() {
+        assertNull(ReflectionHelpers.getStaticField(SchedulerCompat.class, "sInstance"));
+    }
+
+    private static void resetSingletons() {
+        ReflectionHelpers.setStaticField(SchedulerCompat.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(AlarmService.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(ScheduleStore.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(PayloadStore.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(ConditionMonitor.class, "sInstance", null);
+    }
+}